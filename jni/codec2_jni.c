@@ -24,8 +24,6 @@ JNIEXPORT jlong JNICALL Java_org_servalproject_audio_Codec2_init(JNIEnv *env, jo
     break;
   }
   struct CODEC2 *c2=codec2_create(mode);
-  int bits = codec2_bits_per_frame(c2);
-  int samples = codec2_samples_per_frame(c2);
   return (jlong)c2;
 }
 
@@ -51,13 +49,21 @@ JNIEXPORT jint JNICALL Java_org_servalproject_audio_Codec2_encode(JNIEnv *env, j
   if (output_buffer_size < output_block_size * block_count)
     return -3;
 
-  jbyte * inBytes = (*env)->GetByteArrayElements(env, in, (void*)0);
-  jbyte * outBytes = (*env)->GetByteArrayElements(env, out, (void*)0);
+  // Critical access avoids copying both arrays on every frame.
+  // Nothing in this section may call back into the JVM or block.
+  jbyte * inBytes = (*env)->GetPrimitiveArrayCritical(env, in, (void*)0);
+  if (!inBytes)
+    return -4;
+  jbyte * outBytes = (*env)->GetPrimitiveArrayCritical(env, out, (void*)0);
+  if (!outBytes){
+    (*env)->ReleasePrimitiveArrayCritical(env, in, inBytes, JNI_ABORT);
+    return -4;
+  }
   int i;
   for (i=0;i<block_count;i++)
-    codec2_encode(c2, outBytes + (output_block_size * i), (short *)(inBytes + (input_block_size * i)));
-  (*env)->ReleaseByteArrayElements(env, in, inBytes, 0);
-  (*env)->ReleaseByteArrayElements(env, out, outBytes, 0);
+    codec2_encode(c2, (unsigned char *)outBytes + (output_block_size * i), (short *)(inBytes + (input_block_size * i)));
+  (*env)->ReleasePrimitiveArrayCritical(env, out, outBytes, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, in, inBytes, JNI_ABORT);
 
   return output_block_size * block_count;
 }
@@ -78,15 +84,21 @@ JNIEXPORT jint JNICALL Java_org_servalproject_audio_Codec2_decode(JNIEnv *env, j
   if (output_buffer_size < block_count * output_block_size)
     return -3;
 
-  jbyte * inBytes = (*env)->GetByteArrayElements(env, in, (void*)0);
-  jbyte * outBytes = (*env)->GetByteArrayElements(env, out, (void*)0);
+  jbyte * inBytes = (*env)->GetPrimitiveArrayCritical(env, in, (void*)0);
+  if (!inBytes)
+    return -4;
+  jbyte * outBytes = (*env)->GetPrimitiveArrayCritical(env, out, (void*)0);
+  if (!outBytes){
+    (*env)->ReleasePrimitiveArrayCritical(env, in, inBytes, JNI_ABORT);
+    return -4;
+  }
 
   int i;
   for (i=0;i<block_count;i++)
-    codec2_decode(c2, (short *)(outBytes + (output_block_size * i)), inBytes + (input_block_size * i));
+    codec2_decode(c2, (short *)(outBytes + (output_block_size * i)), (const unsigned char *)inBytes + (input_block_size * i));
 
-  (*env)->ReleaseByteArrayElements(env, in, inBytes, 0);
-  (*env)->ReleaseByteArrayElements(env, out, outBytes, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, out, outBytes, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, in, inBytes, JNI_ABORT);
 
   return output_block_size * block_count;
 }
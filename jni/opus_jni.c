@@ -21,6 +21,13 @@ JNIEXPORT void JNICALL Java_org_servalproject_audio_Opus_encodercomplexity(JNIEn
   opus_encoder_ctl(enc, OPUS_SET_COMPLEXITY(complexity));
 }
 
+JNIEXPORT void JNICALL Java_org_servalproject_audio_Opus_encoderfec(JNIEnv *env, jobject this, jlong ptr, jint loss_percent)
+{
+  OpusEncoder *enc = (OpusEncoder *)ptr;
+  opus_encoder_ctl(enc, OPUS_SET_INBAND_FEC(loss_percent > 0 ? 1 : 0));
+  opus_encoder_ctl(enc, OPUS_SET_PACKET_LOSS_PERC(loss_percent));
+}
+
 JNIEXPORT void JNICALL Java_org_servalproject_audio_Opus_encoderdestroy(JNIEnv *env, jobject this, jlong ptr)
 {
   OpusEncoder *enc = (OpusEncoder *)ptr;
@@ -36,13 +43,21 @@ JNIEXPORT jint JNICALL Java_org_servalproject_audio_Opus_encode(JNIEnv *env, job
   if (data_size>input_buffer_size)
     return -100;
 
-  jbyte * inBytes = (*env)->GetByteArrayElements(env, in, (void*)0);
-  jbyte * outBytes = (*env)->GetByteArrayElements(env, out, (void*)0);
+  // Critical access avoids copying both arrays on every frame.
+  // Nothing in this section may call back into the JVM or block.
+  jbyte * inBytes = (*env)->GetPrimitiveArrayCritical(env, in, (void*)0);
+  if (!inBytes)
+    return -102;
+  jbyte * outBytes = (*env)->GetPrimitiveArrayCritical(env, out, (void*)0);
+  if (!outBytes){
+    (*env)->ReleasePrimitiveArrayCritical(env, in, inBytes, JNI_ABORT);
+    return -102;
+  }
 
-  int ret = opus_encode(enc, (opus_int16 *)inBytes, data_size / 2, outBytes, output_buffer_size);
+  int ret = opus_encode(enc, (opus_int16 *)inBytes, data_size / 2, (unsigned char *)outBytes, output_buffer_size);
 
-  (*env)->ReleaseByteArrayElements(env, in, inBytes, 0);
-  (*env)->ReleaseByteArrayElements(env, out, outBytes, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, out, outBytes, 0);
+  (*env)->ReleasePrimitiveArrayCritical(env, in, inBytes, JNI_ABORT);
 
   return ret;
 }
@@ -55,7 +70,7 @@ JNIEXPORT jlong JNICALL Java_org_servalproject_audio_Opus_decodercreate(JNIEnv *
   return (jlong)dec;
 }
 
-JNIEXPORT jlong JNICALL Java_org_servalproject_audio_Opus_decoderdestroy(JNIEnv *env, jobject this, jlong ptr)
+JNIEXPORT void JNICALL Java_org_servalproject_audio_Opus_decoderdestroy(JNIEnv *env, jobject this, jlong ptr)
 {
   OpusDecoder *dec = (OpusDecoder *)ptr;
   opus_decoder_destroy(dec);
@@ -74,19 +89,33 @@ JNIEXPORT jint JNICALL Java_org_servalproject_audio_Opus_decode(JNIEnv *env, job
     input_buffer_size = (*env)->GetArrayLength(env, in);
     if (data_size > input_buffer_size)
       return -100;
-    inBytes = (*env)->GetByteArrayElements(env, in, (void*)0);
   }else{
     if (output_size > output_buffer_size)
       return -101;
     output_buffer_size = output_size;
   }
-  jbyte * outBytes = (*env)->GetByteArrayElements(env, out, (void*)0);
 
-  int ret = opus_decode(dec, inBytes, data_size, (opus_int16 *)outBytes, output_buffer_size / 2, 0);
+  // Critical access avoids copying both arrays on every frame.
+  // Nothing in this section may call back into the JVM or block.
+  if (data_size){
+    inBytes = (*env)->GetPrimitiveArrayCritical(env, in, (void*)0);
+    if (!inBytes)
+      return -102;
+  }
+  jbyte * outBytes = (*env)->GetPrimitiveArrayCritical(env, out, (void*)0);
+  if (!outBytes){
+    if (inBytes)
+      (*env)->ReleasePrimitiveArrayCritical(env, in, inBytes, JNI_ABORT);
+    return -102;
+  }
+
+  int ret = opus_decode(dec, (const unsigned char *)inBytes, data_size, (opus_int16 *)outBytes, output_buffer_size / 2, 0);
 
+  (*env)->ReleasePrimitiveArrayCritical(env, out, outBytes, 0);
   if (inBytes)
-    (*env)->ReleaseByteArrayElements(env, in, inBytes, 0);
-  (*env)->ReleaseByteArrayElements(env, out, outBytes, 0);
+    (*env)->ReleasePrimitiveArrayCritical(env, in, inBytes, JNI_ABORT);
 
+  if (ret < 0)
+    return ret;
   return ret * 2;
 }
@@ -0,0 +1,187 @@
+package org.servalproject;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Background threads for work that shouldn't run on the UI thread.
+ *
+ * Work is split into lanes, each with its own thread and priority, so a slow rhizome
+ * or DNA request can't hold up time sensitive work like releasing a wakelock.
+ * Posting a runnable that is already queued on a lane replaces the earlier post.
+ * Work is never dropped, but a lane that queues more than its capacity is logged.
+ */
+public class BackgroundLanes {
+	private static final String TAG = "BackgroundLanes";
+	// log anything that runs for longer than this
+	private static final int SLOW_TASK_MS = 1000;
+
+	public enum Lane {
+		// wakelocks, alarms and anything else where a delay costs power or latency
+		Critical("Background Critical", Process.THREAD_PRIORITY_FOREGROUND, 32),
+		// radio and network control; bluetooth, wifi, peer discovery
+		Network("Background Network", Process.THREAD_PRIORITY_DEFAULT, 64),
+		// everything else; rhizome, DNA lookups, notifications
+		Bulk("Background", Process.THREAD_PRIORITY_DEFAULT, 256);
+
+		final String threadName;
+		final int priority;
+		// more runnables than this queued on the lane suggests something is wrong
+		final int capacity;
+
+		Lane(String threadName, int priority, int capacity) {
+			this.threadName = threadName;
+			this.priority = priority;
+			this.capacity = capacity;
+		}
+	}
+
+	public static class Stats {
+		public final Lane lane;
+		// runnables queued (including delayed runnables), and the most we've seen queued
+		public int depth;
+		public int maxDepth;
+		public long executed;
+		// how many times the queue has grown past the lane's capacity
+		public long overCapacity;
+		// time from when a runnable was due to run, to when it started
+		public long totalWaitMs;
+		public long maxWaitMs;
+		public long totalRunMs;
+		public long maxRunMs;
+
+		Stats(Lane lane) {
+			this.lane = lane;
+		}
+
+		Stats copy() {
+			Stats ret = new Stats(lane);
+			ret.depth = depth;
+			ret.maxDepth = maxDepth;
+			ret.executed = executed;
+			ret.overCapacity = overCapacity;
+			ret.totalWaitMs = totalWaitMs;
+			ret.maxWaitMs = maxWaitMs;
+			ret.totalRunMs = totalRunMs;
+			ret.maxRunMs = maxRunMs;
+			return ret;
+		}
+
+		@Override
+		public String toString() {
+			return lane + ": depth " + depth + " (max " + maxDepth + "), executed " + executed
+					+ ", over capacity " + overCapacity
+					+ ", wait avg " + (executed == 0 ? 0 : totalWaitMs / executed) + "ms max " + maxWaitMs
+					+ "ms, run avg " + (executed == 0 ? 0 : totalRunMs / executed) + "ms max " + maxRunMs + "ms";
+		}
+	}
+
+	private class LaneHandler extends Handler {
+		final Lane lane;
+		final Stats stats;
+		// runnables currently queued on this lane
+		final Map<Runnable, Boolean> pending = new IdentityHashMap<Runnable, Boolean>();
+
+		LaneHandler(HandlerThread thread, Lane lane) {
+			super(thread.getLooper());
+			this.lane = lane;
+			this.stats = new Stats(lane);
+		}
+
+		synchronized void post(Runnable r, int delay) {
+			removeCallbacks(r);
+			pending.put(r, Boolean.TRUE);
+			int depth = pending.size();
+			if (depth == lane.capacity + 1) {
+				stats.overCapacity++;
+				Log.w(TAG, lane + " lane has more than " + lane.capacity + " runnables queued, latest " + r);
+			}
+			stats.depth = depth;
+			if (stats.depth > stats.maxDepth)
+				stats.maxDepth = stats.depth;
+			postDelayed(r, delay);
+		}
+
+		synchronized void remove(Runnable r) {
+			removeCallbacks(r);
+			pending.remove(r);
+			stats.depth = pending.size();
+		}
+
+		@Override
+		public void dispatchMessage(Message msg) {
+			Runnable r = msg.getCallback();
+			long start = SystemClock.uptimeMillis();
+			long wait = start - msg.getWhen();
+			synchronized (this) {
+				pending.remove(r);
+				stats.depth = pending.size();
+			}
+			try {
+				super.dispatchMessage(msg);
+			} finally {
+				long run = SystemClock.uptimeMillis() - start;
+				synchronized (this) {
+					stats.executed++;
+					stats.totalWaitMs += wait;
+					stats.totalRunMs += run;
+					if (wait > stats.maxWaitMs)
+						stats.maxWaitMs = wait;
+					if (run > stats.maxRunMs)
+						stats.maxRunMs = run;
+				}
+				if (run >= SLOW_TASK_MS)
+					Log.v(TAG, lane + " lane; " + r + " waited " + wait + "ms, ran for " + run + "ms");
+			}
+		}
+	}
+
+	private final LaneHandler handlers[];
+
+	BackgroundLanes() {
+		Lane lanes[] = Lane.values();
+		handlers = new LaneHandler[lanes.length];
+		for (int i = 0; i < lanes.length; i++) {
+			HandlerThread thread = new HandlerThread(lanes[i].threadName, lanes[i].priority);
+			thread.start();
+			handlers[i] = new LaneHandler(thread, lanes[i]);
+			final Lane lane = lanes[i];
+			Metrics.gauge("background_" + lane.name().toLowerCase() + "_depth",
+					"Runnables queued on the " + lane + " lane", new Metrics.Source() {
+				@Override
+				public long value() {
+					return getStats(lane).depth;
+				}
+			});
+		}
+	}
+
+	public void post(Lane lane, Runnable r, int delay) {
+		handlers[lane.ordinal()].post(r, delay);
+	}
+
+	public void remove(Lane lane, Runnable r) {
+		handlers[lane.ordinal()].remove(r);
+	}
+
+	public Stats getStats(Lane lane) {
+		LaneHandler h = handlers[lane.ordinal()];
+		synchronized (h) {
+			return h.stats.copy();
+		}
+	}
+
+	public String dumpStats() {
+		StringBuilder sb = new StringBuilder();
+		for (Lane lane : Lane.values())
+			sb.append(getStats(lane)).append('\n');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,178 @@
+package org.servalproject;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.PriorityQueue;
+
+/**
+ * Holds back work that isn't needed to get the user onto the mesh,
+ * until the application has been running for a while, or the device is idle or charging.
+ * Tasks run one at a time on the background thread, highest priority first.
+ */
+public class DeferredWork {
+	private static final String TAG = "DeferredWork";
+	// how long after startup before we consider the application to be in a steady state
+	static final int STEADY_STATE_MS = 30000;
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 5;
+	public static final int PRIORITY_HIGH = 10;
+
+	private final ServalBatPhoneApplication app;
+	private final PriorityQueue<Task> queue = new PriorityQueue<Task>();
+	private long started = -1;
+	private boolean charging = false;
+	private boolean screenOff = false;
+	private int sequence = 0;
+
+	public static abstract class Task implements Comparable<Task> {
+		public final String name;
+		public final int priority;
+		private int order;
+		private long queued;
+		private long queuedNanos;
+		private volatile boolean cancelled = false;
+
+		public Task(String name, int priority) {
+			this.name = name;
+			this.priority = priority;
+		}
+
+		public abstract void run();
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+
+		@Override
+		public int compareTo(Task another) {
+			if (priority != another.priority)
+				return priority > another.priority ? -1 : 1;
+			// first in, first out
+			return order < another.order ? -1 : (order == another.order ? 0 : 1);
+		}
+	}
+
+	private BroadcastReceiver receiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			String action = intent.getAction();
+			if (Intent.ACTION_POWER_CONNECTED.equals(action))
+				charging = true;
+			else if (Intent.ACTION_POWER_DISCONNECTED.equals(action))
+				charging = false;
+			else if (Intent.ACTION_SCREEN_OFF.equals(action))
+				screenOff = true;
+			else if (Intent.ACTION_SCREEN_ON.equals(action))
+				screenOff = false;
+			schedule();
+		}
+	};
+
+	DeferredWork(ServalBatPhoneApplication app) {
+		this.app = app;
+	}
+
+	// called once the application is running, starts the steady state timer
+	synchronized void start() {
+		if (started != -1)
+			return;
+		started = SystemClock.elapsedRealtime();
+
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(Intent.ACTION_POWER_CONNECTED);
+		filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+		filter.addAction(Intent.ACTION_SCREEN_OFF);
+		filter.addAction(Intent.ACTION_SCREEN_ON);
+		app.registerReceiver(receiver, filter);
+
+		Intent battery = app.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		if (battery != null)
+			charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+		schedule();
+	}
+
+	public synchronized void post(Task task) {
+		task.order = sequence++;
+		task.queued = SystemClock.elapsedRealtime();
+		task.queuedNanos = System.nanoTime();
+		queue.add(task);
+		schedule();
+	}
+
+	private synchronized long delay() {
+		if (started == -1)
+			return -1;
+		if (charging || screenOff)
+			return 0;
+		long remaining = started + STEADY_STATE_MS - SystemClock.elapsedRealtime();
+		return remaining < 0 ? 0 : remaining;
+	}
+
+	private void schedule() {
+		long delay;
+		synchronized (this) {
+			if (queue.isEmpty())
+				return;
+			delay = delay();
+		}
+		if (delay >= 0)
+			app.runOnBackgroundThread(runner, (int) delay);
+	}
+
+	private Runnable runner = new Runnable() {
+		@Override
+		public void run() {
+			Task task;
+			long waited;
+			String reason;
+			synchronized (DeferredWork.this) {
+				if (delay() != 0) {
+					schedule();
+					return;
+				}
+				task = queue.poll();
+				if (task == null)
+					return;
+				waited = SystemClock.elapsedRealtime() - task.queued;
+				reason = charging ? "charging" : screenOff ? "idle" : "steady state";
+			}
+			if (task.isCancelled()) {
+				Log.v(TAG, task.name + " was cancelled after waiting " + waited + "ms");
+			} else {
+				// deferred tasks are part of startup, so they belong in its trace
+				SpanTracer.startup.add(task.name + " (waiting)", task.queuedNanos, System.nanoTime());
+				SpanTracer.Span span = SpanTracer.startup.begin(task.name);
+				long ran;
+				try {
+					task.run();
+				} catch (Exception e) {
+					Log.e(TAG, e.getMessage(), e);
+				} finally {
+					ran = span.end();
+				}
+				Log.v(TAG, task.name + " waited " + waited + "ms, ran for "
+						+ ran + "ms (" + reason + ")");
+			}
+			boolean drained;
+			synchronized (DeferredWork.this) {
+				drained = queue.isEmpty();
+			}
+			// once everything we held back has run, the startup trace is complete
+			if (drained)
+				app.writeStartupTrace();
+			// give other background work a chance to run between tasks
+			schedule();
+		}
+	};
+}
@@ -0,0 +1,375 @@
+package org.servalproject;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Application log, written to rotated files in the background.
+ *
+ * Logging an event copies the tag, a message and up to two numeric arguments into a
+ * pre-allocated ring, so it doesn't allocate, format or touch the disk on the caller's thread.
+ * A flusher thread formats batches of events, writes them to disk and copies them to logcat.
+ *
+ * Callers on hot paths should test V or D before building a message;
+ *	if (EventLog.V) EventLog.v(TAG, "read bytes", bytesRead);
+ * When verbose logging is disabled that costs one static field read.
+ * Messages should be constants, the numeric arguments are appended when the event is written.
+ *
+ * Tags passed to keep() are also written to their own file, so they can be read back later
+ * without being pushed out of the rotation by verbose logging.
+ */
+public class EventLog {
+	private static final String TAG = "EventLog";
+
+	// events the ring can hold between flushes, must be a power of 2
+	private static final int RING_SIZE = 4096;
+	private static final int MASK = RING_SIZE - 1;
+	private static final int FLUSH_INTERVAL = 5000;
+	private static final long MAX_FILE_SIZE = 256 * 1024;
+	// serval.log, serval.log.1 ... serval.log.(MAX_FILES-1)
+	private static final int MAX_FILES = 3;
+	static final String FILE_NAME = "serval.log";
+
+	public static boolean V = false;
+	public static boolean D = false;
+	private static int level = Log.INFO;
+
+	private static final long times[] = new long[RING_SIZE];
+	private static final byte levels[] = new byte[RING_SIZE];
+	private static final byte argCounts[] = new byte[RING_SIZE];
+	private static final String tags[] = new String[RING_SIZE];
+	private static final String messages[] = new String[RING_SIZE];
+	private static final long args[] = new long[RING_SIZE * 2];
+	// next event to write, and next event to flush
+	private static long head;
+	private static long tail;
+	private static long dropped;
+	// set when the ring is half full, so the flusher doesn't wait out the interval
+	private static boolean flushRequested;
+
+	private static final Object lock = new Object();
+	private static File folder;
+	private static Thread flusher;
+	// tags that also have their own <tag>.log
+	private static final Set<String> kept = new HashSet<String>();
+
+	// Only events at or above this level are recorded, using the android.util.Log constants
+	public static void setLevel(int newLevel) {
+		level = newLevel;
+		V = newLevel <= Log.VERBOSE;
+		D = newLevel <= Log.DEBUG;
+	}
+
+	public static boolean isLoggable(int l) {
+		return l >= level;
+	}
+
+	// start writing events to files in this folder
+	public static void start(File logFolder) {
+		synchronized (lock) {
+			if (flusher != null)
+				return;
+			logFolder.mkdirs();
+			folder = logFolder;
+			flusher = new Thread(flush, "EventLog");
+			flusher.start();
+		}
+	}
+
+	// also write this tag's events to <tag>.log, which isn't rotated with the main log
+	public static void keep(String tag) {
+		synchronized (lock) {
+			kept.add(tag);
+		}
+	}
+
+	// throw away a kept tag's file, including any of its events still in the ring
+	public static synchronized void erase(String tag) {
+		drain();
+		if (folder == null)
+			return;
+		File file = new File(folder, tag + ".log");
+		if (file.exists() && !file.delete())
+			Log.v(TAG, "Failed to delete " + file);
+	}
+
+	public static void v(String tag, String message) {
+		log(Log.VERBOSE, tag, message, 0, 0, 0);
+	}
+
+	public static void v(String tag, String message, long arg) {
+		log(Log.VERBOSE, tag, message, 1, arg, 0);
+	}
+
+	public static void v(String tag, String message, long arg1, long arg2) {
+		log(Log.VERBOSE, tag, message, 2, arg1, arg2);
+	}
+
+	public static void d(String tag, String message) {
+		log(Log.DEBUG, tag, message, 0, 0, 0);
+	}
+
+	public static void d(String tag, String message, long arg) {
+		log(Log.DEBUG, tag, message, 1, arg, 0);
+	}
+
+	public static void i(String tag, String message) {
+		log(Log.INFO, tag, message, 0, 0, 0);
+	}
+
+	public static void w(String tag, String message) {
+		log(Log.WARN, tag, message, 0, 0, 0);
+	}
+
+	// errors also go straight to logcat, in case we never get to flush them
+	public static void e(String tag, String message, Throwable t) {
+		Log.e(tag, message, t);
+		log(Log.ERROR, tag, message, 0, 0, 0);
+	}
+
+	private static void log(int l, String tag, String message, int argCount, long arg1, long arg2) {
+		if (l < level)
+			return;
+		long now = System.currentTimeMillis();
+		synchronized (lock) {
+			if (head - tail >= RING_SIZE) {
+				// the flusher has fallen behind, overwrite the oldest event
+				tail++;
+				dropped++;
+			}
+			int i = (int) (head & MASK);
+			times[i] = now;
+			levels[i] = (byte) l;
+			argCounts[i] = (byte) argCount;
+			tags[i] = tag;
+			messages[i] = message;
+			args[i * 2] = arg1;
+			args[i * 2 + 1] = arg2;
+			head++;
+			if (head - tail == RING_SIZE / 2) {
+				flushRequested = true;
+				lock.notify();
+			}
+		}
+	}
+
+	private static final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			while (true) {
+				// write events in batches, at most once per interval unless the ring is filling up
+				synchronized (lock) {
+					long deadline = System.currentTimeMillis() + FLUSH_INTERVAL;
+					try {
+						while (!flushRequested) {
+							long wait = deadline - System.currentTimeMillis();
+							if (wait <= 0)
+								break;
+							lock.wait(wait);
+						}
+					} catch (InterruptedException e) {
+						Log.e(TAG, e.getMessage(), e);
+					}
+					flushRequested = false;
+				}
+				drain();
+			}
+		}
+	};
+
+	// the flusher's copy of the events it is writing, so producers aren't blocked while we format
+	private static final long batchTimes[] = new long[RING_SIZE];
+	private static final byte batchLevels[] = new byte[RING_SIZE];
+	private static final byte batchArgCounts[] = new byte[RING_SIZE];
+	private static final String batchTags[] = new String[RING_SIZE];
+	private static final String batchMessages[] = new String[RING_SIZE];
+	private static final boolean batchKept[] = new boolean[RING_SIZE];
+	private static final long batchArgs[] = new long[RING_SIZE * 2];
+	private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss.SSS");
+	private static final StringBuilder line = new StringBuilder();
+	private static final Date date = new Date();
+
+	// write everything that is waiting, returns once it is on disk
+	public static synchronized void drain() {
+		int count;
+		long lost;
+		synchronized (lock) {
+			count = (int) (head - tail);
+			for (int n = 0; n < count; n++) {
+				int i = (int) ((tail + n) & MASK);
+				batchTimes[n] = times[i];
+				batchLevels[n] = levels[i];
+				batchArgCounts[n] = argCounts[i];
+				batchTags[n] = tags[i];
+				batchMessages[n] = messages[i];
+				batchKept[n] = !kept.isEmpty() && kept.contains(tags[i]);
+				batchArgs[n * 2] = args[i * 2];
+				batchArgs[n * 2 + 1] = args[i * 2 + 1];
+				tags[i] = null;
+				messages[i] = null;
+			}
+			tail = head;
+			lost = dropped;
+			dropped = 0;
+		}
+		if (count == 0 && lost == 0)
+			return;
+
+		Writer out = null;
+		Map<String, Writer> keptFiles = null;
+		try {
+			if (folder != null) {
+				File file = new File(folder, FILE_NAME);
+				if (file.length() > MAX_FILE_SIZE)
+					rotate();
+				out = new FileWriter(file, true);
+			}
+			if (lost > 0)
+				write(out, System.currentTimeMillis(), Log.WARN, TAG,
+						"Log events were dropped", 1, lost, 0);
+			for (int n = 0; n < count; n++) {
+				String s = write(out, batchTimes[n], batchLevels[n], batchTags[n], batchMessages[n],
+						batchArgCounts[n], batchArgs[n * 2], batchArgs[n * 2 + 1]);
+				if (batchKept[n] && s != null) {
+					if (keptFiles == null)
+						keptFiles = new HashMap<String, Writer>();
+					Writer k = keptFiles.get(batchTags[n]);
+					if (k == null) {
+						File file = new File(folder, batchTags[n] + ".log");
+						// kept logs are erased by their owner, this just stops them growing forever
+						k = new FileWriter(file, file.length() <= MAX_FILE_SIZE);
+						keptFiles.put(batchTags[n], k);
+					}
+					k.write(s);
+				}
+				batchTags[n] = null;
+				batchMessages[n] = null;
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		} finally {
+			close(out);
+			if (keptFiles != null) {
+				for (Writer k : keptFiles.values())
+					close(k);
+			}
+		}
+	}
+
+	private static void close(Writer out) {
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+	// returns the line written to the file, or null if there is no file yet
+	private static String write(Writer out, long time, int l, String tag, String message,
+			int argCount, long arg1, long arg2) throws IOException {
+		line.setLength(0);
+		line.append(message);
+		if (argCount >= 1)
+			line.append(' ').append(arg1);
+		if (argCount >= 2)
+			line.append(' ').append(arg2);
+		String text = line.toString();
+		if (l != Log.ERROR)
+			Log.println(l, tag, text);
+		if (out == null)
+			return null;
+		date.setTime(time);
+		line.setLength(0);
+		line.append(dateFormat.format(date)).append(' ')
+				.append(levelChar(l)).append(' ')
+				.append(tag).append(": ")
+				.append(text.replace('\n', ' ')).append('\n');
+		String s = line.toString();
+		out.write(s);
+		return s;
+	}
+
+	private static char levelChar(int l) {
+		switch (l) {
+			case Log.VERBOSE: return 'V';
+			case Log.DEBUG: return 'D';
+			case Log.INFO: return 'I';
+			case Log.WARN: return 'W';
+			default: return 'E';
+		}
+	}
+
+	private static void rotate() {
+		for (int n = MAX_FILES - 1; n >= 1; n--) {
+			File from = new File(folder, n == 1 ? FILE_NAME : FILE_NAME + "." + (n - 1));
+			File to = new File(folder, FILE_NAME + "." + n);
+			if (from.exists()) {
+				to.delete();
+				from.renameTo(to);
+			}
+		}
+	}
+
+	public static class Entry {
+		public final String date;
+		public final char level;
+		public final String tag;
+		public final String message;
+
+		Entry(String date, char level, String tag, String message) {
+			this.date = date;
+			this.level = level;
+			this.tag = tag;
+			this.message = message;
+		}
+	}
+
+	// Read back the events of a kept tag, oldest first. Flushes anything still in the ring.
+	public static List<Entry> read(String tag) {
+		drain();
+		List<Entry> ret = new ArrayList<Entry>();
+		if (folder == null)
+			return ret;
+		File file = new File(folder, tag + ".log");
+		if (!file.exists())
+			return ret;
+		String match = " " + tag + ": ";
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file), 8192);
+			try {
+				String s;
+				while ((s = in.readLine()) != null) {
+					// "yyyy/MM/dd HH:mm:ss.SSS L tag: message"
+					int pos = s.indexOf(match);
+					if (pos != 25)
+						continue;
+					ret.add(new Entry(s.substring(0, 23), s.charAt(24), tag,
+							s.substring(pos + match.length())));
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return ret;
+	}
+}
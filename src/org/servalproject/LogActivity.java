@@ -33,19 +33,12 @@ package org.servalproject;
 
 import android.app.Activity;
 import android.os.Bundle;
+import android.text.TextUtils;
 import android.webkit.WebSettings;
 import android.webkit.WebView;
 
 import org.servalproject.system.ChipsetDetection;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
 import java.util.List;
 
 public class LogActivity extends Activity {
@@ -84,13 +77,23 @@ public class LogActivity extends Activity {
     }
 
     private void setWebViewContent() {
-    	this.webView.loadDataWithBaseURL("fake://fakeme",HEADER+this.readLogfile()+FOOTER , "text/html", "UTF-8", "fake://fakeme");
+		// reading the logs waits for the event log to flush, so keep it off the UI thread
+		ServalBatPhoneApplication.context.runOnBackgroundThread(new Runnable() {
+			@Override
+			public void run() {
+				final String data = HEADER + readLogfile() + FOOTER;
+				runOnUiThread(new Runnable() {
+					@Override
+					public void run() {
+						webView.loadDataWithBaseURL("fake://fakeme", data, "text/html", "UTF-8", "fake://fakeme");
+					}
+				});
+			}
+		});
     }
 
     private String readLogfile(){
-        FileInputStream fis = null;
-        InputStreamReader isr = null;
-        String data = "";
+		StringBuilder data = new StringBuilder();
 
 		List<String> logfiles = ChipsetDetection
 				.getList("/data/data/org.servalproject/conf/logfiles.list");
@@ -99,85 +102,40 @@ public class LogActivity extends Activity {
 			if (l.indexOf(":") == -1)
 				continue;
 
-			String logfile = l.substring(0, l.indexOf(":"));
+			String logname = l.substring(0, l.indexOf(":"));
 			String description = l.substring(l.indexOf(":") + 1, l.length());
 
-			data = data
-				+ "<div class=\"heading\">"+description+"</div>\n";
-			try {
-				File file = new File("/data/data/org.servalproject/var/"
-						+ logfile + ".log");
-				fis = new FileInputStream(file);
-				isr = new InputStreamReader(fis, "utf-8");
-				char[] buff = new char[(int) file.length()];
-				isr.read(buff);
-				data = data + new String(buff);
-			} catch (Exception e) {
-				// We don't need to display anything, just put a message in the
-				// log
-				data = data + "<div class=\"failed\">No messages</div>";
-				// this.application.displayToastMessage("Unable to open log-File!");
-			} finally {
-        	 try {
-        		 if (isr != null)
-        			 isr.close();
-        		 if (fis != null)
-        			 fis.close();
-        	 } catch (Exception e) {
-        		 // nothing
-        	 }
-         }
+			data.append("<div class=\"heading\">").append(description).append("</div>\n");
+
+			List<EventLog.Entry> entries = EventLog.read(logname);
+			if (entries.isEmpty()) {
+				data.append("<div class=\"failed\">No messages</div>");
+				continue;
+			}
+			for (EventLog.Entry e : entries) {
+				boolean failed = e.level == 'W' || e.level == 'E';
+				data.append("<div class=\"date\">").append(e.date).append("</div>\n")
+						.append("<div class=\"action\">").append(TextUtils.htmlEncode(e.message)).append("</div>\n")
+						.append("<div class=\"").append(failed ? "failed\">failed" : "done\">done")
+						.append("</div><hr>\n");
+			}
 		}
-		return data;
+		return data.toString();
     }
 
+	// these logs have their own files, so verbose logging can't push them out of the rotation
 	public static void logMessage(String logname, String message,
 			boolean failedP) {
-		BufferedWriter writer = null;
-		try {
-			writer = new BufferedWriter(new FileWriter(
-					"/data/data/org.servalproject/var/" + logname + ".log",
-					true), 256);
-			Calendar currentDate = Calendar.getInstance();
-			SimpleDateFormat formatter = new SimpleDateFormat(
-					"yyyy/MMM/dd HH:mm:ss");
-			String dateNow = formatter.format(currentDate.getTime());
-			writer.write("<div class=\"date\">" + dateNow + "</div>\n");
-			writer.write("<div class=\"action\">" + message + "</div>\n");
-			writer.write("<div class=\"");
-			if (failedP)
-				writer.write("failed\">failed");
-			else
-				writer.write("done\">done");
-			writer.write("</div><hr>\n");
-			writer.close();
-		} catch (IOException e) {
-			// Should we do something here?
-			try {
-				if (writer != null)
-					writer.close();
-			} catch (IOException e2) {
-			}
-		}
-		return;
+		EventLog.keep(logname);
+		if (failedP)
+			EventLog.w(logname, message);
+		else
+			EventLog.i(logname, message);
 	}
 
 	public static void logErase(String logname) {
-		BufferedWriter writer = null;
-		try {
-			writer = new BufferedWriter(new FileWriter(
-					"/data/data/org.servalproject/var/" + logname + ".log",
-					false), 256);
-			writer.close();
-		} catch (IOException e) {
-			// Should we do something here?
-			try {
-				if (writer != null)
-					writer.close();
-			} catch (IOException e2) {
-			}
-		}
-		return;
+		EventLog.keep(logname);
+		EventLog.erase(logname);
 	}
 
 }
@@ -0,0 +1,250 @@
+package org.servalproject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters, gauges and latency histograms for each subsystem, so we can see how a field device
+ * is behaving without logcat. SimpleWebServer serves them at /metrics in the Prometheus text format.
+ *
+ * Updating a metric is lock free. Metrics are normally created once, in a static field of the
+ * class that updates them. Registering the same name twice returns the existing metric.
+ */
+public class Metrics {
+	public static final String PREFIX = "serval_";
+
+	public static abstract class Metric {
+		public final String name;
+		public final String help;
+
+		Metric(String name, String help) {
+			this.name = PREFIX + name;
+			this.help = help;
+		}
+
+		abstract String type();
+
+		abstract void write(StringBuilder sb);
+	}
+
+	public static class Counter extends Metric {
+		private final AtomicLong value = new AtomicLong();
+
+		Counter(String name, String help) {
+			super(name, help);
+		}
+
+		public void inc() {
+			value.incrementAndGet();
+		}
+
+		public void add(long delta) {
+			value.addAndGet(delta);
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		@Override
+		String type() {
+			return "counter";
+		}
+
+		@Override
+		void write(StringBuilder sb) {
+			sb.append(name).append(' ').append(value.get()).append('\n');
+		}
+	}
+
+	public static class Gauge extends Metric {
+		private final AtomicLong value = new AtomicLong();
+
+		Gauge(String name, String help) {
+			super(name, help);
+		}
+
+		public void set(long v) {
+			value.set(v);
+		}
+
+		public void inc() {
+			value.incrementAndGet();
+		}
+
+		public void dec() {
+			value.decrementAndGet();
+		}
+
+		public long get() {
+			return value.get();
+		}
+
+		@Override
+		String type() {
+			return "gauge";
+		}
+
+		@Override
+		void write(StringBuilder sb) {
+			sb.append(name).append(' ').append(get()).append('\n');
+		}
+	}
+
+	// a gauge that is read from its owner when scraped
+	public interface Source {
+		long value();
+	}
+
+	private static class SourceGauge extends Metric {
+		private final Source source;
+
+		SourceGauge(String name, String help, Source source) {
+			super(name, help);
+			this.source = source;
+		}
+
+		@Override
+		String type() {
+			return "gauge";
+		}
+
+		@Override
+		void write(StringBuilder sb) {
+			sb.append(name).append(' ').append(source.value()).append('\n');
+		}
+	}
+
+	/**
+	 * Log-linear buckets, like an HdrHistogram with 2 bits of precision; values below 4 get
+	 * their own bucket, then each power of two is split into 4 buckets. So any recorded value
+	 * is reported within 25% using a fixed 92 buckets, covering values below 2^24 (4.6 hours in ms).
+	 * Larger values are only counted in the +Inf bucket.
+	 */
+	public static class Histogram extends Metric {
+		private static final int SUB_BITS = 2;
+		private static final int SUB = 1 << SUB_BITS;
+		private static final int MAX_EXPONENT = 24;
+		private static final int BUCKETS = SUB + (MAX_EXPONENT - SUB_BITS) * SUB;
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		Histogram(String name, String help) {
+			super(name, help);
+		}
+
+		// the bucket for this value, or BUCKETS if it is too large for any of them
+		static int bucket(long v) {
+			if (v < SUB)
+				return v < 0 ? 0 : (int) v;
+			int exponent = 63 - Long.numberOfLeadingZeros(v);
+			if (exponent >= MAX_EXPONENT)
+				return BUCKETS;
+			int sub = (int) (v >> (exponent - SUB_BITS)) & (SUB - 1);
+			return SUB + (exponent - SUB_BITS) * SUB + sub;
+		}
+
+		// the largest value that falls in this bucket
+		static long upperBound(int bucket) {
+			if (bucket < SUB)
+				return bucket;
+			int exponent = (bucket - SUB) / SUB + SUB_BITS;
+			int sub = (bucket - SUB) % SUB;
+			return ((long) (SUB + sub + 1) << (exponent - SUB_BITS)) - 1;
+		}
+
+		public void record(long v) {
+			int b = bucket(v);
+			if (b < BUCKETS)
+				counts.incrementAndGet(b);
+			count.incrementAndGet();
+			sum.addAndGet(v);
+			long m;
+			while (v > (m = max.get()) && !max.compareAndSet(m, v))
+				;
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		@Override
+		String type() {
+			return "histogram";
+		}
+
+		@Override
+		void write(StringBuilder sb) {
+			// skip the empty buckets above the largest value we've seen
+			int last = Math.min(bucket(max.get()), BUCKETS - 1);
+			long cumulative = 0;
+			for (int i = 0; i <= last; i++) {
+				cumulative += counts.get(i);
+				sb.append(name).append("_bucket{le=\"").append(upperBound(i)).append("\"} ")
+						.append(cumulative).append('\n');
+			}
+			sb.append(name).append("_bucket{le=\"+Inf\"} ").append(count.get()).append('\n');
+			sb.append(name).append("_sum ").append(sum.get()).append('\n');
+			sb.append(name).append("_count ").append(count.get()).append('\n');
+		}
+	}
+
+	private static final List<Metric> metrics = new ArrayList<Metric>();
+
+	private static synchronized <T extends Metric> T register(T metric, Class<T> type) {
+		for (Metric m : metrics) {
+			if (m.name.equals(metric.name)) {
+				if (!type.isInstance(m))
+					throw new IllegalStateException(m.name + " is already registered as a " + m.type());
+				return type.cast(m);
+			}
+		}
+		metrics.add(metric);
+		return metric;
+	}
+
+	public static Counter counter(String name, String help) {
+		return register(new Counter(name, help), Counter.class);
+	}
+
+	public static Gauge gauge(String name, String help) {
+		return register(new Gauge(name, help), Gauge.class);
+	}
+
+	public static void gauge(String name, String help, Source source) {
+		register(new SourceGauge(name, help, source), SourceGauge.class);
+	}
+
+	public static Histogram histogram(String name, String help) {
+		return register(new Histogram(name, help), Histogram.class);
+	}
+
+	// Every registered metric in the Prometheus text exposition format
+	public static String scrape() {
+		Metric all[];
+		synchronized (Metrics.class) {
+			all = metrics.toArray(new Metric[metrics.size()]);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (Metric m : all) {
+			sb.append("# HELP ").append(m.name).append(' ').append(m.help).append('\n');
+			sb.append("# TYPE ").append(m.name).append(' ').append(m.type()).append('\n');
+			try {
+				m.write(sb);
+			} catch (RuntimeException e) {
+				// a source that fails shouldn't break the whole scrape
+				sb.append("# ").append(m.name).append(" failed; ").append(e.getMessage()).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+}
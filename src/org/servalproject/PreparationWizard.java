@@ -28,6 +28,7 @@ package org.servalproject;
 import java.io.IOException;
 
 import org.servalproject.shell.Shell;
+import org.servalproject.system.ChipsetDetection;
 import org.servalproject.system.LogOutput;
 import org.servalproject.system.NetworkManager;
 import org.servalproject.system.WifiControl;
@@ -52,6 +53,8 @@ public class PreparationWizard extends Activity implements LogOutput,
 
 	protected static final int DISMISS_PROGRESS_DIALOG = 0;
 	protected static final int CREATE_PROGRESS_DIALOG = 1;
+	// walk the filesystem for wifi modules again, instead of using the cached scan
+	public static final String EXTRA_RESCAN = "rescan";
 	private TextView status;
 	private Button done;
 	private ServalBatPhoneApplication app;
@@ -131,7 +134,7 @@ public class PreparationWizard extends Activity implements LogOutput,
 			log("Starting root shell");
 
 			try {
-				rootShell = Shell.startRootShell();
+				rootShell = Shell.getRootShell();
 				app.coretask.rootTested(true);
 			} catch (IOException e) {
 				app.coretask.rootTested(false);
@@ -142,6 +145,8 @@ public class PreparationWizard extends Activity implements LogOutput,
 		case 2:
 
 			try {
+				if (getIntent().getBooleanExtra(EXTRA_RESCAN, false))
+					ChipsetDetection.getDetection().rescan();
 				control.testAdhoc(rootShell, this);
 				complete();
 			} catch (IOException e) {
@@ -153,12 +158,17 @@ public class PreparationWizard extends Activity implements LogOutput,
 	private void complete() {
 		if (rootShell != null) {
 			try {
-				rootShell.waitFor();
-			} catch (IOException e) {
-				Log.e(TAG, e.getMessage(), e);
+				// let the last test command finish before giving up the shell
+				rootShell.waitForCommands();
 			} catch (InterruptedException e) {
 				Log.e(TAG, e.getMessage(), e);
 			}
+			try {
+				rootShell.release();
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+			rootShell = null;
 		}
 
 		wakeLock.release();
@@ -56,6 +56,7 @@ import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.AssetManager;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
@@ -81,6 +82,15 @@ public class RequestThread extends Thread {
 		MIME_TYPES.put(".apk", "application/vnd.android.package-archive");
 	}
 
+	private static final Metrics.Counter requests = Metrics.counter(
+			"web_requests_total", "HTTP requests received");
+	private static final Metrics.Counter errors = Metrics.counter(
+			"web_errors_total", "HTTP requests that failed");
+	private static final Metrics.Counter bytesSent = Metrics.counter(
+			"web_download_bytes_total", "File and asset bytes served");
+	private static final Metrics.Histogram duration = Metrics.histogram(
+			"web_request_duration_ms", "Time taken to serve each HTTP request");
+
 	public RequestThread(Socket socket) {
         _socket = socket;
     }
@@ -102,7 +112,8 @@ public class RequestThread extends Thread {
 				((contentLength != -1) ? "Content-Length: " + contentLength
 						+ "\n" : "") +
 				"Last-modified: " + new Date(lastModified).toString() + "\n\n";
-		Log.v("BatPhone", "Returning header\n" + header);
+		if (EventLog.V)
+			EventLog.v("BatPhone", "Returning header\n" + header);
 		writeString(out, header);
     }
 
@@ -193,6 +204,7 @@ public class RequestThread extends Thread {
 		BufferedReader in = null;
 		OutputStream out = null;
 		InputStream content = null;
+		long started = SystemClock.elapsedRealtime();
 
 		try {
 			_socket.setSoTimeout(30000);
@@ -210,15 +222,26 @@ public class RequestThread extends Thread {
 				throw new HTTPException(500, "Invalid Method.");
 			}
 			String path = request.substring(4, request.length() - 9);
-			Log.v("BatPhone", request);
+			requests.inc();
+			if (EventLog.V)
+				EventLog.v("BatPhone", request);
 			while (!request.equals("")) {
 				request = in.readLine();
-				Log.v("BatPhone", request);
+				if (EventLog.V)
+					EventLog.v("BatPhone", request);
 			}
 			String contentType = null;
 			long contentLength = -1;
 			long contentModified = System.currentTimeMillis();
 
+			if (path.equals("/metrics")) {
+				String metrics = Metrics.scrape();
+				sendHeader(out, 200, "text/plain; version=0.0.4", metrics.length(),
+						System.currentTimeMillis());
+				writeString(out, metrics);
+				return;
+			}
+
 			if (path.equals("/packages")) {
 				listPackages(path, out);
 				return;
@@ -235,7 +258,8 @@ public class RequestThread extends Thread {
 				File file = new File(appInfo.sourceDir).getCanonicalFile();
 				if (!file.exists())
 					throw new HTTPException(404, "File Not Found.");
-				Log.v("BatPhone", "Serving file " + file);
+				if (EventLog.V)
+					EventLog.v("BatPhone", "Serving file " + file);
 
 				contentType = MIME_TYPES.get(".apk");
 				contentLength = file.length();
@@ -256,7 +280,8 @@ public class RequestThread extends Thread {
 					contentType = MIME_TYPES.get(path
 							.substring(ext).toLowerCase());
 				content = am.open(path.substring(1));
-				Log.v("BatPhone", "Serving asset " + path.substring(1));
+				if (EventLog.V)
+					EventLog.v("BatPhone", "Serving asset " + path.substring(1));
 			}
 
 			if (content == null)
@@ -269,31 +294,37 @@ public class RequestThread extends Thread {
 
 			byte[] buffer = new byte[256];
 			int bytesRead;
+			long total = 0;
 			while ((bytesRead = content.read(buffer)) != -1) {
-				Log.v("BatPhone", "read " + bytesRead + " bytes");
 				if (bytesRead > 0) {
 					out.write(buffer, 0, bytesRead);
-					Log.v("BatPhone", "written");
+					total += bytesRead;
 				}
 			}
+			bytesSent.add(total);
 			_socket.shutdownInput();
 			_socket.shutdownOutput();
-			Log.v("BatPhone", "Done");
+			if (EventLog.V)
+				EventLog.v("BatPhone", "Done, bytes written", total);
 		} catch (NameNotFoundException e) {
+			errors.inc();
 			try {
 				sendError(out, 404, "File Not Found.");
 			} catch (IOException e1) {
 				Log.v("BatPhone", e1.getMessage(), e1);
 			}
 		} catch (HTTPException e) {
+			errors.inc();
 			try {
 				sendError(out, e.code, e.getMessage());
 			} catch (IOException e1) {
 				Log.v("BatPhone", e1.getMessage(), e1);
 			}
 		} catch (IOException e) {
+			errors.inc();
 			Log.v("BatPhone", e.getMessage(), e);
 		} catch (Exception e) {
+			errors.inc();
 			Log.v("BatPhone", e.getMessage(), e);
 			try {
 				sendError(out, 500, e.getMessage());
@@ -313,6 +344,7 @@ public class RequestThread extends Thread {
 				} catch (IOException e1) {
 				}
 			}
+			duration.record(SystemClock.elapsedRealtime() - started);
 		}
     }
 
@@ -48,7 +48,6 @@ import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.StrictMode;
@@ -60,6 +59,7 @@ import android.view.View;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import org.servalproject.BackgroundLanes.Lane;
 import org.servalproject.account.AccountService;
 import org.servalproject.batphone.CallHandler;
 import org.servalproject.rhizome.MeshMS;
@@ -71,6 +71,7 @@ import org.servalproject.servaldna.ServalDFailureException;
 import org.servalproject.servaldna.ServerControl;
 import org.servalproject.servaldna.keyring.KeyringIdentity;
 import org.servalproject.shell.Shell;
+import org.servalproject.system.AssetInstaller;
 import org.servalproject.system.CoreTask;
 import org.servalproject.system.NetworkManager;
 
@@ -110,9 +111,10 @@ public class ServalBatPhoneApplication extends Application {
 	public Control controlService = null;
     public MeshMS meshMS;
 	public ServalD server;
-	private Handler backgroundHandler;
-	private HandlerThread backgroundThread;
-	public SimpleWebServer webServer;
+	private BackgroundLanes background;
+	public volatile SimpleWebServer webServer;
+	public final DeferredWork deferredWork = new DeferredWork(this);
+	public final TimingWheel timers = new TimingWheel();
 
 	public static String version="Unknown";
 	public static long lastModified;
@@ -147,12 +149,30 @@ public class ServalBatPhoneApplication extends Application {
 	private Runnable startup = new Runnable() {
 		@Override
 		public void run() {
+			SpanTracer.Span span = SpanTracer.startup.begin("startup");
+			try {
+				startup();
+			}finally{
+				span.end();
+				// a successful startup writes the trace once the remaining steps are complete
+				if (state == State.Broken)
+					writeStartupTrace();
+			}
+		}
+
+		private void startup(){
 			// make sure any previous call notification is cleared as it obviously can't work now.
 			NotificationManager notify = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
 			notify.cancel("Call", ServalBatPhoneApplication.NOTIFY_CALL);
 
-			if (state == State.Upgrading || state == State.Installing)
-				installFiles();
+			if (state == State.Upgrading || state == State.Installing) {
+				SpanTracer.Span span = SpanTracer.startup.begin("installFiles");
+				try {
+					installFiles();
+				} finally {
+					span.end();
+				}
+			}
 			if (state == State.Upgrading)
 				setState(State.Starting);
 
@@ -164,21 +184,37 @@ public class ServalBatPhoneApplication extends Application {
 
 				// roll a new restful api password, partly so we only parse config once on the critical path for startup
 				// partly for slightly better security
-				String restfulPassword = new BigInteger(130, new SecureRandom()).toString(32);
-				ServalDCommand.configActions(
-						ServalDCommand.ConfigAction.set, "api.restful.users." + ServerControl.restfulUsername + ".password", restfulPassword,
-						ServalDCommand.ConfigAction.set, "interfaces.0.match", "eth0,tiwlan0,wlan0,wl0.1,tiap0",
-						ServalDCommand.ConfigAction.set, "interfaces.0.default_route", "on",
-						ServalDCommand.ConfigAction.set, "interfaces.0.exclude", "on", // disable interface
-						ServalDCommand.ConfigAction.set, "mdp.enable_inet", "on",
-						ServalDCommand.ConfigAction.set, "rhizome.enable", "off"
-				);
+				SpanTracer.Span span = SpanTracer.startup.begin("configActions");
+				try {
+					String restfulPassword = new BigInteger(130, new SecureRandom()).toString(32);
+					ServalDCommand.configActions(
+							ServalDCommand.ConfigAction.set, "api.restful.users." + ServerControl.restfulUsername + ".password", restfulPassword,
+							ServalDCommand.ConfigAction.set, "interfaces.0.match", "eth0,tiwlan0,wlan0,wl0.1,tiap0",
+							ServalDCommand.ConfigAction.set, "interfaces.0.default_route", "on",
+							ServalDCommand.ConfigAction.set, "interfaces.0.exclude", "on", // disable interface
+							ServalDCommand.ConfigAction.set, "mdp.enable_inet", "on",
+							ServalDCommand.ConfigAction.set, "rhizome.enable", "off"
+					);
+				} finally {
+					span.end();
+				}
 
 				// make sure daemon thread is running
-				server = ServalD.getServer(null, ServalBatPhoneApplication.this);
-				server.start();
+				span = SpanTracer.startup.begin("server.start");
+				try {
+					server = ServalD.getServer(null, ServalBatPhoneApplication.this);
+					server.start();
+				} finally {
+					span.end();
+				}
 
-				KeyringIdentity id = server.getIdentity();
+				KeyringIdentity id;
+				span = SpanTracer.startup.begin("getIdentity");
+				try {
+					id = server.getIdentity();
+				} finally {
+					span.end();
+				}
 
 				if (state == State.Installing){
 					// note, the order is important here,
@@ -217,17 +253,35 @@ public class ServalBatPhoneApplication extends Application {
 		}
 	};
 
+	void writeStartupTrace(){
+		SpanTracer.startup.writeJson(new File(getFilesDir(), "startup-trace.json"));
+	}
+
 	// some final startup steps that can run without preventing the user from interacting with the application
 	public void startupComplete(final KeyringIdentity identity){
 
 		setState(State.Running);
 
-		runOnBackgroundThread(new Runnable() {
+		runOnBackgroundThread(Lane.Network, new Runnable() {
 			@Override
 			public void run() {
+				SpanTracer.Span complete = SpanTracer.startup.begin("startupComplete");
+				try{
+					completeStartup(identity);
+				}finally{
+					complete.end();
+					writeStartupTrace();
+				}
+			}
 
+			private void completeStartup(KeyringIdentity identity){
 				// initialise the MeshMS api to track when new messages arrive for this identity
-				meshMS = new MeshMS(ServalBatPhoneApplication.this, identity.sid);
+				SpanTracer.Span span = SpanTracer.startup.begin("MeshMS");
+				try {
+					meshMS = new MeshMS(ServalBatPhoneApplication.this, identity.sid);
+				} finally {
+					span.end();
+				}
 
 				// notify 3rd party software of our details
 				Intent intent = new Intent("org.servalproject.SET_PRIMARY");
@@ -236,7 +290,13 @@ public class ServalBatPhoneApplication extends Application {
 				ServalBatPhoneApplication.this.sendStickyBroadcast(intent);
 
 				// configure the rhizome store path correctly
-				boolean rhizomeEnabled = Rhizome.setRhizomeEnabled();
+				boolean rhizomeEnabled;
+				span = SpanTracer.startup.begin("setRhizomeEnabled");
+				try {
+					rhizomeEnabled = Rhizome.setRhizomeEnabled();
+				} finally {
+					span.end();
+				}
 
 				Editor ed = settings.edit();
 				// remove legacy ssid preference values
@@ -252,18 +312,50 @@ public class ServalBatPhoneApplication extends Application {
 						+ lastModified);
 
 				// start tracking network interface changes, may result in networking being enabled.
-				nm = NetworkManager.createNetworkManager(ServalBatPhoneApplication.this);
-
-				// start small web server for P2P apk installs
+				span = SpanTracer.startup.begin("createNetworkManager");
 				try {
-					webServer = new SimpleWebServer(8080, 8150);
-				} catch (IOException e) {
-					Log.e(TAG, e.getMessage(), e);
+					nm = NetworkManager.createNetworkManager(ServalBatPhoneApplication.this);
+				} finally {
+					span.end();
 				}
 
-				// try to seed the rhizome store with this apk to help peers auto upgrade
-				if (rhizomeEnabled && ourApk != null && !"".equals(getString(R.string.manifest_id))
-							&& settings.getString("importedApk", "") != version) {
+				ed.commit();
+
+				// everything else can wait until we are up and running on the mesh
+				deferStartupWork(rhizomeEnabled);
+				deferredWork.start();
+			}
+		}, 0);
+	}
+
+	// normally deferred until after startup, but started sooner if someone wants to share the app
+	public synchronized SimpleWebServer startWebServer(){
+		if (webServer == null) {
+			try {
+				webServer = new SimpleWebServer(8080, 8150);
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+		return webServer;
+	}
+
+	private void deferStartupWork(final boolean rhizomeEnabled){
+		// start small web server for P2P apk installs
+		deferredWork.post(new DeferredWork.Task("SimpleWebServer", DeferredWork.PRIORITY_NORMAL) {
+			@Override
+			public void run() {
+				startWebServer();
+			}
+		});
+
+		// try to seed the rhizome store with this apk to help peers auto upgrade
+		if (rhizomeEnabled && ourApk != null && !"".equals(getString(R.string.manifest_id))
+				&& settings.getString("importedApk", "") != version) {
+			deferredWork.post(new DeferredWork.Task("rhizomeImportZipBundle", DeferredWork.PRIORITY_LOW) {
+				@Override
+				public void run() {
+					Editor ed = settings.edit();
 					try {
 						ServalDCommand.ManifestResult r = ServalDCommand.rhizomeImportZipBundle(ourApk);
 
@@ -274,9 +366,14 @@ public class ServalBatPhoneApplication extends Application {
 					}
 					// remember that we tried, success or failure
 					ed.putString("importedApk", version);
+					ed.commit();
 				}
-				ed.commit();
+			});
+		}
 
+		deferredWork.post(new DeferredWork.Task("checkUpgrade", DeferredWork.PRIORITY_HIGH) {
+			@Override
+			public void run() {
 				try{
 					// if we still have an extracted upgrade apk, prompt to install it
 					String sBundleId = getString(R.string.manifest_id);
@@ -290,7 +387,6 @@ public class ServalBatPhoneApplication extends Application {
 				}catch (Exception ex){
 					Log.e(TAG, ex.getMessage(), ex);
 				}
-
 			}
 		});
 	}
@@ -310,9 +406,7 @@ public class ServalBatPhoneApplication extends Application {
 		if (Looper.myLooper() == null)
 			Looper.prepare();
 
-		backgroundThread = new HandlerThread("Background");
-		backgroundThread.start();
-		backgroundHandler = new Handler(backgroundThread.getLooper());
+		background = new BackgroundLanes();
 
 
 		// Preferences
@@ -322,19 +416,20 @@ public class ServalBatPhoneApplication extends Application {
 		coretask = new CoreTask();
 		File appData = getFilesDir().getParentFile();
 		coretask.setPath(appData.getAbsolutePath());
+		EventLog.start(new File(appData, "var/log"));
 		ServalDCommand.setInstancePath(new File(appData, "var/serval-node").getAbsolutePath());
 
 		installRequired();
 
 		if (state != State.NotInstalled)
-			runOnBackgroundThread(startup);
+			runOnBackgroundThread(Lane.Network, startup, 0);
 	}
 
 	public void startBackgroundInstall(){
 		if (state != State.NotInstalled)
 			return;
 		setState(State.Installing);
-		runOnBackgroundThread(startup);
+		runOnBackgroundThread(Lane.Network, startup, 0);
 	}
 
 	private String getMajorMinorVersion(String version){
@@ -364,6 +459,7 @@ public class ServalBatPhoneApplication extends Application {
 			ApplicationInfo info = pm.getApplicationInfo(getPackageName(), 0);
 
 			isDebuggable = info !=null && ((info.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+			EventLog.setLevel(isDebuggable ? Log.VERBOSE : Log.INFO);
 		}catch(Exception e){
 			Log.e(TAG, e.getMessage(), e);
 		}
@@ -631,8 +727,8 @@ public class ServalBatPhoneApplication extends Application {
 				this.coretask.writeFile(oldTree, m.open("manifest"), 0);
 
 				Log.v(TAG, "Extracting serval.zip");
-				this.coretask.extractZip(shell, m.open("serval.zip"),
-						new File(this.coretask.DATA_FILE_PATH), extractFiles, pie);
+				new AssetInstaller(folder, extractFiles, pie).install(
+						m.open("serval.zip"), new File(folder, "serval.zip.tmp"));
 			}
 
 			File storage = getStorageFolder();
@@ -697,11 +793,18 @@ public class ServalBatPhoneApplication extends Application {
 	}
 
 	public void runOnBackgroundThread(Runnable r){
-		runOnBackgroundThread(r, 0);
+		runOnBackgroundThread(Lane.Bulk, r, 0);
 	}
 	public void runOnBackgroundThread(Runnable r, int delay){
-		backgroundHandler.removeCallbacks(r);
-		backgroundHandler.postDelayed(r, delay);
+		runOnBackgroundThread(Lane.Bulk, r, delay);
+	}
+	// If r is already queued on this lane, it is rescheduled rather than run twice
+	public void runOnBackgroundThread(Lane lane, Runnable r, int delay){
+		background.post(lane, r, delay);
+	}
+
+	public String getBackgroundStats(){
+		return background.dumpStats();
 	}
 
 	private Toast toast = null;
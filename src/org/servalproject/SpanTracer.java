@@ -0,0 +1,152 @@
+package org.servalproject;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Records named, nested spans of time, so we can see where slow operations like startup spend their time.
+ * Timestamps come from System.nanoTime, which is monotonic.
+ * The trace can be written out in chrome's trace event format (load it in chrome://tracing).
+ */
+public class SpanTracer {
+	private static final String TAG = "SpanTracer";
+
+	public static final SpanTracer startup = new SpanTracer("startup", 256);
+
+	public final String name;
+	private final long origin = System.nanoTime();
+	private final String names[];
+	private final long starts[];
+	private final long durations[];
+	private final long threads[];
+	private final String threadNames[];
+	private final int depths[];
+	private int count;
+	private int dropped;
+
+	private final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+
+	public SpanTracer(String name, int capacity) {
+		this.name = name;
+		names = new String[capacity];
+		starts = new long[capacity];
+		durations = new long[capacity];
+		threads = new long[capacity];
+		threadNames = new String[capacity];
+		depths = new int[capacity];
+	}
+
+	public class Span {
+		private final String name;
+		private final long start;
+		private final int level;
+		private boolean ended = false;
+
+		private Span(String name) {
+			this.name = name;
+			this.level = depth.get()[0]++;
+			this.start = System.nanoTime();
+		}
+
+		// returns the duration of this span in ms
+		public long end() {
+			long end = System.nanoTime();
+			if (ended)
+				return (end - start) / 1000000;
+			ended = true;
+			depth.get()[0] = level;
+			record(this, end);
+			return (end - start) / 1000000;
+		}
+	}
+
+	public Span begin(String name) {
+		return new Span(name);
+	}
+
+	private void record(Span span, long end) {
+		record(span.name, span.start, end, span.level);
+	}
+
+	// record a span that didn't start and end on the same thread, using System.nanoTime() values
+	public void add(String name, long start, long end) {
+		record(name, start, end, 0);
+	}
+
+	private synchronized void record(String spanName, long start, long end, int level) {
+		long ms = (end - start) / 1000000;
+		Log.v(TAG, this.name + ": " + spanName + " took " + ms + "ms");
+		if (count >= names.length) {
+			dropped++;
+			return;
+		}
+		Thread t = Thread.currentThread();
+		names[count] = spanName;
+		starts[count] = start - origin;
+		durations[count] = end - start;
+		threads[count] = t.getId();
+		threadNames[count] = t.getName();
+		depths[count] = level;
+		count++;
+	}
+
+	private static void quote(StringBuilder sb, String value) {
+		sb.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\').append(c);
+			else if (c < 0x20)
+				sb.append(String.format("\\u%04x", (int) c));
+			else
+				sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	public synchronized String toJson() {
+		StringBuilder sb = new StringBuilder("{\"traceEvents\":[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0)
+				sb.append(',');
+			sb.append("\n{\"name\":");
+			quote(sb, names[i]);
+			sb.append(",\"cat\":");
+			quote(sb, name);
+			// complete events, with times in microseconds
+			sb.append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(threads[i])
+					.append(",\"ts\":").append(starts[i] / 1000)
+					.append(",\"dur\":").append(durations[i] / 1000)
+					.append(",\"args\":{\"depth\":").append(depths[i])
+					.append(",\"thread\":");
+			quote(sb, threadNames[i]);
+			sb.append("}}");
+		}
+		sb.append("\n],\"otherData\":{\"dropped\":").append(dropped).append("}}\n");
+		return sb.toString();
+	}
+
+	public void writeJson(File file) {
+		try {
+			Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try {
+				out.write(toJson());
+			} finally {
+				out.close();
+			}
+			Log.v(TAG, "Wrote " + name + " trace to " + file.getAbsolutePath());
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+}
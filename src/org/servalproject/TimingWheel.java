@@ -0,0 +1,219 @@
+package org.servalproject;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A hashed timing wheel for the application's timeouts and periodic checks.
+ *
+ * Scheduling and cancelling a timeout are O(1). Deadlines are rounded up to the next
+ * TICK_MS boundary, so timeouts that are due at about the same time fire together
+ * and the CPU wakes once for the whole batch.
+ *
+ * Deadlines use SystemClock.elapsedRealtime(), which keeps counting while the CPU is suspended.
+ * Our own thread can't wake a suspended CPU, so ServalD includes nextDeadline() in the alarm it
+ * sets before the daemon sleeps, and calls wake() when that alarm fires.
+ *
+ * Timeouts run on the wheel's thread and must not block.
+ */
+public class TimingWheel implements Runnable {
+	private static final String TAG = "TimingWheel";
+	static final int TICK_MS = 250;
+	// must be a power of 2, 256 slots of 250ms covers about a minute per revolution
+	private static final int SLOTS = 256;
+	private static final int MASK = SLOTS - 1;
+
+	public static class Timeout {
+		final Runnable task;
+		final String name;
+		private long deadlineTick;
+		private int slot = -1;
+		private Timeout prev;
+		private Timeout next;
+
+		public Timeout(String name, Runnable task) {
+			this.name = name;
+			this.task = task;
+		}
+
+		public boolean isScheduled() {
+			return slot != -1;
+		}
+	}
+
+	public interface DeadlineListener {
+		// called when the earliest deadline moves earlier, with the new deadline
+		void onDeadlineChanged(long deadline);
+	}
+
+	private final Timeout slots[] = new Timeout[SLOTS];
+	private long currentTick = -1;
+	private int count;
+	// the tick our thread is currently waiting for, or Long.MAX_VALUE when idle
+	private long wakeTick = Long.MAX_VALUE;
+	private Thread thread;
+	private DeadlineListener listener;
+
+	// batches of timeouts that have been run, and the total number of timeouts run
+	private long batches;
+	private long fired;
+
+	private static long tick(long elapsed) {
+		// round up, so nothing fires early
+		return (elapsed + TICK_MS - 1) / TICK_MS;
+	}
+
+	public synchronized void setDeadlineListener(DeadlineListener listener) {
+		this.listener = listener;
+	}
+
+	// Run timeout.task after delayMs, replacing any earlier schedule of the same timeout
+	public void schedule(Timeout timeout, int delayMs) {
+		DeadlineListener notify = null;
+		long deadline;
+		synchronized (this) {
+			if (currentTick == -1)
+				currentTick = tick(SystemClock.elapsedRealtime());
+			unlink(timeout);
+			long t = tick(SystemClock.elapsedRealtime() + delayMs);
+			if (t < currentTick)
+				t = currentTick;
+			timeout.deadlineTick = t;
+			int s = (int) (t & MASK);
+			timeout.slot = s;
+			timeout.prev = null;
+			timeout.next = slots[s];
+			if (timeout.next != null)
+				timeout.next.prev = timeout;
+			slots[s] = timeout;
+			count++;
+
+			if (thread == null) {
+				thread = new Thread(this, "TimingWheel");
+				thread.start();
+			}
+			deadline = t * TICK_MS;
+			if (t < wakeTick) {
+				wakeTick = t;
+				this.notifyAll();
+				notify = listener;
+			}
+		}
+		if (notify != null)
+			notify.onDeadlineChanged(deadline);
+	}
+
+	public synchronized void cancel(Timeout timeout) {
+		unlink(timeout);
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.slot == -1)
+			return;
+		if (timeout.prev != null)
+			timeout.prev.next = timeout.next;
+		else
+			slots[timeout.slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.prev = timeout.prev;
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		count--;
+	}
+
+	// the SystemClock.elapsedRealtime() of the next timeout, or -1 if nothing is scheduled
+	public synchronized long nextDeadline() {
+		if (count == 0)
+			return -1;
+		long min = Long.MAX_VALUE;
+		// the first occupied slot usually holds the earliest deadline,
+		// but timeouts more than one revolution away can share a slot
+		for (int i = 0; i < SLOTS; i++) {
+			long t = currentTick + i;
+			for (Timeout o = slots[(int) (t & MASK)]; o != null; o = o.next) {
+				if (o.deadlineTick < min)
+					min = o.deadlineTick;
+			}
+			if (min <= t)
+				break;
+		}
+		return min * TICK_MS;
+	}
+
+	// check the clock now, the CPU may have been suspended
+	public synchronized void wake() {
+		this.notifyAll();
+	}
+
+	public synchronized String getStats() {
+		return count + " scheduled, " + fired + " fired in " + batches + " batches";
+	}
+
+	// collect everything that is due, up to and including nowTick
+	private void expire(long nowTick, List<Timeout> due) {
+		long ticks = nowTick - currentTick + 1;
+		if (ticks > SLOTS)
+			ticks = SLOTS;
+		for (long i = 0; i < ticks; i++) {
+			int s = (int) ((currentTick + i) & MASK);
+			Timeout o = slots[s];
+			while (o != null) {
+				Timeout next = o.next;
+				if (o.deadlineTick <= nowTick) {
+					unlink(o);
+					due.add(o);
+				}
+				o = next;
+			}
+		}
+		currentTick = nowTick + 1;
+	}
+
+	@Override
+	public void run() {
+		List<Timeout> due = new ArrayList<Timeout>();
+		while (true) {
+			synchronized (this) {
+				long now = SystemClock.elapsedRealtime();
+				long nowTick = now / TICK_MS;
+				if (nowTick < currentTick || count == 0) {
+					long deadline = count == 0 ? -1 : nextDeadline();
+					try {
+						if (deadline == -1) {
+							wakeTick = Long.MAX_VALUE;
+							this.wait();
+						} else {
+							wakeTick = deadline / TICK_MS;
+							if (deadline > now)
+								this.wait(deadline - now);
+						}
+					} catch (InterruptedException e) {
+						Log.e(TAG, e.getMessage(), e);
+					}
+					continue;
+				}
+				expire(nowTick, due);
+				// anything scheduled from here is earlier than our next wakeup
+				wakeTick = Long.MAX_VALUE;
+				if (due.isEmpty())
+					continue;
+				batches++;
+				fired += due.size();
+			}
+
+			for (int i = 0; i < due.size(); i++) {
+				Timeout timeout = due.get(i);
+				try {
+					timeout.task.run();
+				} catch (Exception e) {
+					Log.e(TAG, timeout.name + " failed; " + e.getMessage(), e);
+				}
+			}
+			due.clear();
+		}
+	}
+}
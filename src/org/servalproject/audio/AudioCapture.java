@@ -0,0 +1,24 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+
+/**
+ * A source of PCM audio for AudioRecordStream; the microphone on a phone, or a file in a simulation.
+ */
+public interface AudioCapture {
+	int getSampleRate();
+
+	// bytes per sample, across all channels
+	int getFrameSize();
+
+	// bytes the device can hold before it starts throwing audio away
+	int getBufferSize();
+
+	void start() throws IOException;
+
+	// block until len bytes have been captured, returns the bytes read or a negative error
+	int read(byte buff[], int offset, int len);
+
+	// stop capturing and release the device
+	void stop();
+}
@@ -18,6 +18,13 @@ public class AudioPlaybackStream extends AudioStream {
 	private byte silence[];
 	private AudioManager am;
 
+	// comfort noise, shaped to the quietest audio we've played recently
+	private static final int MAX_COMFORT_NOISE = 300;
+	private byte noise[];
+	private int noiseLevel = -1;
+	private int seed = 1;
+	private int lastNoise;
+
 	public AudioPlaybackStream(AudioManager am,
 			int streamType, int sampleRateInHz,
 			int channelConfig, int audioFormat, int minimumBufferSize)
@@ -56,6 +63,7 @@ public class AudioPlaybackStream extends AudioStream {
 
 		this.bufferSize = bufferSize;
 		silence = new byte[bufferSize];
+		noise = new byte[bufferSize];
 		writeSilence(silence.length);
 		this.audioTrack.play();
 	}
@@ -88,7 +96,46 @@ public class AudioPlaybackStream extends AudioStream {
 	@Override
 	public void missed(int duration, boolean missing) throws IOException {
 		int silenceDataLength = duration * frameSize * samplesPerMs;
-		writeSilence(silenceDataLength);
+		if (missing || noiseLevel <= 0 || frameSize != 2) {
+			writeSilence(silenceDataLength);
+			return;
+		}
+		while (silenceDataLength > 0) {
+			int len = silenceDataLength > noise.length ? noise.length
+					: silenceDataLength;
+			generateNoise(len);
+			writeAll(noise, 0, len);
+			silenceDataLength -= len;
+		}
+	}
+
+	private void generateNoise(int bytes) {
+		int level = noiseLevel > MAX_COMFORT_NOISE ? MAX_COMFORT_NOISE : noiseLevel;
+		for (int i = 0; i + 1 < bytes; i += 2) {
+			seed = seed * 1103515245 + 12345;
+			// uniform in [-level, level], then low pass so it sounds less like hiss
+			int white = (int) (((long) (seed >> 16) * level) >> 14);
+			lastNoise = (lastNoise + white) >> 1;
+			noise[i] = (byte) lastNoise;
+			noise[i + 1] = (byte) (lastNoise >> 8);
+		}
+	}
+
+	// follow the quietest audio we play, as an estimate of the other party's background noise
+	private void measureLevel(AudioBuffer buff) {
+		int samples = buff.dataLen / 2;
+		if (samples == 0 || frameSize != 2)
+			return;
+		long sum = 0;
+		for (int i = 0; i < samples; i++) {
+			int sample = (short) ((buff.buff[i * 2] & 0xFF) | (buff.buff[i * 2 + 1] << 8));
+			sum += sample < 0 ? -sample : sample;
+		}
+		int level = (int) (sum / samples);
+		if (noiseLevel < 0 || level < noiseLevel)
+			noiseLevel = level;
+		else
+			noiseLevel += ((level - noiseLevel) >> 7) + 1;
 	}
 
 	private void writeAll(byte buffer[], int offset, int count)
@@ -111,6 +158,7 @@ public class AudioPlaybackStream extends AudioStream {
 		try {
 			if (buff.codec != VoMP.Codec.Signed16)
 				throw new IOException("Unsupported codec " + buff.codec);
+			measureLevel(buff);
 			writeAll(buff.buff, 0, buff.dataLen);
 			int ret = buff.dataLen / (this.frameSize * this.samplesPerMs);
 			return ret;
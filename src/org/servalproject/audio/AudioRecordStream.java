@@ -3,99 +3,124 @@ package org.servalproject.audio;
 import java.io.EOFException;
 import java.io.IOException;
 
+import org.servalproject.Metrics;
 import org.servalproject.batphone.VoMP;
 
-import android.media.AudioFormat;
-import android.media.AudioRecord;
 import android.os.Process;
-import android.os.SystemClock;
 import android.util.Log;
 
 public class AudioRecordStream implements Runnable {
-	private final AudioRecord audioRecorder;
-	private int samplesPerMs;
-	private int frameSize;
+	private final AudioCapture capture;
+	private final Clock clock;
+	private final int samplesPerMs;
+	private final int frameSize;
 	private final int audioBlockSize;
 	private final int audioMaxAudioBlock;
-	private AudioStream stream;
-	private boolean stopped = false;
+	private volatile AudioStream stream;
+	private PacketisationController packetisation;
+	private final int recordBufferSize;
+	private volatile boolean stopped = false;
+	private long started;
+	// a filled buffer waiting for the sender thread, and when its newest audio was captured
+	private AudioBuffer pending;
+	private long pendingDue;
+	private Thread sender;
+	private int overruns;
+	private int overrunMs;
 	private static final String TAG = "AudioRecordStream";
 
-	public AudioRecordStream(AudioStream stream,
-			int audioSource, int sampleRateInHz,
-			int channelConfig, int audioFormat, int minimumBufferSize,
-			int audioBlockSize, int audioMaxAudioBlock)
-			throws IOException {
+	private static final Metrics.Counter overrun = Metrics.counter(
+			"audio_capture_overruns_total", "Times the recorder lost audio because we fell behind");
+	private static final Metrics.Histogram latency = Metrics.histogram(
+			"audio_capture_latency_ms", "Time from audio being captured to it being sent");
 
+	public AudioRecordStream(AudioStream stream, AudioCapture capture,
+			int audioBlockSize, int audioMaxAudioBlock) {
+		this(stream, capture, audioBlockSize, audioMaxAudioBlock, Clock.SYSTEM);
+		startSender();
+	}
+
+	public AudioRecordStream(AudioStream stream, AudioCapture capture,
+			int audioBlockSize, int audioMaxAudioBlock, Clock clock) {
 		this.stream = stream;
+		this.capture = capture;
+		this.clock = clock;
 		this.audioBlockSize = audioBlockSize;
 		this.audioMaxAudioBlock = audioMaxAudioBlock;
-		this.samplesPerMs = sampleRateInHz / 1000;
-
-		int frameSize = 0;
-		if ((channelConfig & AudioFormat.CHANNEL_IN_MONO) != 0) {
-			frameSize = 1;
-			Log.v(TAG, "Mono");
-		} else if ((channelConfig & AudioFormat.CHANNEL_IN_STEREO) != 0) {
-			frameSize = 2;
-			Log.v(TAG, "Stereo");
-		}
-		if (audioFormat == AudioFormat.ENCODING_PCM_16BIT)
-			frameSize *= 2;
-		this.frameSize = frameSize;
-
-		int bufferSize = AudioRecord.getMinBufferSize(sampleRateInHz,
-				channelConfig, audioFormat);
-
-		// ensure minimum record buffer
-		if (bufferSize < minimumBufferSize)
-			bufferSize = minimumBufferSize;
-
-		AudioRecord recorder = new AudioRecord(audioSource,
-				sampleRateInHz, channelConfig, audioFormat, bufferSize);
-
-		if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
-			recorder.release();
-			throw new IOException("Audio preparation failed");
-		}
-
-		this.audioRecorder = recorder;
+		this.samplesPerMs = capture.getSampleRate() / 1000;
+		this.frameSize = capture.getFrameSize();
+		this.recordBufferSize = capture.getBufferSize();
 	}
 
 	public void setStream(AudioStream stream) {
 		this.stream = stream;
 	}
 
-	public void close() {
+	// decides how much audio to send in each buffer, otherwise we send one audio block at a time
+	public void setPacketisation(PacketisationController packetisation) {
+		this.packetisation = packetisation;
+	}
+
+	// Encode and send buffers from a separate thread, so the capture thread only waits for the
+	// recorder. A simulation with a virtual clock can leave it unstarted, then run() sends each
+	// buffer itself.
+	public synchronized void startSender() {
+		if (sender != null)
+			return;
+		sender = new Thread(send, "RecordingSender");
+		sender.start();
+	}
+
+	public synchronized void close() {
 		stopped = true;
+		notifyAll();
 	}
 
+	// times the recorder lost audio because we didn't read it in time
+	public int getOverruns() {
+		return overruns;
+	}
+
+	// ms of audio lost to overruns
+	public int getOverrunMs() {
+		return overrunMs;
+	}
 
 	@Override
 	public void run() {
 		try {
-			Process.setThreadPriority(Process.THREAD_PRIORITY_LESS_FAVORABLE);
+			Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 			Log.v(TAG, "Entering record thread");
+			// allocated before we start; one being filled, one waiting for the sender and one
+			// being encoded and sent. We only wait for the sender when it falls two buffers
+			// behind, then the recorder's own buffer has to cover it, and the overrun check below
+			// tells us when it wasn't enough.
 			BufferList bufferList = new BufferList(audioMaxAudioBlock);
+			bufferList.allocate(3);
 
 			AudioBuffer buff = null;
-			int timestamp = 0;
+			// everything is timed by the number of samples we have captured, never the clock
+			long captured = 0;
 			int sequence = 0;
-			audioRecorder.startRecording();
-			long readStarted = 0;
+			int samplesPerBlock = audioBlockSize / frameSize;
+			int blockMs = samplesPerBlock / samplesPerMs;
+			int bufferMs = recordBufferSize / (frameSize * samplesPerMs);
+			// how far the clock is ahead of the audio we've read, when we are keeping up,
+			// in 1/256ths of a ms so it can follow drift of less than a ms per block
+			long baseline = Long.MIN_VALUE;
+			capture.start();
+			started = clock.nanoTime();
 
 			while (!stopped) {
 				if (buff == null) {
 					buff = bufferList.getBuffer();
 					buff.codec = VoMP.Codec.Signed16;
-					buff.sampleStart = timestamp;
+					buff.sampleStart = (int) (captured / samplesPerMs);
 					buff.sequence = sequence++;
-					readStarted = SystemClock.elapsedRealtime();
 				}
 
 				int readSize = audioBlockSize - (buff.dataLen % audioBlockSize);
-				int read = audioRecorder
-						.read(buff.buff, buff.dataLen, readSize);
+				int read = capture.read(buff.buff, buff.dataLen, readSize);
 				if (read < 0)
 					throw new EOFException(
 							"Reading from the audiorecorder, (byte["
@@ -104,30 +129,111 @@ public class AudioRecordStream implements Runnable {
 									+ audioBlockSize + ")");
 
 				buff.dataLen += read;
-				if (buff.dataLen % audioBlockSize == 0
-						&& buff.dataLen > 0) {
-					if (stream != null) {
-						int readDuration = (int) (SystemClock.elapsedRealtime() - readStarted);
-						if (readDuration > 20
-								|| buff.dataLen >= buff.buff.length) {
-							int sampleDuration = buff.dataLen
-									/ (frameSize * samplesPerMs);
-							timestamp += sampleDuration;
-							stream.write(buff);
-							buff = null;
-						}
-					} else {
-						buff.dataLen = 0;
-						readStarted = SystemClock.elapsedRealtime();
-					}
+				captured += read / frameSize;
+				if (buff.dataLen % audioBlockSize != 0 || buff.dataLen == 0)
+					continue;
+
+				// if we fell further behind than the recorder can hold, it threw some audio away.
+				// Skip our timestamps over the lost blocks, so the other party can tell.
+				long lag = (clock.nanoTime() - started) / 1000000 - captured / samplesPerMs;
+				long behind = lag - (baseline >> 8);
+				if (baseline == Long.MIN_VALUE || (lag << 8) < baseline) {
+					baseline = lag << 8;
+				} else if (behind > bufferMs + blockMs) {
+					int lost = (int) ((behind - bufferMs + blockMs / 2) / blockMs * blockMs);
+					overruns++;
+					overrunMs += lost;
+					overrun.inc();
+					captured += lost * samplesPerMs;
+					Log.v(TAG, "Recorder overrun, lost about " + lost + "ms");
+				} else {
+					// follow any slow drift between the audio and system clocks
+					baseline += ((lag << 8) - baseline) >> 8;
+				}
+
+				if (stream == null) {
+					buff.dataLen = 0;
+					buff.sampleStart = (int) (captured / samplesPerMs);
+					continue;
+				}
+				PacketisationController p = packetisation;
+				int packetMs = p == null ? blockMs : p.getPacketDuration();
+				int sampleDuration = buff.dataLen / (frameSize * samplesPerMs);
+				if (sampleDuration >= packetMs
+						|| buff.dataLen + audioBlockSize > buff.buff.length) {
+					queue(buff, captured / samplesPerMs + (baseline >> 8));
+					buff = null;
 				}
 			}
 		} catch (Exception e) {
 			Log.e(TAG, e.getMessage(), e);
 		}
 		Log.v(TAG, "Left record thread");
-		audioRecorder.stop();
-		audioRecorder.release();
+		capture.stop();
+		// let the sender finish
+		close();
+	}
+
+	// hand a filled buffer to the sender, due is when its newest audio was captured, in ms after
+	// we started
+	private void queue(AudioBuffer buff, long due) throws IOException, InterruptedException {
+		synchronized (this) {
+			if (sender != null) {
+				while (pending != null && !stopped)
+					wait();
+				if (stopped) {
+					buff.release();
+					return;
+				}
+				pending = buff;
+				pendingDue = due;
+				notifyAll();
+				return;
+			}
+		}
+		write(buff, due);
 	}
 
+	private void write(AudioBuffer buff, long due) throws IOException {
+		AudioStream s = stream;
+		if (s == null) {
+			buff.release();
+			return;
+		}
+		s.write(buff);
+		// how long the newest audio in that packet waited before we sent it
+		long sent = (clock.nanoTime() - started) / 1000000 - due;
+		latency.record(sent < 0 ? 0 : sent);
+	}
+
+	private final Runnable send = new Runnable() {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO);
+			try {
+				while (true) {
+					AudioBuffer buff;
+					long due;
+					synchronized (AudioRecordStream.this) {
+						while (pending == null && !stopped)
+							AudioRecordStream.this.wait();
+						// send anything still waiting when we're closed
+						if (pending == null)
+							break;
+						buff = pending;
+						due = pendingDue;
+						pending = null;
+						AudioRecordStream.this.notifyAll();
+					}
+					write(buff, due);
+				}
+			} catch (Exception e) {
+				Log.e(TAG, e.getMessage(), e);
+				// the capture thread would only block waiting for us
+				close();
+			}
+			Log.v(TAG, "Left send thread");
+		}
+	};
+
 }
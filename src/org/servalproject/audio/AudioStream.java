@@ -17,6 +17,11 @@ public abstract class AudioStream {
 
 	}
 
+	// play faster or slower than real time, as a percentage, if this stream is able to
+	public void setPlaybackRate(int percent) {
+
+	}
+
 	public abstract int write(AudioBuffer buff)
 			throws IOException;
 
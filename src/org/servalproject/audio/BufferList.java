@@ -16,6 +16,14 @@ public class BufferList {
 		this.mtu = mtu;
 	}
 
+	// allocate buffers now, so we don't have to while audio is flowing
+	public void allocate(int count) {
+		synchronized (reuseList) {
+			for (int i = 0; i < count; i++)
+				reuseList.push(new AudioBuffer(this, mtu));
+		}
+	}
+
 	public AudioBuffer getBuffer() {
 		AudioBuffer buff = null;
 		synchronized (reuseList) {
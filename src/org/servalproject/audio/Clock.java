@@ -0,0 +1,26 @@
+package org.servalproject.audio;
+
+import android.os.SystemClock;
+
+/**
+ * Where the audio path reads the time, so a simulated call can run on a virtual clock.
+ */
+public interface Clock {
+	// monotonic, in ns, like System.nanoTime
+	long nanoTime();
+
+	// ms since boot, like SystemClock.elapsedRealtime. Audio buffers are stamped with this.
+	long elapsedRealtime();
+
+	Clock SYSTEM = new Clock() {
+		@Override
+		public long nanoTime() {
+			return System.nanoTime();
+		}
+
+		@Override
+		public long elapsedRealtime() {
+			return SystemClock.elapsedRealtime();
+		}
+	};
+}
@@ -17,6 +17,10 @@ public abstract class Codec {
 		}
 	}
 
+	// audio has arrived from the other party, encoders may use this to adapt to the link
+	public void onReceived(int sequence, int delayMs) {
+	}
+
 	// if this codec can mask missing audio, generate some
 	public AudioBuffer decode_missing(int duration) {
 		return null;
@@ -4,26 +4,53 @@ import java.io.IOException;
 import java.util.LinkedList;
 import java.util.ListIterator;
 
+import org.servalproject.EventLog;
+import org.servalproject.Metrics;
 import org.servalproject.batphone.VoMP;
 
 import android.os.Process;
-import android.os.SystemClock;
 import android.util.Log;
 
 public class JitterStream extends AudioStream implements Runnable {
 	static final String TAG = "AudioPlayer";
 
+	private static final Metrics.Counter underruns = Metrics.counter(
+			"audio_underruns_total", "Times playback ran out of audio and played silence");
+	private static final Metrics.Counter skipped = Metrics.counter(
+			"audio_missing_total", "Times audio was skipped over because it had not arrived in time");
+	private static final Metrics.Counter late = Metrics.counter(
+			"audio_late_total", "Audio buffers discarded because they arrived after their play time");
+	private static final Metrics.Counter dropped = Metrics.counter(
+			"audio_dropped_total", "Audio dropped to shrink the jitter buffer");
+	private static final Metrics.Histogram delay = Metrics.histogram(
+			"audio_playback_delay_ms", "Time from receiving an audio buffer to playing it");
+
 	static final int MIN_BUFFER = 5000000;
 	static final int MAX_JITTER = 1500;
+	// how far from the recommended delay we can be before changing playback speed
+	static final int STRETCH_THRESHOLD = 40;
+	// each percent of speed change for this many ms we are away from the recommended delay
+	static final int STRETCH_STEP = 20;
+	// only throw away audio when we are too far behind to catch up by playing faster
+	static final int MAX_BACKLOG = 500;
 	boolean playing = false;
 
 	private AudioStream output;
+	private final Clock clock;
 	private VoMP.Codec codec;
 
 	private int playbackLatency;
 	private int lastSample = -1;
 	private int lastSampleEnd = -1;
+	private int lastSequence = -1;
+	// silence we've played since the last buffer, because our queue was empty
+	private int fillerMs;
 	private int recommendedJitterDelay;
+	private int playbackRate = 100;
+	private long playbackDelay;
+	// a timeline of what we played, only kept while verbose logging is enabled
+	private boolean trace;
+	private StringBuilder sb;
 	Thread playbackThread;
 
 	// Add packets (primarily) to the the start of the list, play them from the
@@ -35,8 +62,35 @@ public class JitterStream extends AudioStream implements Runnable {
 
 	int lastQueuedSample = -1;
 
+	// what happened to the audio we were given during this call
+	public static class Stats {
+		public int played;
+		public int duplicates;
+		// arrived after we had already played past them
+		public int late;
+		// thrown away to shrink the jitter buffer
+		public int dropped;
+		// gaps in the received audio that we concealed
+		public int concealed;
+		public int concealedMs;
+		// times we ran out of audio altogether
+		public int underruns;
+		public int underrunMs;
+		// gaps the other party didn't send because they weren't talking
+		public int suppressedMs;
+		// audio we played faster or slower than real time
+		public int stretchedMs;
+	}
+
+	public final Stats stats = new Stats();
+
 	public JitterStream(AudioStream output) {
+		this(output, Clock.SYSTEM);
+	}
+
+	public JitterStream(AudioStream output, Clock clock) {
 		this.output = output;
+		this.clock = clock;
 	}
 
 	public void setJitterDelay(int jitterDelay) {
@@ -82,13 +136,14 @@ public class JitterStream extends AudioStream implements Runnable {
 						i.add(buff);
 						return 0;
 					case 0:
-						Log.v(TAG, "Dropping duplicate audio");
+						stats.duplicates++;
+						EventLog.v(TAG, "Dropping duplicate audio");
 						buff.release();
 						return 0;
 					}
 				}
 				// should be unreachable?
-				Log.v(TAG, "???");
+				EventLog.v(TAG, "???");
 				buff.release();
 			}
 		}
@@ -103,6 +158,14 @@ public class JitterStream extends AudioStream implements Runnable {
 		}
 	}
 
+	// accept audio, but leave it to the caller to call playNext(), eg a simulation on a virtual clock
+	public synchronized void startPlayingWithoutThread() {
+		if (playbackThread == null && !playing) {
+			reset();
+			playing = true;
+		}
+	}
+
 	private synchronized void cleanup() {
 		if (output == null || playbackThread != null)
 			return;
@@ -116,168 +179,247 @@ public class JitterStream extends AudioStream implements Runnable {
 		output = null;
 	}
 
-	@Override
-	public void run() {
-
+	// forget where we were, before playing a new stream
+	private void reset() {
 		lastSample = -1;
 		lastSampleEnd = -1;
-		StringBuilder sb = new StringBuilder();
+		lastSequence = -1;
+		fillerMs = 0;
+		playbackRate = 100;
+		playbackDelay = 0;
+		trace = EventLog.V;
+		sb = trace ? new StringBuilder() : null;
+	}
 
+	@Override
+	public void run() {
+		reset();
 		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
 
-		long playbackDelay = 0;
 		while (playing) {
 			try {
-				if (sb.length() >= 128) {
-					Log.v(TAG,
-							"last; " + lastSampleEnd +
-									", upl; "
-									+ playbackLatency
-									+ ", jitter; "
-									+ recommendedJitterDelay
-									+ ", actual; "
-									+ playbackDelay
-									+ ", len; " + queueCount
-									+ ", " + sb.toString());
-					sb.setLength(0);
+				long waitFor = playNext();
+				if (waitFor <= 0)
+					continue;
+				long waitMs = waitFor / 1000000;
+				int waitNs = (int) (waitFor - waitMs * 1000000);
+
+				try {
+					Thread.sleep(waitMs, waitNs);
+				} catch (InterruptedException e) {
 				}
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+		playbackThread = null;
+		cleanup();
+		if (trace && sb.length() > 0)
+			EventLog.v(TAG, sb.toString());
 
-				AudioBuffer buff = null;
-				long now = 0;
-				int generateSilence = 0;
-				boolean missing = true;
-				long audioRunsOutAt;
-
-				synchronized (playList) {
-
-					now = System.nanoTime();
-					playbackLatency = this.output.getBufferDuration();
-					// work out when we must make a decision about playing some
-					// extra silence
-					audioRunsOutAt = now
-							- MIN_BUFFER
-							+ playbackLatency * 1000;
-
-					if (!playList.isEmpty())
-						buff = playList.getFirst();
-
-					if (buff != null) {
-						int silenceGap = buff.sampleStart - lastSampleEnd;
-						playbackDelay = SystemClock.elapsedRealtime()
-								- buff.received + buff.thisDelay;
-
-						int jitterAdjustment = (int) (recommendedJitterDelay - playbackDelay);
-
-						if (silenceGap < 0) {
-							// sample arrived too late, we might get better
-							// audio if we add a little extra latency
-							playList.removeFirst();
-							queueCount--;
-							buff.release();
-							sb.append("L");
-							continue;
-						}
+	}
 
-						// TODO, don't throw away audio if nothing else we
-						// have is currently good enough.
-						if (jitterAdjustment < -40
-								&& lastQueuedSample - buff.sampleStart - silenceGap >= 120) {
-							// if our buffer is too big, drop some audio
-							// but count it as played so we
-							// don't immediately play silence or try to wait
-							// for this "missing" audio packet to arrive
-
-							lastSample = buff.sampleStart - silenceGap;
-							int duration = output.sampleDurationMs(buff);
-							lastSampleEnd = lastSample + duration;
-							if (silenceGap == 0) {
-								playList.removeFirst();
-								queueCount--;
-								sb.append("F");
-								buff.release();
-								buff = null;
-							} else {
-								sb.append("D");
-							}
-							continue;
-						}
+	// Decide what to play next, and play it. Returns how long, in ns, we can wait before we must
+	// decide again. Sooner if more audio arrives at the front of the queue.
+	public long playNext() throws IOException {
+		if (trace && sb.length() >= 128) {
+			EventLog.v(TAG,
+					"last; " + lastSampleEnd +
+							", upl; "
+							+ playbackLatency
+							+ ", jitter; "
+							+ recommendedJitterDelay
+							+ ", actual; "
+							+ playbackDelay
+							+ ", len; " + queueCount
+							+ ", " + sb.toString());
+			sb.setLength(0);
+		}
 
-						if (silenceGap > 0 && lastSampleEnd != -1) {
-							// try to wait until the last possible moment before
-							// giving up and playing the next buffer we have
-							if (audioRunsOutAt <= now) {
-								sb.append("M");
-								generateSilence = silenceGap;
-								if (generateSilence > 20)
-									generateSilence = 20;
-								// pretend we really did play the missing
-								// audio once we've waited long enough.
-								lastSample = lastSampleEnd;
-								lastSampleEnd += generateSilence;
-							}
-							buff = null;
-						} else {
-							// Lets play this buffer.
-							playList.removeFirst();
-							queueCount--;
-						}
+		AudioBuffer buff = null;
+		long now = 0;
+		int generateSilence = 0;
+		boolean missing = true;
+		int rate = playbackRate;
+		long audioRunsOutAt;
 
+		synchronized (playList) {
+
+			now = clock.nanoTime();
+			playbackLatency = this.output.getBufferDuration();
+			// work out when we must make a decision about playing some
+			// extra silence
+			audioRunsOutAt = now
+					- MIN_BUFFER
+					+ playbackLatency * 1000;
+
+			if (!playList.isEmpty())
+				buff = playList.getFirst();
+
+			if (buff != null) {
+				int silenceGap = buff.sampleStart - lastSampleEnd;
+				playbackDelay = clock.elapsedRealtime()
+						- buff.received + buff.thisDelay;
+
+				int jitterAdjustment = (int) (recommendedJitterDelay - playbackDelay);
+
+				if (silenceGap < 0) {
+					// sample arrived too late, we might get better
+					// audio if we add a little extra latency
+					playList.removeFirst();
+					queueCount--;
+					buff.release();
+					late.inc();
+					stats.late++;
+					if (trace)
+						sb.append("L");
+					return 0;
+				}
+
+				boolean suppressed = false;
+				if (silenceGap > 0 && lastSampleEnd != -1
+						&& buff.sequence == lastSequence + 1) {
+					// nothing is missing, the other party didn't send this gap because
+					// they weren't talking. Any silence we played while our queue was
+					// empty already covers some of it.
+					suppressed = true;
+					int covered = Math.min(silenceGap, fillerMs);
+					stats.suppressedMs += covered;
+					fillerMs -= covered;
+					lastSample = lastSampleEnd;
+					lastSampleEnd += covered;
+					silenceGap -= covered;
+				}
+
+				// converge on the recommended delay by playing a little faster or slower
+				rate = 100;
+				if (jitterAdjustment < -STRETCH_THRESHOLD)
+					rate += Math.min(TimeStretch.MAX_CHANGE, -jitterAdjustment / STRETCH_STEP);
+				else if (jitterAdjustment > STRETCH_THRESHOLD)
+					rate -= Math.min(TimeStretch.MAX_CHANGE, jitterAdjustment / STRETCH_STEP);
+
+				// TODO, don't throw away audio if nothing else we
+				// have is currently good enough.
+				if (jitterAdjustment < -MAX_BACKLOG
+						&& lastQueuedSample - buff.sampleStart - silenceGap >= 120) {
+					// if our buffer is far too big, drop some audio
+					// but count it as played so we
+					// don't immediately play silence or try to wait
+					// for this "missing" audio packet to arrive
+
+					dropped.inc();
+					stats.dropped++;
+					lastSample = buff.sampleStart - silenceGap;
+					int duration = output.sampleDurationMs(buff);
+					lastSampleEnd = lastSample + duration;
+					if (silenceGap == 0) {
+						lastSequence = buff.sequence;
+						playList.removeFirst();
+						queueCount--;
+						if (trace)
+							sb.append("F");
+						buff.release();
+						buff = null;
 					} else {
-						// this thread can sleep for a while to wait for more
-						// audio
+						if (trace)
+							sb.append("D");
+					}
+					return 0;
+				}
 
-						// But if we've got nothing else to play, we should play
-						// some silence to increase our latency buffer
-						if (audioRunsOutAt <= now) {
-							sb.append("X");
+				if (silenceGap > 0 && lastSampleEnd != -1) {
+					// try to wait until the last possible moment before
+					// giving up and playing the next buffer we have
+					if (audioRunsOutAt <= now) {
+						generateSilence = silenceGap;
+						if (generateSilence > 20)
 							generateSilence = 20;
+						if (suppressed) {
+							// play comfort noise, rather than concealing loss
 							missing = false;
+							stats.suppressedMs += generateSilence;
+							if (trace)
+								sb.append("S");
+						} else {
+							skipped.inc();
+							stats.concealed++;
+							stats.concealedMs += generateSilence;
+							if (trace)
+								sb.append("M");
 						}
-
+						// pretend we really did play the missing
+						// audio once we've waited long enough.
+						lastSample = lastSampleEnd;
+						lastSampleEnd += generateSilence;
 					}
+					buff = null;
+				} else {
+					// Lets play this buffer.
+					delay.record(playbackDelay);
+					stats.played++;
+					lastSequence = buff.sequence;
+					fillerMs = 0;
+					playList.removeFirst();
+					queueCount--;
 				}
 
-				// Now that we've worked out what to do, we can block this
-				// thread
-				// (outside of the above synchronized code block)
-
-				if (generateSilence > 0) {
-					this.output.missed(generateSilence, missing);
-					continue;
+			} else {
+				// this thread can sleep for a while to wait for more
+				// audio
+
+				// But if we've got nothing else to play, we should play
+				// some silence to increase our latency buffer
+				if (audioRunsOutAt <= now) {
+					underruns.inc();
+					if (trace)
+						sb.append("X");
+					generateSilence = 20;
+					missing = false;
+					stats.underruns++;
+					stats.underrunMs += generateSilence;
+					fillerMs += generateSilence;
 				}
 
-				if (buff != null) {
-					// write the audio sample, then check the packet queue again
-					lastSample = buff.sampleStart;
-					lastSampleEnd = lastSample + output.write(buff);
-					sb.append(".");
-					continue;
-				}
+			}
+		}
 
-				// check the clock again, then wait only until our audio buffer
-				// is
-				// getting close to empty
-				now = System.nanoTime();
-				long waitFor = audioRunsOutAt - now;
-				if (waitFor <= 0)
-					continue;
-				sb.append(" ");
-				long waitMs = waitFor / 1000000;
-				int waitNs = (int) (waitFor - waitMs * 1000000);
+		// Now that we've worked out what to do, we can block this
+		// thread
+		// (outside of the above synchronized code block)
 
-				try {
-					Thread.sleep(waitMs, waitNs);
-				} catch (InterruptedException e) {
-				}
-			} catch (IOException e) {
-				Log.e(TAG, e.getMessage(), e);
+		if (generateSilence > 0) {
+			this.output.missed(generateSilence, missing);
+			return 0;
+		}
+
+		if (buff != null) {
+			if (rate != playbackRate) {
+				output.setPlaybackRate(rate);
+				playbackRate = rate;
+				if (trace)
+					sb.append(rate > 100 ? "+" : rate < 100 ? "-" : "=");
 			}
+			// write the audio sample, then check the packet queue again
+			lastSample = buff.sampleStart;
+			int duration = output.write(buff);
+			lastSampleEnd = lastSample + duration;
+			if (rate != 100 && duration > 0)
+				stats.stretchedMs += duration;
+			if (trace)
+				sb.append(".");
+			return 0;
 		}
-		playbackThread = null;
-		cleanup();
-		if (sb.length() > 0)
-			Log.v(TAG, sb.toString());
 
+		// check the clock again, then wait only until our audio buffer
+		// is
+		// getting close to empty
+		now = clock.nanoTime();
+		long waitFor = audioRunsOutAt - now;
+		if (waitFor <= 0)
+			return 0;
+		if (trace)
+			sb.append(" ");
+		return waitFor;
 	}
 
 	@Override
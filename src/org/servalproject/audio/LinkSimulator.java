@@ -0,0 +1,232 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import android.util.Log;
+
+/**
+ * Makes the network path look worse than it is, by losing, delaying, reordering and duplicating
+ * the audio we receive before it reaches the jitter buffer.
+ *
+ * This lets us compare codec and jitter buffer changes under the same, repeatable conditions, using
+ * two phones on a quiet network. Configured with a string like "loss=5,burst=30,jitter=80,dup=1,seed=1";
+ * - loss; percentage of buffers to drop
+ * - burst; percentage chance that the buffer after a lost one is also lost, defaults to loss so
+ *   that losses are independent
+ * - delay; fixed extra delay in ms
+ * - jitter; extra delay, uniformly distributed between 0 and this many ms
+ * - dup; percentage of buffers to deliver twice
+ * - seed; for the random number generator, so a run can be repeated
+ * Buffers with different delays are delivered in the order they would arrive, so jitter also
+ * reorders audio.
+ *
+ * On a phone the simulator delivers buffers from its own thread. A simulation with a virtual clock
+ * can leave the thread unstarted and call deliver() as its clock advances.
+ */
+public class LinkSimulator extends AudioStream implements Runnable {
+	private static final String TAG = "LinkSimulator";
+
+	private final AudioStream out;
+	private final Clock clock;
+	private final Random random;
+	private int loss;
+	private int burst;
+	private int delay;
+	private int jitter;
+	private int duplicate;
+	private boolean lostLast;
+
+	private final PriorityQueue<Pending> queue = new PriorityQueue<Pending>();
+	private boolean running = true;
+	private volatile Thread thread;
+
+	private int received;
+	private int lost;
+	private int duplicated;
+
+	private static class Pending implements Comparable<Pending> {
+		final AudioBuffer buff;
+		final long deliverAt;
+		final int extraDelay;
+
+		Pending(AudioBuffer buff, long deliverAt, int extraDelay) {
+			this.buff = buff;
+			this.deliverAt = deliverAt;
+			this.extraDelay = extraDelay;
+		}
+
+		@Override
+		public int compareTo(Pending another) {
+			if (deliverAt < another.deliverAt)
+				return -1;
+			if (deliverAt > another.deliverAt)
+				return 1;
+			return 0;
+		}
+	}
+
+	public LinkSimulator(AudioStream out, String config) {
+		this(out, config, Clock.SYSTEM);
+		start();
+	}
+
+	public LinkSimulator(AudioStream out, String config, Clock clock) {
+		this.out = out;
+		this.clock = clock;
+		long seed = 1;
+		burst = -1;
+		for (String setting : config.split(",")) {
+			String parts[] = setting.trim().split("=");
+			if (parts.length != 2)
+				continue;
+			int value;
+			try {
+				value = Integer.parseInt(parts[1].trim());
+			} catch (NumberFormatException e) {
+				Log.v(TAG, "Ignoring " + setting);
+				continue;
+			}
+			String name = parts[0].trim();
+			if ("loss".equals(name))
+				loss = value;
+			else if ("burst".equals(name))
+				burst = value;
+			else if ("delay".equals(name))
+				delay = value;
+			else if ("jitter".equals(name))
+				jitter = value;
+			else if ("dup".equals(name))
+				duplicate = value;
+			else if ("seed".equals(name))
+				seed = value;
+			else
+				Log.v(TAG, "Ignoring " + setting);
+		}
+		if (burst < 0)
+			burst = loss;
+		random = new Random(seed);
+		Log.v(TAG, "Simulating loss " + loss + "%, burst " + burst + "%, delay "
+				+ delay + "ms, jitter " + jitter + "ms, duplicates " + duplicate + "%");
+	}
+
+	// deliver buffers from our own thread
+	public synchronized void start() {
+		if (thread != null)
+			return;
+		thread = new Thread(this, "LinkSimulator");
+		thread.start();
+	}
+
+	public int getReceived() {
+		return received;
+	}
+
+	public int getLost() {
+		return lost;
+	}
+
+	public int getDuplicated() {
+		return duplicated;
+	}
+
+	private int extraDelay() {
+		return delay + (jitter > 0 ? random.nextInt(jitter + 1) : 0);
+	}
+
+	private void enqueue(AudioBuffer buff) {
+		int extra = extraDelay();
+		synchronized (queue) {
+			queue.add(new Pending(buff, clock.elapsedRealtime() + extra, extra));
+			queue.notify();
+		}
+	}
+
+	@Override
+	public int write(AudioBuffer buff) throws IOException {
+		received++;
+		boolean drop = random.nextInt(100) < (lostLast ? burst : loss);
+		lostLast = drop;
+		if (drop) {
+			lost++;
+			buff.release();
+			return 0;
+		}
+		if (duplicate > 0 && random.nextInt(100) < duplicate) {
+			AudioBuffer copy = buff.bufferList.getBuffer();
+			copy.copyFrom(buff);
+			copy.codec = buff.codec;
+			copy.dataLen = buff.dataLen;
+			System.arraycopy(buff.buff, 0, copy.buff, 0, buff.dataLen);
+			duplicated++;
+			enqueue(copy);
+		}
+		enqueue(buff);
+		return 0;
+	}
+
+	// deliver every buffer that is due, returns ms until the next one is, or -1 if none are queued
+	public long deliver() throws IOException {
+		while (true) {
+			Pending next;
+			synchronized (queue) {
+				next = queue.peek();
+				if (next == null)
+					return -1;
+				long wait = next.deliverAt - clock.elapsedRealtime();
+				if (wait > 0)
+					return wait;
+				queue.poll();
+			}
+			// the jitter buffer should see the delay we added as part of the network delay
+			next.buff.received += next.extraDelay;
+			next.buff.thisDelay += next.extraDelay;
+			out.write(next.buff);
+		}
+	}
+
+	@Override
+	public void run() {
+		while (true) {
+			try {
+				deliver();
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+			synchronized (queue) {
+				if (!running)
+					break;
+				Pending next = queue.peek();
+				long wait = next == null ? 1000 : next.deliverAt - clock.elapsedRealtime();
+				if (wait > 0) {
+					try {
+						queue.wait(wait);
+					} catch (InterruptedException e) {
+					}
+				}
+			}
+		}
+		release();
+	}
+
+	private void release() {
+		synchronized (queue) {
+			while (!queue.isEmpty())
+				queue.poll().buff.release();
+		}
+		Log.v(TAG, "Received " + received + ", lost " + lost + ", duplicated " + duplicated);
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (queue) {
+			running = false;
+			queue.notify();
+		}
+		// without a thread, nothing else will throw away what is still in flight
+		if (thread == null)
+			release();
+		out.close();
+	}
+}
@@ -0,0 +1,81 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.util.Log;
+
+public class MicrophoneCapture implements AudioCapture {
+	private static final String TAG = "MicrophoneCapture";
+	private final AudioRecord audioRecorder;
+	private final int sampleRate;
+	private final int frameSize;
+	private final int bufferSize;
+
+	public MicrophoneCapture(int audioSource, int sampleRateInHz,
+			int channelConfig, int audioFormat, int minimumBufferSize)
+			throws IOException {
+		int frameSize = 0;
+		if ((channelConfig & AudioFormat.CHANNEL_IN_MONO) != 0) {
+			frameSize = 1;
+			Log.v(TAG, "Mono");
+		} else if ((channelConfig & AudioFormat.CHANNEL_IN_STEREO) != 0) {
+			frameSize = 2;
+			Log.v(TAG, "Stereo");
+		}
+		if (audioFormat == AudioFormat.ENCODING_PCM_16BIT)
+			frameSize *= 2;
+		this.frameSize = frameSize;
+
+		int bufferSize = AudioRecord.getMinBufferSize(sampleRateInHz,
+				channelConfig, audioFormat);
+
+		// ensure minimum record buffer
+		if (bufferSize < minimumBufferSize)
+			bufferSize = minimumBufferSize;
+
+		AudioRecord recorder = new AudioRecord(audioSource,
+				sampleRateInHz, channelConfig, audioFormat, bufferSize);
+
+		if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+			recorder.release();
+			throw new IOException("Audio preparation failed");
+		}
+
+		this.audioRecorder = recorder;
+		this.sampleRate = sampleRateInHz;
+		this.bufferSize = bufferSize;
+	}
+
+	@Override
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	@Override
+	public int getFrameSize() {
+		return frameSize;
+	}
+
+	@Override
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	@Override
+	public void start() {
+		audioRecorder.startRecording();
+	}
+
+	@Override
+	public int read(byte buff[], int offset, int len) {
+		return audioRecorder.read(buff, offset, len);
+	}
+
+	@Override
+	public void stop() {
+		audioRecorder.stop();
+		audioRecorder.release();
+	}
+}
@@ -0,0 +1,342 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+
+import org.servalproject.Metrics;
+import org.servalproject.batphone.VoMP;
+
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Mixes a conference call.
+ *
+ * Audio from our microphone drives the mix; each buffer we are given is mixed with the same
+ * amount of audio from every participant. Each participant is sent everything except their own
+ * audio (mix-minus), and we play everything except our own.
+ *
+ * The full mix is summed once, then each participant's share is subtracted from it, so the cost
+ * grows linearly with the number of participants. All 16 bit arithmetic saturates instead of
+ * wrapping, and no memory is allocated while mixing.
+ *
+ * Our speaker blocks when it is full, so the mix we hear is queued for a playback thread rather
+ * than written from the recorder's thread.
+ */
+public class Mixer extends AudioStream {
+	private static final String TAG = "Mixer";
+
+	private static final Metrics.Counter underruns = Metrics.counter(
+			"conference_underruns_total", "Times a participant had no audio ready for the mix");
+
+	// 8KHz, 16 bit mono
+	private static final int SAMPLES_PER_MS = 8;
+	// the largest buffer we mix in one go
+	private static final int MAX_SAMPLES = 120 * SAMPLES_PER_MS;
+	// how much decoded audio each participant can have waiting
+	private static final int RING_SAMPLES = 500 * SAMPLES_PER_MS;
+	// participants keep at least this much audio waiting, so it is ready when the next mix happens
+	private static final int MIX_INTERVAL_MS = 20;
+	// how much of the local mix can wait for the speaker, before we forget the oldest
+	private static final int PLAYBACK_RING_SAMPLES = 200 * SAMPLES_PER_MS;
+
+	private final Playback playback;
+	private final int total[] = new int[MAX_SAMPLES];
+	private final short mic[] = new short[MAX_SAMPLES];
+	private volatile Input inputs[] = new Input[0];
+	private boolean closed;
+
+	// one participant in the mix
+	public class Input extends AudioStream {
+		private final AudioStream output;
+		private final BufferList buffers = new BufferList();
+		private final short ring[] = new short[RING_SAMPLES];
+		private int readPos;
+		private int count;
+		private boolean started;
+		// this participant's audio for the current mix
+		private final short samples[] = new short[MAX_SAMPLES];
+		private int overflows;
+
+		private Input(AudioStream output) {
+			this.output = output;
+		}
+
+		// audio we have decoded from this participant
+		@Override
+		public int write(AudioBuffer buff) throws IOException {
+			try {
+				if (buff.codec != VoMP.Codec.Signed16)
+					throw new IOException("Unsupported codec " + buff.codec);
+				int len = buff.dataLen / 2;
+				byte data[] = buff.buff;
+				synchronized (this) {
+					if (count + len > RING_SAMPLES) {
+						// we aren't mixing as fast as they are talking, forget the oldest audio
+						int drop = count + len - RING_SAMPLES;
+						readPos = (readPos + drop) % RING_SAMPLES;
+						count -= drop;
+						overflows++;
+					}
+					int pos = (readPos + count) % RING_SAMPLES;
+					for (int i = 0; i < len; i++) {
+						ring[pos] = (short) ((data[i * 2] & 0xFF) | (data[i * 2 + 1] << 8));
+						if (++pos == RING_SAMPLES)
+							pos = 0;
+					}
+					count += len;
+					started = true;
+				}
+				return len / SAMPLES_PER_MS;
+			} finally {
+				buff.release();
+			}
+		}
+
+		// the jitter buffer had nothing to play, so this participant adds silence to the mix
+		@Override
+		public void missed(int duration, boolean missing) throws IOException {
+			int len = duration * SAMPLES_PER_MS;
+			synchronized (this) {
+				if (count + len > RING_SAMPLES)
+					len = RING_SAMPLES - count;
+				int pos = (readPos + count) % RING_SAMPLES;
+				for (int i = 0; i < len; i++) {
+					ring[pos] = 0;
+					if (++pos == RING_SAMPLES)
+						pos = 0;
+				}
+				count += len;
+			}
+		}
+
+		// report our audio as if it must last until the next mix, so the jitter buffer stays ahead
+		@Override
+		public synchronized int getBufferDuration() {
+			int ms = count / SAMPLES_PER_MS - MIX_INTERVAL_MS;
+			return ms > 0 ? ms : 0;
+		}
+
+		// take the next len samples, padding with silence if they aren't here yet
+		private synchronized void take(int len) {
+			int available = count < len ? count : len;
+			for (int i = 0; i < available; i++) {
+				samples[i] = ring[readPos];
+				if (++readPos == RING_SAMPLES)
+					readPos = 0;
+			}
+			count -= available;
+			if (available < len) {
+				for (int i = available; i < len; i++)
+					samples[i] = 0;
+				if (started)
+					underruns.inc();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			removeInput(this);
+		}
+	}
+
+	// feeds the local mix to the speaker, so only this thread waits for it
+	private class Playback implements Runnable {
+		private final AudioStream local;
+		private final BufferList buffers = new BufferList();
+		private final short ring[] = new short[PLAYBACK_RING_SAMPLES];
+		private int readPos;
+		private int count;
+		private boolean running = true;
+		private int overflows;
+
+		private Playback(AudioStream local) {
+			this.local = local;
+		}
+
+		// everything in the mix except our microphone, never blocks
+		private synchronized void queue(int len) {
+			if (!running)
+				return;
+			if (count + len > PLAYBACK_RING_SAMPLES) {
+				// the speaker isn't keeping up, forget the oldest audio
+				int drop = count + len - PLAYBACK_RING_SAMPLES;
+				readPos = (readPos + drop) % PLAYBACK_RING_SAMPLES;
+				count -= drop;
+				overflows++;
+			}
+			int pos = (readPos + count) % PLAYBACK_RING_SAMPLES;
+			for (int i = 0; i < len; i++) {
+				ring[pos] = saturate(total[i] - mic[i]);
+				if (++pos == PLAYBACK_RING_SAMPLES)
+					pos = 0;
+			}
+			count += len;
+			notify();
+		}
+
+		// wait for some of the mix, returns null once we have stopped
+		private synchronized AudioBuffer take() throws InterruptedException {
+			while (running && count == 0)
+				wait();
+			if (!running)
+				return null;
+			int len = count < MAX_SAMPLES ? count : MAX_SAMPLES;
+			AudioBuffer out = buffers.getBuffer();
+			out.codec = VoMP.Codec.Signed16;
+			for (int i = 0; i < len; i++) {
+				put(out, i, ring[readPos]);
+				if (++readPos == PLAYBACK_RING_SAMPLES)
+					readPos = 0;
+			}
+			count -= len;
+			out.dataLen = len * 2;
+			return out;
+		}
+
+		private synchronized void stop() {
+			running = false;
+			notify();
+		}
+
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+			try {
+				AudioBuffer out;
+				while ((out = take()) != null)
+					local.write(out);
+			} catch (InterruptedException e) {
+				Log.e(TAG, e.getMessage(), e);
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+			if (overflows > 0)
+				Log.v(TAG, "Local mix overflowed " + overflows + " times");
+			try {
+				local.close();
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+	}
+
+	// we will play the mix of all participants to local
+	public Mixer(AudioStream local) {
+		playback = new Playback(local);
+		new Thread(playback, "ConferencePlayback").start();
+	}
+
+	// add a participant, we will send them everyone else's audio through output
+	public synchronized Input addInput(AudioStream output) {
+		Input input = new Input(output);
+		Input list[] = new Input[inputs.length + 1];
+		System.arraycopy(inputs, 0, list, 0, inputs.length);
+		list[inputs.length] = input;
+		inputs = list;
+		Log.v(TAG, "Mixing " + list.length + " participants");
+		return input;
+	}
+
+	public synchronized void removeInput(Input input) {
+		int index = -1;
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i] == input)
+				index = i;
+		}
+		if (index < 0)
+			return;
+		Input list[] = new Input[inputs.length - 1];
+		System.arraycopy(inputs, 0, list, 0, index);
+		System.arraycopy(inputs, index + 1, list, index, list.length - index);
+		inputs = list;
+		if (input.overflows > 0)
+			Log.v(TAG, "Participant audio overflowed " + input.overflows + " times");
+		Log.v(TAG, "Mixing " + list.length + " participants");
+	}
+
+	public int getParticipants() {
+		return inputs.length;
+	}
+
+	private static short saturate(int value) {
+		if (value > Short.MAX_VALUE)
+			return Short.MAX_VALUE;
+		if (value < Short.MIN_VALUE)
+			return Short.MIN_VALUE;
+		return (short) value;
+	}
+
+	private static void put(AudioBuffer buff, int i, short value) {
+		buff.buff[i * 2] = (byte) value;
+		buff.buff[i * 2 + 1] = (byte) (value >> 8);
+	}
+
+	// audio from our microphone, mix it with everyone else and send it out
+	@Override
+	public int write(AudioBuffer buff) throws IOException {
+		try {
+			if (buff.codec != VoMP.Codec.Signed16)
+				throw new IOException("Unsupported codec " + buff.codec);
+			int offset = 0;
+			int samples = buff.dataLen / 2;
+			while (offset < samples) {
+				int len = samples - offset;
+				if (len > MAX_SAMPLES)
+					len = MAX_SAMPLES;
+				mix(buff, offset, len);
+				offset += len;
+			}
+			return samples / SAMPLES_PER_MS;
+		} finally {
+			buff.release();
+		}
+	}
+
+	private void mix(AudioBuffer source, int offset, int len) throws IOException {
+		Input list[] = inputs;
+		byte data[] = source.buff;
+		for (int i = 0; i < len; i++) {
+			int j = (offset + i) * 2;
+			mic[i] = (short) ((data[j] & 0xFF) | (data[j + 1] << 8));
+			total[i] = mic[i];
+		}
+		for (int n = 0; n < list.length; n++) {
+			Input input = list[n];
+			input.take(len);
+			short in[] = input.samples;
+			for (int i = 0; i < len; i++)
+				total[i] += in[i];
+		}
+		int sampleStart = source.sampleStart + offset / SAMPLES_PER_MS;
+
+		// everyone else gets the mix, minus their own voice
+		for (int n = 0; n < list.length; n++) {
+			Input input = list[n];
+			AudioBuffer out = input.buffers.getBuffer();
+			out.codec = VoMP.Codec.Signed16;
+			out.sampleStart = sampleStart;
+			short in[] = input.samples;
+			for (int i = 0; i < len; i++)
+				put(out, i, saturate(total[i] - in[i]));
+			out.dataLen = len * 2;
+			try {
+				input.output.write(out);
+			} catch (IOException e) {
+				Log.e(TAG, e.getMessage(), e);
+			}
+		}
+
+		// and we hear everyone but ourselves
+		playback.queue(len);
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		inputs = new Input[0];
+		// the playback thread closes the speaker, once it has finished writing to it
+		playback.stop();
+	}
+}
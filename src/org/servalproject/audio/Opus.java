@@ -8,6 +8,8 @@ public class Opus extends Codec {
 	private long decoderState = 0;
 	private BufferList encoderBuffers;
 	private BufferList decoderBuffers;
+	private final boolean encoder;
+	private OpusRateController rateController;
 
 	private native long encodercreate(int sampleRate);
 
@@ -15,6 +17,8 @@ public class Opus extends Codec {
 
 	private native void encodercomplexity(long ptr, int complexity);
 
+	private native void encoderfec(long ptr, int lossPercent);
+
 	private native int encode(long ptr, int data_size, byte in[], byte out[]);
 
 	private native void encoderdestroy(long ptr);
@@ -30,28 +34,61 @@ public class Opus extends Codec {
 		System.loadLibrary("servalopus");
 	}
 
+	// Create codec state up front, so the first audio frame of a call doesn't pay for it
+	public Opus(boolean encoder) {
+		this.encoder = encoder;
+		if (encoder) {
+			encoderState = encodercreate(VoMP.Codec.Opus.sampleRate);
+			encoderBuffers = new BufferList(360);
+			rateController = new OpusRateController();
+			applyRate();
+		} else {
+			decoderState = decodercreate(VoMP.Codec.Opus.sampleRate);
+			decoderBuffers = new BufferList(VoMP.Codec.Opus.maxBufferSize());
+		}
+	}
+
+	private void applyRate() {
+		encoderbitrate(encoderState, rateController.getBitrate());
+		encodercomplexity(encoderState, rateController.getComplexity());
+		encoderfec(encoderState, rateController.getFecLossPercent());
+	}
+
+	public OpusRateController getRateController() {
+		return rateController;
+	}
+
+	@Override
+	public void onReceived(int sequence, int delayMs) {
+		if (rateController != null)
+			rateController.onReceived(sequence, delayMs);
+	}
+
 	@Override
 	public void close() {
 		if (encoderState != 0)
 			encoderdestroy(encoderState);
 		if (decoderState != 0)
 			decoderdestroy(decoderState);
+		encoderState = 0;
+		decoderState = 0;
 		encoderBuffers = null;
 		decoderBuffers = null;
 	}
 
 	@Override
 	public AudioBuffer encode(AudioBuffer source) {
-		if (encoderState == 0) {
-			encoderState = encodercreate(VoMP.Codec.Opus.sampleRate);
-			encoderBuffers = new BufferList(360);
-			// TODO choose bitrate & complexity
-		}
+		if (!encoder)
+			throw new IllegalStateException("Opus encoder was not created");
 		AudioBuffer out = encoderBuffers.getBuffer();
 		out.copyFrom(source);
 		out.codec = VoMP.Codec.Opus;
+		long start = System.nanoTime();
 		out.dataLen = encode(encoderState, source.dataLen, source.buff,
 				out.buff);
+		if (rateController.onEncoded(System.nanoTime() - start,
+				source.dataLen / 2 / (VoMP.Codec.Opus.sampleRate / 1000)))
+			applyRate();
 		if (out.dataLen < 0)
 			throw new IllegalStateException("opus encode (@0x"
 					+ Long.toHexString(encoderState) + ", " + source.dataLen
@@ -66,10 +103,8 @@ public class Opus extends Codec {
 
 	@Override
 	public AudioBuffer decode(AudioBuffer source) {
-		if (decoderState == 0) {
-			decoderState = decodercreate(VoMP.Codec.Opus.sampleRate);
-			decoderBuffers = new BufferList(VoMP.Codec.Opus.maxBufferSize());
-		}
+		if (encoder)
+			throw new IllegalStateException("Opus decoder was not created");
 		AudioBuffer out = decoderBuffers.getBuffer();
 		out.copyFrom(source);
 		out.codec = VoMP.Codec.Signed16;
@@ -83,8 +118,40 @@ public class Opus extends Codec {
 		return out;
 	}
 
+	// read the duration from the packet's TOC byte (RFC 6716 section 3.1), so the encoder can
+	// measure its own packets without a decoder
+	@Override
+	public int sampleLength(AudioBuffer buff) {
+		if (buff.dataLen < 1)
+			return 0;
+		int toc = buff.buff[0] & 0xFF;
+		int config = toc >> 3;
+		// frame length in 2.5ms units
+		int frame;
+		if (config < 12)
+			frame = (config & 3) == 3 ? 24 : 4 << (config & 3);
+		else if (config < 16)
+			frame = 4 << (config & 1);
+		else
+			frame = 1 << (config & 3);
+		int frames;
+		switch (toc & 3) {
+		case 0:
+			frames = 1;
+			break;
+		case 3:
+			frames = buff.dataLen < 2 ? 0 : buff.buff[1] & 0x3F;
+			break;
+		default:
+			frames = 2;
+		}
+		return frames * frame * VoMP.Codec.Opus.sampleRate / 400;
+	}
+
 	@Override
 	public AudioBuffer decode_missing(int duration) {
+		if (encoder)
+			return null;
 		AudioBuffer out = decoderBuffers.getBuffer();
 		out.codec = VoMP.Codec.Signed16;
 		int bufferSize = duration * 2 * (VoMP.Codec.Opus.sampleRate / 1000);
@@ -0,0 +1,194 @@
+package org.servalproject.audio;
+
+import android.util.Log;
+
+/**
+ * Chooses opus bitrate, complexity and in-band FEC for an outgoing call.
+ *
+ * We have no report from the far end of the call, so we assume the path is roughly symmetric
+ * and use the loss and delay of the audio we receive as a measure of the link.
+ * Local encode time per frame tells us how much CPU we can afford to spend.
+ *
+ * Decisions are made once per window of encoded audio, and only once a condition has
+ * persisted for a few windows, so a single burst of loss doesn't make the audio quality flap.
+ */
+public class OpusRateController {
+	private static final String TAG = "OpusRate";
+
+	public interface Listener {
+		void onDecision(int bitrate, int complexity, int fecLossPercent, String reason);
+	}
+
+	private static final int BITRATES[] = {6000, 8000, 12000, 16000, 24000};
+	private static final int MIN_COMPLEXITY = 0;
+	private static final int MAX_COMPLEXITY = 10;
+
+	// evaluate once per second of encoded audio, whatever the packet duration
+	private static final int WINDOW_MS = 1000;
+	// how many consecutive windows a condition must persist before we act on it
+	private static final int DEGRADE_WINDOWS = 2;
+	private static final int IMPROVE_WINDOWS = 5;
+
+	private static final int LOSS_HIGH = 10;
+	private static final int LOSS_LOW = 2;
+	private static final int DELAY_HIGH = 300;
+	private static final int DELAY_LOW = 150;
+	// percentage of real time spent encoding
+	private static final int CPU_HIGH = 30;
+	private static final int CPU_LOW = 10;
+
+	private int bitrateIndex = 2;
+	private int complexity = 5;
+	private int fecLossPercent = 0;
+	private boolean changed = true;
+	private Listener listener;
+
+	// encode statistics for the current window
+	private long encodeNanos;
+	private long audioMs;
+
+	// receive statistics for the current window
+	private int firstSequence = -1;
+	private int lastSequence = -1;
+	private int received;
+	private long totalDelay;
+
+	private int badLink;
+	private int goodLink;
+	private int busyCpu;
+	private int idleCpu;
+
+	public synchronized void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	public synchronized int getBitrate() {
+		return BITRATES[bitrateIndex];
+	}
+
+	// start from the highest bitrate we support that is no more than this
+	public synchronized void setBitrate(int bitrate) {
+		int index = 0;
+		while (index < BITRATES.length - 1 && BITRATES[index + 1] <= bitrate)
+			index++;
+		if (index != bitrateIndex) {
+			bitrateIndex = index;
+			decide("path estimate");
+		}
+	}
+
+	public synchronized int getComplexity() {
+		return complexity;
+	}
+
+	public synchronized int getFecLossPercent() {
+		return fecLossPercent;
+	}
+
+	// called for each audio packet received from the other party
+	public synchronized void onReceived(int sequence, int delayMs) {
+		if (firstSequence == -1 || sequence - firstSequence < 0)
+			firstSequence = sequence;
+		if (lastSequence == -1 || sequence - lastSequence > 0)
+			lastSequence = sequence;
+		received++;
+		totalDelay += delayMs;
+	}
+
+	// called after each frame is encoded, returns true if the encoder settings should be changed
+	public synchronized boolean onEncoded(long nanos, int durationMs) {
+		encodeNanos += nanos;
+		audioMs += durationMs;
+		if (audioMs >= WINDOW_MS)
+			evaluate();
+		boolean ret = changed;
+		changed = false;
+		return ret;
+	}
+
+	private void evaluate() {
+		int cpuPercent = audioMs > 0 ? (int) (encodeNanos / 10000 / audioMs) : 0;
+		int expected = lastSequence - firstSequence + 1;
+		int lossPercent = -1;
+		int delay = -1;
+		if (received > 0 && expected > 0) {
+			lossPercent = received >= expected ? 0 : (expected - received) * 100 / expected;
+			delay = (int) (totalDelay / received);
+		}
+
+		encodeNanos = 0;
+		audioMs = 0;
+		firstSequence = -1;
+		lastSequence = -1;
+		received = 0;
+		totalDelay = 0;
+
+		String stats = "loss " + lossPercent + "%, delay " + delay + "ms, cpu " + cpuPercent + "%";
+
+		if (lossPercent >= 0) {
+			if (lossPercent >= LOSS_HIGH || delay >= DELAY_HIGH) {
+				goodLink = 0;
+				if (++badLink >= DEGRADE_WINDOWS) {
+					badLink = 0;
+					boolean update = false;
+					if (bitrateIndex > 0) {
+						bitrateIndex--;
+						update = true;
+					}
+					if (lossPercent > fecLossPercent) {
+						fecLossPercent = lossPercent;
+						update = true;
+					}
+					if (update)
+						decide("congested link, " + stats);
+				}
+			} else if (lossPercent <= LOSS_LOW && delay <= DELAY_LOW) {
+				badLink = 0;
+				if (++goodLink >= IMPROVE_WINDOWS) {
+					goodLink = 0;
+					boolean update = false;
+					if (bitrateIndex < BITRATES.length - 1) {
+						bitrateIndex++;
+						update = true;
+					}
+					if (fecLossPercent > 0 && lossPercent == 0) {
+						fecLossPercent = 0;
+						update = true;
+					}
+					if (update)
+						decide("clean link, " + stats);
+				}
+			} else {
+				badLink = 0;
+				goodLink = 0;
+			}
+		}
+
+		if (cpuPercent >= CPU_HIGH) {
+			idleCpu = 0;
+			if (++busyCpu >= DEGRADE_WINDOWS && complexity > MIN_COMPLEXITY) {
+				busyCpu = 0;
+				complexity = Math.max(MIN_COMPLEXITY, complexity - 2);
+				decide("encoder too slow, " + stats);
+			}
+		} else if (cpuPercent <= CPU_LOW) {
+			busyCpu = 0;
+			if (++idleCpu >= IMPROVE_WINDOWS && complexity < MAX_COMPLEXITY) {
+				idleCpu = 0;
+				complexity++;
+				decide("encoder has spare time, " + stats);
+			}
+		} else {
+			busyCpu = 0;
+			idleCpu = 0;
+		}
+	}
+
+	private void decide(String reason) {
+		changed = true;
+		Log.v(TAG, "bitrate " + BITRATES[bitrateIndex] + ", complexity " + complexity
+				+ ", fec " + fecLossPercent + "%; " + reason);
+		if (listener != null)
+			listener.onDecision(BITRATES[bitrateIndex], complexity, fecLossPercent, reason);
+	}
+}
@@ -0,0 +1,142 @@
+package org.servalproject.audio;
+
+import android.util.Log;
+
+/**
+ * Chooses how much audio to put in each packet we send.
+ *
+ * Every packet pays for MDP headers, a monitor message and a turn on the radio, so on a congested
+ * or multi-hop path sending fewer, longer packets can lose less audio than sending 20ms at a time,
+ * at the cost of extra latency. We use the loss and delay of the audio we receive as a measure of
+ * the path (see OpusRateController), and the time taken to hand each packet to the daemon as a
+ * measure of queueing on our side.
+ *
+ * Like OpusRateController, a condition must persist for a few windows before we act on it.
+ */
+public class PacketisationController {
+	private static final String TAG = "Packetisation";
+
+	// evaluate once per second of sent audio
+	private static final int WINDOW_MS = 1000;
+	private static final int DEGRADE_WINDOWS = 2;
+	private static final int IMPROVE_WINDOWS = 5;
+
+	private static final int LOSS_HIGH = 5;
+	private static final int LOSS_LOW = 1;
+	private static final int DELAY_HIGH = 250;
+	private static final int DELAY_LOW = 120;
+	// average time to write a packet to the daemon, in microseconds
+	private static final int SEND_HIGH = 5000;
+	private static final int SEND_LOW = 1000;
+
+	private final int frameMs;
+	private volatile int maxMs;
+	private volatile int packetMs;
+	private int changes;
+
+	// receive statistics for the current window
+	private int firstSequence = -1;
+	private int lastSequence = -1;
+	private int received;
+	private long totalDelay;
+
+	// send statistics for the current window
+	private int sent;
+	private int sentMs;
+	private long sendNanos;
+
+	private int badPath;
+	private int goodPath;
+
+	public PacketisationController(int frameMs, int maxMs) {
+		this.frameMs = frameMs;
+		this.maxMs = maxMs < frameMs ? frameMs : maxMs;
+		this.packetMs = frameMs;
+	}
+
+	// how much audio, in ms, the recorder should put in the next packet
+	public int getPacketDuration() {
+		return packetMs;
+	}
+
+	// the codec changed, and can't fit as much audio in each packet
+	public synchronized void setMaxDuration(int maxMs) {
+		this.maxMs = maxMs < frameMs ? frameMs : maxMs;
+		if (packetMs > this.maxMs)
+			change(this.maxMs, "codec changed");
+	}
+
+	public synchronized int getChanges() {
+		return changes;
+	}
+
+	// called for each audio packet received from the other party
+	public synchronized void onReceived(int sequence, int delayMs) {
+		if (firstSequence == -1 || sequence - firstSequence < 0)
+			firstSequence = sequence;
+		if (lastSequence == -1 || sequence - lastSequence > 0)
+			lastSequence = sequence;
+		received++;
+		totalDelay += delayMs;
+	}
+
+	// called after each packet has been passed to the daemon
+	public synchronized void onSent(int durationMs, long nanos) {
+		sent++;
+		sentMs += durationMs;
+		sendNanos += nanos;
+		if (sentMs >= WINDOW_MS)
+			evaluate();
+	}
+
+	private void evaluate() {
+		int expected = lastSequence - firstSequence + 1;
+		int lossPercent = -1;
+		int delay = -1;
+		if (received > 0 && expected > 0) {
+			lossPercent = received >= expected ? 0 : (expected - received) * 100 / expected;
+			delay = (int) (totalDelay / received);
+		}
+		int sendMicros = (int) (sendNanos / 1000 / sent);
+
+		firstSequence = -1;
+		lastSequence = -1;
+		received = 0;
+		totalDelay = 0;
+		sent = 0;
+		sentMs = 0;
+		sendNanos = 0;
+
+		boolean congested = sendMicros >= SEND_HIGH
+				|| (lossPercent >= 0 && (lossPercent >= LOSS_HIGH || delay >= DELAY_HIGH));
+		// while the other party is silent we can't judge the path, so only our own queue counts
+		boolean clean = sendMicros <= SEND_LOW
+				&& (lossPercent < 0 || (lossPercent <= LOSS_LOW && delay <= DELAY_LOW));
+		String stats = "loss " + lossPercent + "%, delay " + delay + "ms, send " + sendMicros + "us";
+
+		if (congested) {
+			goodPath = 0;
+			if (++badPath >= DEGRADE_WINDOWS) {
+				badPath = 0;
+				if (packetMs + frameMs <= maxMs)
+					change(packetMs + frameMs, "congested path, " + stats);
+			}
+		} else if (clean) {
+			badPath = 0;
+			if (++goodPath >= IMPROVE_WINDOWS) {
+				goodPath = 0;
+				if (packetMs > frameMs)
+					change(packetMs - frameMs, "clean path, " + stats);
+			}
+		} else {
+			badPath = 0;
+			goodPath = 0;
+		}
+	}
+
+	private void change(int ms, String reason) {
+		packetMs = ms;
+		changes++;
+		Log.v(TAG, "Sending " + ms + "ms per packet; " + reason);
+	}
+}
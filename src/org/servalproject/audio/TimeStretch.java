@@ -0,0 +1,232 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+
+import org.servalproject.batphone.VoMP;
+
+/**
+ * Plays decoded audio slightly faster or slower than real time, so the jitter buffer can grow or
+ * shrink without dropping whole buffers or inserting silence.
+ *
+ * This is WSOLA (waveform similarity overlap-add). Output is built from HOP sized pieces, each
+ * cross faded with the previous one. Every HOP of output we advance through the input by
+ * HOP * rate / 100 samples, then search within SEEK samples of that position for the segment that
+ * best lines up with how the previous segment naturally continues, so pitch periods join smoothly.
+ * At 100% the natural continuation is always chosen, and the output is identical to the input.
+ *
+ * All buffers are allocated up front. Expects 16 bit mono at 8KHz, other audio is passed through.
+ */
+public class TimeStretch extends AudioStream {
+	private final AudioStream out;
+
+	// 10ms pieces, cross faded over the same length
+	static final int HOP = 80;
+	// look up to 5ms either side for the best match
+	static final int SEEK = 40;
+	// the most we will speed up or slow down playback, in percent
+	public static final int MAX_CHANGE = 10;
+	private static final int SAMPLES_PER_MS = 8;
+	// enough for the largest decoded buffer, plus the audio we keep between buffers
+	private static final int CAPACITY = 2048;
+
+	// rising half of a hann window, Q15
+	private static final int FADE[] = new int[HOP];
+	static {
+		for (int i = 0; i < HOP; i++)
+			FADE[i] = (int) Math.round(32768 * (0.5 - 0.5 * Math.cos(Math.PI * (i + 0.5) / HOP)));
+	}
+
+	private final BufferList buffers = new BufferList(CAPACITY * 2);
+	private final short input[] = new short[CAPACITY];
+	private int inputLen;
+	// where to take the next segment from, in hundredths of a sample
+	private int position;
+	// where the previous segment continues, or -1 if we have no previous segment
+	private int natural = -1;
+	// the second half of the previous segment, faded out
+	private final int tail[] = new int[HOP];
+	private volatile int rate = 100;
+
+	public TimeStretch(AudioStream out) {
+		this.out = out;
+	}
+
+	// playback speed as a percentage of real time
+	@Override
+	public void setPlaybackRate(int percent) {
+		if (percent < 100 - MAX_CHANGE)
+			percent = 100 - MAX_CHANGE;
+		if (percent > 100 + MAX_CHANGE)
+			percent = 100 + MAX_CHANGE;
+		rate = percent;
+	}
+
+	public int getPlaybackRate() {
+		return rate;
+	}
+
+	// audio we are holding, that hasn't been passed on yet
+	private int pendingMs() {
+		int pending = inputLen - (natural < 0 ? position / 100 : natural);
+		return pending > 0 ? pending / SAMPLES_PER_MS : 0;
+	}
+
+	@Override
+	public int getBufferDuration() {
+		return out.getBufferDuration() + pendingMs();
+	}
+
+	@Override
+	public int write(AudioBuffer buff) throws IOException {
+		if (buff.codec != VoMP.Codec.Signed16) {
+			flush();
+			return out.write(buff);
+		}
+		int samples = buff.dataLen / 2;
+		if (inputLen + samples > CAPACITY)
+			flush();
+		byte data[] = buff.buff;
+		for (int i = 0; i < samples; i++)
+			input[inputLen + i] = (short) ((data[i * 2] & 0xFF) | (data[i * 2 + 1] << 8));
+		inputLen += samples;
+
+		AudioBuffer output = buffers.getBuffer();
+		output.copyFrom(buff);
+		output.codec = VoMP.Codec.Signed16;
+		buff.release();
+
+		int produced = 0;
+		while (canStep() && produced + HOP * 2 <= output.buff.length) {
+			step(output.buff, produced);
+			produced += HOP * 2;
+		}
+		compact();
+
+		output.dataLen = produced;
+		if (produced > 0)
+			out.write(output);
+		else
+			output.release();
+		// report how much of the stream we consumed, not how long the output will take to play
+		return samples / SAMPLES_PER_MS;
+	}
+
+	@Override
+	public void missed(int duration, boolean missing) throws IOException {
+		flush();
+		out.missed(duration, missing);
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+
+	private boolean canStep() {
+		int start = position / 100;
+		return start + SEEK + HOP * 2 <= inputLen
+				&& (natural < 0 || natural + HOP <= inputLen);
+	}
+
+	// produce HOP samples of output
+	private void step(byte output[], int offset) {
+		int start = position / 100;
+		int best;
+		boolean first = natural < 0;
+		if (first || rate == 100) {
+			best = first ? start : natural;
+		} else {
+			best = findBestMatch(start);
+		}
+
+		for (int i = 0; i < HOP; i++) {
+			int sample = input[best + i];
+			int value = first ? sample : tail[i] + ((sample * FADE[i]) >> 15);
+			if (value > Short.MAX_VALUE)
+				value = Short.MAX_VALUE;
+			else if (value < Short.MIN_VALUE)
+				value = Short.MIN_VALUE;
+			output[offset + i * 2] = (byte) value;
+			output[offset + i * 2 + 1] = (byte) (value >> 8);
+
+			// fade the rest of this segment out, so that at 100% the two halves sum exactly
+			int next = input[best + HOP + i];
+			tail[i] = next - ((next * FADE[i]) >> 15);
+		}
+		natural = best + HOP;
+		if (rate == 100)
+			// stay in step with the natural continuation
+			position = natural * 100;
+		else
+			position += HOP * rate;
+	}
+
+	// find the segment near start that best matches the natural continuation of the last segment
+	private int findBestMatch(int start) {
+		int from = start - SEEK;
+		if (from < 0)
+			from = 0;
+		int to = start + SEEK;
+
+		int best = natural;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for (int candidate = from; candidate <= to; candidate++) {
+			long correlation = 0;
+			long energy = 0;
+			for (int i = 0; i < HOP; i++) {
+				int sample = input[candidate + i];
+				correlation += sample * input[natural + i];
+				energy += sample * sample;
+			}
+			// normalised cross correlation, without the square root
+			double score = energy == 0 ? 0 : (double) correlation * Math.abs(correlation) / energy;
+			if (score > bestScore) {
+				bestScore = score;
+				best = candidate;
+			}
+		}
+		return best;
+	}
+
+	// forget audio we no longer need
+	private void compact() {
+		int keep = position / 100 - SEEK;
+		if (natural >= 0 && natural < keep)
+			keep = natural;
+		if (keep > inputLen)
+			keep = inputLen;
+		if (keep <= 0)
+			return;
+		System.arraycopy(input, keep, input, 0, inputLen - keep);
+		inputLen -= keep;
+		position -= keep * 100;
+		if (natural >= 0)
+			natural -= keep;
+	}
+
+	// pass on everything we are holding, finishing the current cross fade
+	private void flush() throws IOException {
+		int from = natural < 0 ? position / 100 : natural;
+		if (from < inputLen) {
+			AudioBuffer output = buffers.getBuffer();
+			output.codec = VoMP.Codec.Signed16;
+			int len = 0;
+			for (int i = from; i < inputLen; i++) {
+				int value = input[i];
+				if (natural >= 0 && i - from < HOP)
+					value = tail[i - from] + ((value * FADE[i - from]) >> 15);
+				if (value > Short.MAX_VALUE)
+					value = Short.MAX_VALUE;
+				else if (value < Short.MIN_VALUE)
+					value = Short.MIN_VALUE;
+				output.buff[len++] = (byte) value;
+				output.buff[len++] = (byte) (value >> 8);
+			}
+			output.dataLen = len;
+			out.write(output);
+		}
+		inputLen = 0;
+		position = 0;
+		natural = -1;
+	}
+}
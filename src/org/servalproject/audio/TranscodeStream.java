@@ -14,6 +14,9 @@ public class TranscodeStream extends AudioStream {
 	private final boolean encode;
 	VoMP.Codec codec;
 	Codec encoder;
+	// codec to switch the encoder to, before the next buffer
+	private volatile VoMP.Codec nextCodec;
+	private int bitrate;
 
 	public static TranscodeStream getEncoder(AudioStream out, VoMP.Codec codec) {
 		return new TranscodeStream(out, codec);
@@ -53,7 +56,7 @@ public class TranscodeStream extends AudioStream {
 			this.encoder = new Codec2(codec);
 			break;
 		case Opus:
-			this.encoder = new Opus();
+			this.encoder = new Opus(encode);
 			break;
 		default:
 			throw new IllegalStateException("Unsupported codec " + codec);
@@ -61,9 +64,34 @@ public class TranscodeStream extends AudioStream {
 		this.codec = codec;
 	}
 
+	// switch the encoder to another codec, from any thread
+	public void setCodec(VoMP.Codec codec) {
+		if (encode)
+			nextCodec = codec;
+	}
+
+	public VoMP.Codec getCodec() {
+		VoMP.Codec next = nextCodec;
+		return next == null ? codec : next;
+	}
+
+	// a starting bitrate for codecs that can vary it
+	public synchronized void setBitrate(int bitrate) {
+		this.bitrate = bitrate;
+		if (encoder instanceof Opus)
+			((Opus) encoder).getRateController().setBitrate(bitrate);
+	}
+
+	// let the encoder know how audio from the other party is arriving
+	public void onReceived(int sequence, int delayMs) {
+		if (encode && encoder != null)
+			encoder.onReceived(sequence, delayMs);
+	}
+
 	@Override
 	public void missed(int duration, boolean missing) throws IOException {
-		if (this.encoder != null && duration >= 20) {
+		// only conceal audio that was lost, silence is left to the comfort noise below
+		if (missing && this.encoder != null && duration >= 20) {
 			AudioBuffer decoded = this.encoder.decode_missing(duration);
 			if (decoded != null) {
 				out.write(decoded);
@@ -77,6 +105,21 @@ public class TranscodeStream extends AudioStream {
 	public int write(AudioBuffer buff) throws IOException {
 		AudioBuffer output;
 		if (encode) {
+			VoMP.Codec next = nextCodec;
+			// wait until the recorder is sending buffers the new codec can take
+			if (next != null && buff.dataLen <= next.maxBufferSize()) {
+				nextCodec = null;
+				if (next != codec) {
+					synchronized (this) {
+						if (encoder != null)
+							encoder.close();
+						createCodec(next);
+						if (bitrate > 0 && encoder instanceof Opus)
+							((Opus) encoder).getRateController().setBitrate(bitrate);
+					}
+					Log.v("Transcoder", "Encoding with " + next);
+				}
+			}
 			if (encoder == null)
 				output = buff;
 			else {
@@ -111,6 +154,9 @@ public class TranscodeStream extends AudioStream {
 			Log.v("Transcoder", "Codec changed to " + buff.codec);
 		}
 
+		// packets can hold any number of frames, so always measure the buffer itself
+		if (encoder == null)
+			return buff.dataLen / 2 / (codec.sampleRate / 1000);
 		return encoder.sampleLength(buff) / (codec.sampleRate / 1000);
 	}
 
@@ -119,4 +165,9 @@ public class TranscodeStream extends AudioStream {
 		return out.getBufferDuration();
 	}
 
+	@Override
+	public void setPlaybackRate(int percent) {
+		out.setPlaybackRate(percent);
+	}
+
 }
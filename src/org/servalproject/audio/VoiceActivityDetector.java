@@ -0,0 +1,144 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+
+/**
+ * Sits between the recorder and the encoder, and stops sending audio while nobody is talking.
+ *
+ * Each buffer of 16 bit PCM is classified using its energy relative to a running estimate of the
+ * background noise, and its zero crossing rate so quiet fricatives ("s", "f") still count as speech.
+ * After speech stops we keep sending for HANGOVER_MS, so word endings aren't clipped.
+ *
+ * While silent, one buffer is sent every DESCRIPTOR_INTERVAL_MS so the other party can match their
+ * comfort noise to our background level. Buffers are renumbered so the sequence numbers we send
+ * stay contiguous; the receiver can then tell a gap in the audio that we suppressed (sequence
+ * numbers continue) from a gap caused by loss (sequence numbers skip).
+ */
+public class VoiceActivityDetector extends AudioStream {
+	private final AudioStream out;
+
+	private static final int HANGOVER_MS = 200;
+	private static final int DESCRIPTOR_INTERVAL_MS = 400;
+	// speech must be this many times louder than the noise floor (~6dB)
+	private static final int SPEECH_RATIO = 4;
+	// or quieter, but with a zero crossing rate typical of unvoiced speech
+	private static final int FRICATIVE_RATIO = 2;
+	private static final int FRICATIVE_MIN_CROSSINGS_PER_MS = 3;
+	// mean square energy, below this we never consider the signal to be speech
+	private static final int MIN_ENERGY = 100;
+	// how quickly the noise floor rises to follow a louder background, as a shift
+	private static final int NOISE_RISE_SHIFT = 6;
+	// nobody talks this long without a pause, the background must have got louder
+	private static final int MAX_SPEECH_MS = 8000;
+
+	private boolean enabled = true;
+	private long noiseFloor = -1;
+	private int speechMs;
+	private int hangover;
+	private int sinceDescriptor;
+	private int nextSequence;
+	private boolean talking = true;
+
+	private int sentFrames;
+	private int suppressedFrames;
+	private int suppressedMs;
+
+	public VoiceActivityDetector(AudioStream out) {
+		this.out = out;
+	}
+
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	public int getSuppressedFrames() {
+		return suppressedFrames;
+	}
+
+	public int getSuppressedMs() {
+		return suppressedMs;
+	}
+
+	public int getSentFrames() {
+		return sentFrames;
+	}
+
+	// 8kHz, mono, 16 bit
+	private static int durationMs(AudioBuffer buff) {
+		return buff.dataLen / 16;
+	}
+
+	boolean isSpeech(AudioBuffer buff) {
+		int samples = buff.dataLen / 2;
+		if (samples == 0)
+			return false;
+		long sum = 0;
+		int crossings = 0;
+		int last = 0;
+		for (int i = 0; i < samples; i++) {
+			int sample = (short) ((buff.buff[i * 2] & 0xFF) | (buff.buff[i * 2 + 1] << 8));
+			sum += sample * sample;
+			if ((sample ^ last) < 0)
+				crossings++;
+			last = sample;
+		}
+		long energy = sum / samples;
+		int ms = samples / 8;
+
+		if (noiseFloor < 0 || energy < noiseFloor)
+			noiseFloor = energy;
+
+		boolean speech = energy >= MIN_ENERGY
+				&& (energy >= noiseFloor * SPEECH_RATIO
+				|| (energy >= noiseFloor * FRICATIVE_RATIO
+				&& ms > 0 && crossings / ms >= FRICATIVE_MIN_CROSSINGS_PER_MS));
+		speechMs = speech ? speechMs + ms : 0;
+
+		// Only let the noise floor rise on frames that aren't speech, or a long sentence
+		// would drag it up to the level of speech. Rise slowly, by at most a few percent
+		// per buffer.
+		if (noiseFloor < energy && (!speech || speechMs > MAX_SPEECH_MS)) {
+			noiseFloor += Math.min(energy - noiseFloor, noiseFloor) >> NOISE_RISE_SHIFT;
+			noiseFloor++;
+		}
+		return speech;
+	}
+
+	@Override
+	public int write(AudioBuffer buff) throws IOException {
+		int duration = durationMs(buff);
+		boolean send = true;
+		if (enabled) {
+			if (isSpeech(buff)) {
+				hangover = HANGOVER_MS;
+				talking = true;
+			} else if (hangover > 0) {
+				hangover -= duration;
+			} else {
+				if (talking) {
+					talking = false;
+					sinceDescriptor = DESCRIPTOR_INTERVAL_MS;
+				}
+				sinceDescriptor += duration;
+				if (sinceDescriptor >= DESCRIPTOR_INTERVAL_MS)
+					sinceDescriptor = 0;
+				else
+					send = false;
+			}
+		}
+		if (!send) {
+			suppressedFrames++;
+			suppressedMs += duration;
+			buff.release();
+			return 0;
+		}
+		sentFrames++;
+		buff.sequence = nextSequence++;
+		return out.write(buff);
+	}
+
+	@Override
+	public void close() throws IOException {
+		out.close();
+	}
+}
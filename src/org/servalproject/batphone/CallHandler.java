@@ -18,13 +18,19 @@ import android.util.Log;
 
 import org.servalproject.R;
 import org.servalproject.ServalBatPhoneApplication;
+import org.servalproject.TimingWheel;
 import org.servalproject.audio.AudioBuffer;
 import org.servalproject.audio.AudioPlaybackStream;
 import org.servalproject.audio.AudioRecordStream;
 import org.servalproject.audio.AudioStream;
 import org.servalproject.audio.BufferList;
 import org.servalproject.audio.JitterStream;
+import org.servalproject.audio.LinkSimulator;
+import org.servalproject.audio.MicrophoneCapture;
+import org.servalproject.audio.PacketisationController;
+import org.servalproject.audio.TimeStretch;
 import org.servalproject.audio.TranscodeStream;
+import org.servalproject.audio.VoiceActivityDetector;
 import org.servalproject.servald.DnaResult;
 import org.servalproject.servald.Peer;
 import org.servalproject.servald.PeerListService;
@@ -33,11 +39,12 @@ import org.servalproject.servaldna.SubscriberId;
 import org.servalproject.servaldna.keyring.KeyringIdentity;
 
 import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.List;
 
 // This class maintains the state of a call
 // handles the lifecycle of recording and playback
@@ -74,11 +81,62 @@ public class CallHandler {
 	private UnsecuredCall ui;
 	private MediaPlayer mediaPlayer;
 	private BufferList bufferList;
-	private final Timer timer = new Timer();
+	private final CallStats stats = new CallStats();
+	private final TimingWheel.Timeout keepAliveCheck = new TimingWheel.Timeout("CallKeepAlive",
+			new Runnable() {
+				@Override
+				public void run() {
+					if (state == CallState.End)
+						return;
+					long now = SystemClock.elapsedRealtime();
+					if (now > (lastKeepAliveTime + 5000)) {
+						// End call if no keep alive received
+						Log.d(TAG,
+								"Keepalive expired for call: "
+										+ lastKeepAliveTime + " vs "
+										+ now);
+						hangup();
+					} else {
+						app.timers.schedule(keepAliveCheck, 3000);
+					}
+				}
+			});
+
+	// codecs we can both use, so we can change our mind during the call
+	private final List<VoMP.Codec> commonCodecs = new ArrayList<VoMP.Codec>();
+	private VoMP.Codec pendingCodec;
+	private int checkedReceived;
+	private int checkedLost;
+	static final int CODEC_CHECK_INTERVAL = 5000;
+
+	private final TimingWheel.Timeout codecCheck = new TimingWheel.Timeout("CallCodecCheck",
+			new Runnable() {
+				@Override
+				public void run() {
+					if (state != CallState.InCall)
+						return;
+					reconsiderCodec();
+					app.timers.schedule(codecCheck, CODEC_CHECK_INTERVAL);
+				}
+			});
 
 	private Thread audioRecordThread;
 	private AudioRecordStream recorder;
+	private TranscodeStream encoder;
+	private VoiceActivityDetector vad;
+	private PacketisationController packetisation;
 	public JitterStream player;
+	// audio from the network, before it reaches the player
+	private AudioStream incoming;
+	private AudioPlaybackStream playback;
+	// where decoded audio goes, the speaker or a conference mix
+	private volatile AudioStream playbackTarget;
+	private Conference conference;
+	private AudioStream conferenceInput;
+
+	// every call we are part of, more than one means we are hosting a conference
+	private static final List<CallHandler> calls = new ArrayList<CallHandler>();
+	private static Conference currentConference;
 	private boolean ringing = false;
 	private boolean audioRunning = false;
 
@@ -89,11 +147,18 @@ public class CallHandler {
 			try {
 				if (monitor.hasStopped())
 					throw new EOFException();
+				stats.onSent(buff.sampleStart, buff.dataLen);
+				long start = System.nanoTime();
 				monitor.sendMessageAndData(buff.buff, buff.dataLen, "audio ",
 						localIdString, " ",
 						buff.codec.codeString, " ",
 						Integer.toString(buff.sampleStart), " ",
 						Integer.toString(buff.sequence));
+				PacketisationController p = packetisation;
+				TranscodeStream e = encoder;
+				// the audio in this packet, not the gap since the last one, which includes silence
+				if (p != null && e != null)
+					p.onSent(e.sampleDurationMs(buff), System.nanoTime() - start);
 			} finally {
 				buff.release();
 			}
@@ -101,6 +166,47 @@ public class CallHandler {
 		}
 	};
 
+	private AudioStream playerInput = new AudioStream() {
+		@Override
+		public int write(AudioBuffer buff) throws IOException {
+			stats.onReceived(buff.sequence, buff.sampleStart, buff.dataLen, buff.thisDelay);
+			TranscodeStream e = encoder;
+			if (e != null)
+				e.onReceived(buff.sequence, buff.thisDelay);
+			PacketisationController p = packetisation;
+			if (p != null)
+				p.onReceived(buff.sequence, buff.thisDelay);
+			return player.write(buff);
+		}
+
+		@Override
+		public void close() throws IOException {
+			player.close();
+		}
+	};
+
+	private final AudioStream playbackSink = new AudioStream() {
+		@Override
+		public int write(AudioBuffer buff) throws IOException {
+			return playbackTarget.write(buff);
+		}
+
+		@Override
+		public void missed(int duration, boolean missing) throws IOException {
+			playbackTarget.missed(duration, missing);
+		}
+
+		@Override
+		public int getBufferDuration() {
+			return playbackTarget.getBufferDuration();
+		}
+
+		@Override
+		public void close() throws IOException {
+			playbackTarget.close();
+		}
+	};
+
 	public static void dial(DnaResult result) throws IOException {
 		CallHandler call = createCall(result.peer);
 		call.did = result.ext == null ? result.did : result.ext;
@@ -122,20 +228,98 @@ public class CallHandler {
 	private static synchronized CallHandler createCall(Peer peer)
 			throws IOException {
 		ServalBatPhoneApplication app = ServalBatPhoneApplication.context;
-		if (app.callHandler != null)
-			throw new IOException(
-					"Only one call is allowed at a time");
+		if (!calls.isEmpty()) {
+			// more people can join a call that is in progress, as a conference
+			if (activeCall(null) == null)
+				throw new IOException(
+						"Only one call can be set up at a time");
+			if (calls.size() >= Conference.MAX_CALLS)
+				throw new IOException(
+						"Too many people in this conference");
+		}
 		ServalDMonitor monitor = app.server.getMonitor();
 		if (monitor == null)
 			throw new IOException(
 					"Not currently connected to serval daemon");
-		CallHandler call = app.callHandler = new CallHandler(app, monitor, peer);
+		CallHandler call = new CallHandler(app, monitor, peer);
+		calls.add(call);
+		if (app.callHandler == null)
+			app.callHandler = call;
 		return call;
 	}
 
+	private static synchronized void removeCall(CallHandler call) {
+		calls.remove(call);
+		ServalBatPhoneApplication app = ServalBatPhoneApplication.context;
+		if (app.callHandler == call)
+			app.callHandler = calls.isEmpty() ? null : calls.get(0);
+	}
+
+	// a call other than this one, with audio running
+	private static synchronized CallHandler activeCall(CallHandler except) {
+		for (CallHandler call : calls) {
+			if (call != except && call.audioRunning)
+				return call;
+		}
+		return null;
+	}
+
+	private static synchronized CallHandler findCall(int session) {
+		for (CallHandler call : calls) {
+			if (call.state != null && call.local_id == session)
+				return call;
+		}
+		return null;
+	}
+
+	// our call with this peer, if we have one
+	public static synchronized CallHandler findCall(SubscriberId sid) {
+		for (CallHandler call : calls) {
+			if (call.remotePeer.getSubscriberId().equals(sid))
+				return call;
+		}
+		return null;
+	}
+
+	// a call we have dialed, that servald hasn't told us about yet
+	private static synchronized CallHandler findDialing(SubscriberId sid) {
+		for (CallHandler call : calls) {
+			if (call.state == null && call.initiated
+					&& call.remotePeer.getSubscriberId().equals(sid))
+				return call;
+		}
+		return null;
+	}
+
+	// mix this call into a conference with the call in progress
+	private static synchronized void joinConference(CallHandler call, CallHandler host) {
+		if (currentConference == null) {
+			// the call in progress hands its speaker and microphone to the conference
+			Conference conference = new Conference(host.playback);
+			host.conference = conference;
+			host.conferenceInput = conference.join(host, host.vad);
+			host.playbackTarget = host.conferenceInput;
+			conference.start(host.recorder);
+			host.recorder = null;
+			currentConference = conference;
+		}
+		call.conference = currentConference;
+		call.conferenceInput = currentConference.join(call, call.vad);
+		call.playbackTarget = call.conferenceInput;
+	}
+
+	private static synchronized void leaveConference(CallHandler call) {
+		Conference conference = call.conference;
+		if (conference == null)
+			return;
+		if (conference.leave(call, call.conferenceInput) && currentConference == conference)
+			currentConference = null;
+		call.conference = null;
+		call.conferenceInput = null;
+	}
+
 	private static class EventMonitor implements ServalDMonitor.Messages {
 		private final ServalDMonitor monitor;
-		ServalBatPhoneApplication app = ServalBatPhoneApplication.context;
 
 		private EventMonitor(ServalDMonitor monitor){
 			this.monitor = monitor;
@@ -170,40 +354,48 @@ public class CallHandler {
 
 		}
 
-		private boolean checkSession(Iterator<String> args){
-			int local_session = ServalDMonitor.parseIntHex(args.next());
-			CallHandler call = app.callHandler;
-			if (call != null && call.local_id == local_session){
-				call.lastKeepAliveTime = SystemClock.elapsedRealtime();
-				return true;
-			}
-
-			// one call at a time
-			monitor.sendMessageAndLog("hangup ", Integer.toHexString(local_session));
-			return false;
-		}
-
 		@Override
 		public int message(String cmd, Iterator<String> args, InputStream in,
 				int dataLength) throws IOException {
 			int ret = 0;
-			CallHandler call = app.callHandler;
+			int local_session = ServalDMonitor.parseIntHex(args.next());
+			CallHandler call = findCall(local_session);
 
-			if (cmd.equalsIgnoreCase("HANGUP") && call==null)
+			if (call != null) {
+				call.lastKeepAliveTime = SystemClock.elapsedRealtime();
+				if (cmd.equalsIgnoreCase("CODECS")) {
+					call.codecs(args);
+				}else if(cmd.equalsIgnoreCase("RINGING")) {
+					call.setCallState(CallState.RemoteRinging);
+				}else if(cmd.equalsIgnoreCase("ANSWERED")) {
+					call.setCallState(CallState.InCall);
+				} else if (cmd.equalsIgnoreCase("AUDIO")) {
+					ret += call.receivedAudio(args, in, dataLength);
+				} else if (cmd.equalsIgnoreCase("HANGUP")) {
+					call.setCallState(CallState.End);
+				}
+				return ret;
+			}
+
+			if (cmd.equalsIgnoreCase("HANGUP"))
 				// NOOP
 				return 0;
 
-			int local_session = ServalDMonitor.parseIntHex(args.next());
-			if (call==null){
-				if(cmd.equals("CALLFROM")){
-					try {
-						args.next(); // local_sid
-						args.next(); // local_did
-						SubscriberId remote_sid = new SubscriberId(args.next());
-						String remote_did = args.next();
-						Peer peer = PeerListService.getPeer(remote_sid);
+			if(cmd.equals("CALLFROM")){
+				try {
+					args.next(); // local_sid
+					args.next(); // local_did
+					SubscriberId remote_sid = new SubscriberId(args.next());
+					String remote_did = args.next();
+					Peer peer = PeerListService.getPeer(remote_sid);
 
+					try {
 						call = createCall(peer);
+					} catch (IOException e) {
+						Log.v(TAG, "Rejecting call; " + e.getMessage());
+						call = null;
+					}
+					if (call != null) {
 						call.local_id = local_session;
 						call.localIdString = Integer.toHexString(local_session);
 						call.did = remote_did;
@@ -212,9 +404,9 @@ public class CallHandler {
 								Integer.toHexString(local_session));
 						call.setCallState(CallState.Ringing);
 						return 0;
-					} catch (SubscriberId.InvalidHexException e) {
-						throw new IOException("invalid SubscriberId token: " + e);
 					}
+				} catch (SubscriberId.InvalidHexException e) {
+					throw new IOException("invalid SubscriberId token: " + e);
 				}
 			}else if (cmd.equalsIgnoreCase("CALLTO")) {
 				try{
@@ -223,9 +415,8 @@ public class CallHandler {
 					SubscriberId remote_sid = new SubscriberId(args.next());
 					args.next(); // remote_did
 
-					if (   call.state == null
-							&& call.remotePeer.getSubscriberId().equals(remote_sid)
-							&& call.initiated){
+					call = findDialing(remote_sid);
+					if (call != null){
 						call.local_id = local_session;
 						call.localIdString = Integer.toHexString(local_session);
 						call.lastKeepAliveTime = SystemClock.elapsedRealtime();
@@ -235,22 +426,8 @@ public class CallHandler {
 				} catch (SubscriberId.InvalidHexException e) {
 					throw new IOException("invalid SubscriberId token: " + e);
 				}
-			}else if(call.local_id==local_session){
-				call.lastKeepAliveTime = SystemClock.elapsedRealtime();
-				if (cmd.equalsIgnoreCase("CODECS")) {
-					call.codecs(args);
-				}else if(cmd.equalsIgnoreCase("RINGING")) {
-					call.setCallState(CallState.RemoteRinging);
-				}else if(cmd.equalsIgnoreCase("ANSWERED")) {
-					call.setCallState(CallState.InCall);
-				} else if (cmd.equalsIgnoreCase("AUDIO")) {
-					ret += call.receivedAudio(args, in, dataLength);
-				} else if (cmd.equalsIgnoreCase("HANGUP")) {
-					call.setCallState(CallState.End);
-				}
-				return ret;
 			}
-			// one call at a time
+			// not a call we know about, or we're too busy to take it
 			monitor.sendMessageAndLog("hangup ", Integer.toHexString(local_session));
 			return ret;
 		}
@@ -258,6 +435,13 @@ public class CallHandler {
 
 	public static void registerMessageHandlers(ServalDMonitor monitor) {
 		new EventMonitor(monitor);
+		// measure our codecs now, rather than while setting up the first call
+		ServalBatPhoneApplication.context.runOnBackgroundThread(new Runnable() {
+			@Override
+			public void run() {
+				CodecSelector.measure();
+			}
+		});
 	}
 
 	private CallHandler(ServalBatPhoneApplication app, ServalDMonitor monitor,
@@ -268,21 +452,7 @@ public class CallHandler {
 		this.did = peer.did;
 		this.name = peer.name;
 		lastKeepAliveTime = SystemClock.elapsedRealtime();
-
-		timer.scheduleAtFixedRate(new TimerTask() {
-			@Override
-			public void run() {
-				long now = SystemClock.elapsedRealtime();
-				if (now > (lastKeepAliveTime + 5000)) {
-					// End call if no keep alive received
-					Log.d(TAG,
-							"Keepalive expired for call: "
-									+ lastKeepAliveTime + " vs "
-									+ now);
-					hangup();
-				}
-			}
-		}, 0, 3000);
+		app.timers.schedule(keepAliveCheck, 3000);
 	}
 
 	public void hangup() {
@@ -314,11 +484,10 @@ public class CallHandler {
 	}
 
 	public void pickup() {
-		CallHandler call = app.callHandler;
-		if (state == CallState.Ringing && call !=null){
+		if (state == CallState.Ringing){
 			Log.d(TAG, "Picking up");
 			monitor.sendMessageAndLog("pickup ", Integer.toHexString(local_id));
-			call.setCallState(CallState.InCall);
+			setCallState(CallState.InCall);
 		}
 	}
 
@@ -363,29 +532,56 @@ public class CallHandler {
 
 	private void startAudio() {
 		try {
-			if (this.recorder == null)
-				throw new IllegalStateException(
-						"Audio recorder has not been initialised");
+			CallHandler host = activeCall(this);
+			if (this.recorder == null && host == null)
+				createRecorder();
 			Log.v(TAG, "Starting audio");
 
-			this.recorder.setStream(TranscodeStream.getEncoder(monitorOutput,
-					codec));
-
-			AudioManager am = (AudioManager) app
-					.getSystemService(Context.AUDIO_SERVICE);
-
-			AudioPlaybackStream playback = new AudioPlaybackStream(
-					am,
-					AudioManager.STREAM_VOICE_CALL,
-					SAMPLE_RATE,
-					AudioFormat.CHANNEL_OUT_MONO,
-					AudioFormat.ENCODING_PCM_16BIT,
-					8 * 60 * 2);
+			this.encoder = TranscodeStream.getEncoder(monitorOutput, codec);
+			this.encoder.setBitrate(CodecSelector.opusBitrate(remotePeer.getHopCount(), 0));
+			this.vad = new VoiceActivityDetector(encoder);
+			this.packetisation = new PacketisationController(codec.sampleDuration,
+					codec.maxPacketDuration());
+
+			if (host != null) {
+				// another call is in progress, mix them together
+				if (this.recorder != null) {
+					this.recorder.close();
+					this.recorder = null;
+				}
+				joinConference(this, host);
+			} else {
+				this.recorder.setPacketisation(packetisation);
+				this.recorder.setStream(vad);
+
+				AudioManager am = (AudioManager) app
+						.getSystemService(Context.AUDIO_SERVICE);
+
+				this.playback = new AudioPlaybackStream(
+						am,
+						AudioManager.STREAM_VOICE_CALL,
+						SAMPLE_RATE,
+						AudioFormat.CHANNEL_OUT_MONO,
+						AudioFormat.ENCODING_PCM_16BIT,
+						8 * 60 * 2);
+				this.playbackTarget = playback;
+			}
 
-			AudioStream output = TranscodeStream.getDecoder(playback);
+			// decode, then let the jitter buffer adjust our playback speed
+			AudioStream output = TranscodeStream.getDecoder(new TimeStretch(playbackSink));
 
 			this.player = new JitterStream(output);
+			stats.setPlayout(this.player.stats);
 			this.player.startPlaying();
+			app.timers.schedule(codecCheck, CODEC_CHECK_INTERVAL);
+
+			// debug builds can make the network look worse than it is, to test the audio path
+			String simulate = ServalBatPhoneApplication.isDebuggable
+					? app.settings.getString("debug_simulate_link", null) : null;
+			if (simulate != null && !simulate.equals(""))
+				this.incoming = new LinkSimulator(playerInput, simulate);
+			else
+				this.incoming = playerInput;
 
 			audioRunning = true;
 		} catch (Exception e) {
@@ -394,16 +590,18 @@ public class CallHandler {
 	}
 
 	private void stopAudio() {
-		if (this.recorder == null)
+		if (this.recorder == null && this.conference == null)
 			throw new IllegalStateException(
 					"Audio recorder has not been initialised");
 		Log.v(TAG, "Stopping audio");
-		this.recorder.close();
+		if (this.recorder != null)
+			this.recorder.close();
 		try {
-			this.player.close();
+			this.incoming.close();
 		} catch (IOException e) {
 			Log.e(TAG, e.getMessage(), e);
 		}
+		leaveConference(this);
 		audioRunning = false;
 	}
 
@@ -414,6 +612,8 @@ public class CallHandler {
 			return;
 		this.state = state;
 		Log.v(TAG, "Call state changed to " + state);
+		if (state == CallState.RemoteRinging)
+			stats.ringing = SystemClock.elapsedRealtime();
 
 		// TODO play audio indicator for Prep / RemoteRinging / End
 
@@ -426,25 +626,17 @@ public class CallHandler {
 		if (audioRunning != (state == CallState.InCall)) {
 			if (audioRunning) {
 				callEnded = SystemClock.elapsedRealtime();
+				stats.ended = callEnded;
 				stopAudio();
 			} else {
 				callStarted = SystemClock.elapsedRealtime();
+				stats.answered = callStarted;
+				stats.codec = codec;
 				startAudio();
 			}
 		}
 
-		Intent myIntent = new Intent(
-				app,
-				UnsecuredCall.class);
-
-		myIntent.putExtra(UnsecuredCall.EXTRA_SID, remotePeer.getSubscriberId().toHex());
-		myIntent.putExtra(UnsecuredCall.EXTRA_EXISTING, true);
-
-		// Create call as a standalone activity
-		// stack
-		myIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
-				Intent.FLAG_ACTIVITY_CLEAR_TOP |
-				Intent.FLAG_ACTIVITY_SINGLE_TOP);
+		Intent myIntent = callIntent();
 
 		// open the UI if we initiated the call, or we reached ringing
 		// state.
@@ -463,33 +655,71 @@ public class CallHandler {
 		if (state == CallState.End){
 			if (this.recorder != null) {
 				this.recorder.close();
+				stats.overruns = recorder.getOverruns();
+				stats.overrunMs = recorder.getOverrunMs();
 				recorder = null;
 			}
-			if (this.player != null)
+			if (this.incoming != null)
 				try {
-					this.player.close();
+					this.incoming.close();
 				} catch (IOException e) {
 					Log.e(TAG, e.getMessage(), e);
 				}
-			timer.cancel();
-			nm.cancel("Call", ServalBatPhoneApplication.NOTIFY_CALL);
-			app.callHandler = null;
+			app.timers.cancel(keepAliveCheck);
+			app.timers.cancel(codecCheck);
+			if (stats.ended == 0)
+				stats.ended = SystemClock.elapsedRealtime();
+			if (vad != null)
+				stats.suppressedMs = vad.getSuppressedMs();
+			if (packetisation != null) {
+				stats.packetMs = packetisation.getPacketDuration();
+				stats.packetChanges = packetisation.getChanges();
+			}
+			app.runOnBackgroundThread(saveStats);
+			leaveConference(this);
+			removeCall(this);
+			// point the notification at any call that is still going
+			CallHandler remaining = app.callHandler;
+			if (remaining != null)
+				remaining.showNotification(nm);
+			else
+				nm.cancel("Call", ServalBatPhoneApplication.NOTIFY_CALL);
 		}else{
-			// Update the in call notification so the user can re-open the UI
-			Notification inCall = new Notification(
-					android.R.drawable.stat_sys_phone_call,
-					remotePeer.getDisplayName(),
-					System.currentTimeMillis());
-
-			inCall.setLatestEventInfo(app, "Serval Phone Call",
-					remotePeer.getDisplayName(),
-					PendingIntent.getActivity(app, 0,
-							myIntent,
-							PendingIntent.FLAG_UPDATE_CURRENT));
-			nm.notify("Call", ServalBatPhoneApplication.NOTIFY_CALL, inCall);
+			showNotification(nm);
 		}
 	}
 
+	private Intent callIntent() {
+		Intent myIntent = new Intent(
+				app,
+				UnsecuredCall.class);
+
+		myIntent.putExtra(UnsecuredCall.EXTRA_SID, remotePeer.getSubscriberId().toHex());
+		myIntent.putExtra(UnsecuredCall.EXTRA_EXISTING, true);
+
+		// Create call as a standalone activity
+		// stack
+		myIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK |
+				Intent.FLAG_ACTIVITY_CLEAR_TOP |
+				Intent.FLAG_ACTIVITY_SINGLE_TOP);
+		return myIntent;
+	}
+
+	// Update the in call notification so the user can re-open the UI
+	private void showNotification(NotificationManager nm) {
+		Notification inCall = new Notification(
+				android.R.drawable.stat_sys_phone_call,
+				remotePeer.getDisplayName(),
+				System.currentTimeMillis());
+
+		inCall.setLatestEventInfo(app, "Serval Phone Call",
+				remotePeer.getDisplayName(),
+				PendingIntent.getActivity(app, 0,
+						callIntent(),
+						PendingIntent.FLAG_UPDATE_CURRENT));
+		nm.notify("Call", ServalBatPhoneApplication.NOTIFY_CALL, inCall);
+	}
+
 	public void setCallUI(UnsecuredCall ui) {
 		this.ui = ui;
 		uiStarted = ui != null;
@@ -502,6 +732,7 @@ public class CallHandler {
 			Log.v(TAG, "Calling " + remotePeer.sid.abbreviation() + "/"
 					+ did);
 			initiated = true;
+			stats.outgoing = true;
 			monitor.sendMessageAndLog("call ",
 					remotePeer.sid.toHex(), " ",
 					identity.did, " ", did);
@@ -517,8 +748,9 @@ public class CallHandler {
 		if (state != CallState.InCall)
 			return 0;
 
+		// packets may carry anything up to VoMP.Codec.MAX_DURATION ms of audio
 		if (bufferList == null)
-			bufferList = new BufferList(VoMP.Codec.Signed16.maxBufferSize() / 2);
+			bufferList = new BufferList(VoMP.MAX_AUDIO_BYTES);
 
 		if (dataBytes > bufferList.mtu) {
 			Log.v(TAG, "Audio size " + dataBytes
@@ -544,52 +776,106 @@ public class CallHandler {
 				throw new EOFException();
 			read += actualRead;
 		}
-		player.write(buff);
+		incoming.write(buff);
 		return read;
 	}
 
 	public void codecs(Iterator<String> args) {
 		try {
-			VoMP.Codec best = null;
-
+			commonCodecs.clear();
 			while (args.hasNext()) {
 				int c = ServalDMonitor.parseInt(args.next());
 				VoMP.Codec codec = VoMP.Codec.getCodec(c);
-				if (!codec.isSupported())
-					continue;
-
-				if (best == null || codec.preference > best.preference) {
-					best = codec;
-				}
+				if (codec != null && codec.isSupported())
+					commonCodecs.add(codec);
 			}
 
+			// we haven't heard from the other party yet, so assume there's no loss
+			VoMP.Codec best = CodecSelector.choose(commonCodecs, remotePeer.getHopCount(), 0);
 			if (best == null)
 				throw new IOException("Unable to find a common codec");
+			Log.v(TAG, "Using " + best + " of " + commonCodecs + " over "
+					+ remotePeer.getHopCount() + " hops");
 
 			this.codec = best;
-			int audioSource = MediaRecorder.AudioSource.MIC;
-			if (Build.VERSION.SDK_INT >= 11)
-				audioSource = 7; //MediaRecorder.AudioSource.VOICE_COMMUNICATION;
-			recorder = new AudioRecordStream(
-					null,
-					audioSource,
-					codec.sampleRate,
-					AudioFormat.CHANNEL_IN_MONO,
-					AudioFormat.ENCODING_PCM_16BIT,
-					8 * 100 * 2,
-					codec.audioBufferSize(),
-					codec.maxBufferSize());
-
-			audioRecordThread = new Thread(recorder, "Recording");
-			audioRecordThread.start();
+			// if we're already in a call, this one will share its microphone
+			if (activeCall(this) == null)
+				createRecorder();
 		} catch (IOException e) {
 			Log.e(TAG, e.getMessage(), e);
 			this.hangup();
 		}
 	}
 
+	private void createRecorder() throws IOException {
+		int audioSource = MediaRecorder.AudioSource.MIC;
+		if (Build.VERSION.SDK_INT >= 11)
+			audioSource = 7; //MediaRecorder.AudioSource.VOICE_COMMUNICATION;
+		MicrophoneCapture microphone = new MicrophoneCapture(
+				audioSource,
+				codec.sampleRate,
+				AudioFormat.CHANNEL_IN_MONO,
+				AudioFormat.ENCODING_PCM_16BIT,
+				8 * 100 * 2);
+		recorder = new AudioRecordStream(
+				null,
+				microphone,
+				codec.audioBufferSize(),
+				codec.maxBufferSize());
+
+		audioRecordThread = new Thread(recorder, "Recording");
+		audioRecordThread.start();
+	}
+
+	// switch codecs if the path has changed enough that another would suit it better
+	private void reconsiderCodec() {
+		TranscodeStream e = encoder;
+		if (e == null)
+			return;
+		int received = stats.getReceived();
+		int lost = stats.getLost();
+		int expected = received - checkedReceived + lost - checkedLost;
+		int lossPercent = expected > 0 ? (lost - checkedLost) * 100 / expected : 0;
+		checkedReceived = received;
+		checkedLost = lost;
+
+		int hops = remotePeer.getHopCount();
+		VoMP.Codec choice = CodecSelector.choose(commonCodecs, hops, lossPercent);
+		if (choice == null || choice == e.getCodec()) {
+			pendingCodec = null;
+			return;
+		}
+		// only change if the new choice holds for two checks in a row
+		if (choice != pendingCodec) {
+			pendingCodec = choice;
+			return;
+		}
+		pendingCodec = null;
+		Log.v(TAG, "Switching to " + choice + " over " + hops + " hops with "
+				+ lossPercent + "% loss");
+		PacketisationController p = packetisation;
+		if (p != null)
+			p.setMaxDuration(choice.maxPacketDuration());
+		e.setBitrate(CodecSelector.opusBitrate(hops, lossPercent));
+		e.setCodec(choice);
+		codec = choice;
+		stats.codec = choice;
+		stats.codecChanges++;
+	}
+
 	public long getCallStarted() {
 		return callStarted;
 	}
 
+	public CallStats getStats() {
+		return stats;
+	}
+
+	private final Runnable saveStats = new Runnable() {
+		@Override
+		public void run() {
+			stats.save(new File(app.coretask.DATA_FILE_PATH, "var/log"));
+		}
+	};
+
 }
@@ -0,0 +1,244 @@
+package org.servalproject.batphone;
+
+import android.os.SystemClock;
+
+import org.servalproject.EventLog;
+import org.servalproject.audio.JitterStream;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Quality statistics for a single call.
+ *
+ * When the call ends, one line describing it is appended to the call quality log, so we can
+ * find bad links and tune the jitter buffer from real calls.
+ */
+public class CallStats {
+	private static final String TAG = "CallStats";
+	static final String LOG_NAME = "call-quality.log";
+	// one way delay histogram, in DELAY_BUCKET_MS steps
+	private static final int DELAY_BUCKET_MS = 10;
+	private static final int DELAY_BUCKETS = 200;
+
+	boolean outgoing;
+	final long created = SystemClock.elapsedRealtime();
+	private final long wallClock = System.currentTimeMillis();
+	VoMP.Codec codec;
+	// times we switched to another codec during the call
+	int codecChanges;
+	long ringing;
+	long answered;
+	long ended;
+
+	// audio we received
+	private int firstSequence = -1;
+	private int highestSequence = -1;
+	private int received;
+	private int reordered;
+	private long receivedBytes;
+	private int firstReceivedSample = -1;
+	private int lastReceivedSample;
+	private final int delays[] = new int[DELAY_BUCKETS];
+
+	// audio we sent
+	private int sent;
+	private long sentBytes;
+	private int firstSentSample = -1;
+	private int lastSentSample;
+	// audio we didn't send because we weren't talking
+	int suppressedMs;
+	// how much audio we were putting in each packet when the call ended, and how often that changed
+	int packetMs;
+	int packetChanges;
+	// times our recorder lost audio because we fell behind
+	int overruns;
+	int overrunMs;
+
+	private JitterStream.Stats playout;
+
+	// sample times are in ms from the start of the audio stream
+	synchronized void onReceived(int sequence, int sampleStart, int bytes, int delayMs) {
+		if (firstSequence == -1) {
+			firstSequence = sequence;
+			highestSequence = sequence;
+		} else if (sequence - highestSequence > 0) {
+			highestSequence = sequence;
+		} else {
+			reordered++;
+		}
+		received++;
+		receivedBytes += bytes;
+		if (firstReceivedSample == -1) {
+			firstReceivedSample = sampleStart;
+			lastReceivedSample = sampleStart;
+		} else if (sampleStart - lastReceivedSample > 0) {
+			lastReceivedSample = sampleStart;
+		}
+		int bucket = delayMs / DELAY_BUCKET_MS;
+		if (bucket < 0)
+			bucket = 0;
+		if (bucket >= DELAY_BUCKETS)
+			bucket = DELAY_BUCKETS - 1;
+		delays[bucket]++;
+	}
+
+	synchronized void onSent(int sampleStart, int bytes) {
+		sent++;
+		sentBytes += bytes;
+		if (firstSentSample == -1)
+			firstSentSample = sampleStart;
+		lastSentSample = sampleStart;
+	}
+
+	synchronized void setPlayout(JitterStream.Stats playout) {
+		this.playout = playout;
+	}
+
+	// packets the other party sent that never arrived, as far as we can tell from sequence numbers
+	synchronized int getLost() {
+		if (firstSequence == -1)
+			return 0;
+		int expected = highestSequence - firstSequence + 1;
+		return expected > received ? expected - received : 0;
+	}
+
+	synchronized int getReceived() {
+		return received;
+	}
+
+	// one way delay, in ms, that this percentage of received packets were under
+	synchronized int delayPercentile(int percent) {
+		if (received == 0)
+			return -1;
+		int target = (received * percent + 99) / 100;
+		int count = 0;
+		for (int i = 0; i < DELAY_BUCKETS; i++) {
+			count += delays[i];
+			if (count >= target)
+				return (i + 1) * DELAY_BUCKET_MS;
+		}
+		return DELAY_BUCKETS * DELAY_BUCKET_MS;
+	}
+
+	// equipment impairment (Ie) and packet loss robustness (Bpl) for the E-model, from ITU-T G.113
+	// where the codec is listed there, otherwise rough figures for a codec of that type
+	private static int[] impairment(VoMP.Codec codec) {
+		switch (codec) {
+		case Opus:
+			return new int[] { 11, 20 };
+		case Codec2_3200:
+			return new int[] { 30, 10 };
+		case Codec2_1200:
+			return new int[] { 45, 10 };
+		default:
+			// G.711 and linear PCM, which we don't conceal losses for
+			return new int[] { 0, 4 };
+		}
+	}
+
+	// an estimate of call quality using the simplified E-model (ITU-T G.107), or -1 if we didn't
+	// receive enough audio to tell
+	synchronized double rating() {
+		if (codec == null || received == 0)
+			return -1;
+		// one way delay, assuming the jitter buffer covers most packets and we wait for a whole frame
+		int delay = delayPercentile(95) + codec.sampleDuration;
+		double delayImpairment = 0.024 * delay;
+		if (delay > 177.3)
+			delayImpairment += 0.11 * (delay - 177.3);
+
+		int late = playout == null ? 0 : playout.late;
+		int lost = getLost();
+		double lossPercent = (lost + late) * 100.0 / (received + lost);
+		int ie[] = impairment(codec);
+		double equipmentImpairment = ie[0] + (95 - ie[0]) * lossPercent / (lossPercent + ie[1]);
+
+		double r = 93.2 - delayImpairment - equipmentImpairment;
+		return r < 0 ? 0 : r > 100 ? 100 : r;
+	}
+
+	// mean opinion score, from 1 (bad) to 4.5 (the best a phone call can be rated)
+	static double mos(double rating) {
+		if (rating < 0)
+			return -1;
+		return 1 + 0.035 * rating + 7e-6 * rating * (rating - 60) * (100 - rating);
+	}
+
+	// bits per second, over the span of audio between the first and last packet
+	private static int bitrate(long bytes, int firstSample, int lastSample) {
+		int ms = lastSample - firstSample;
+		return firstSample == -1 || ms <= 0 ? 0 : (int) (bytes * 8000 / ms);
+	}
+
+	private static long since(long start, long end) {
+		return start == 0 || end == 0 ? -1 : end - start;
+	}
+
+	@Override
+	public synchronized String toString() {
+		double rating = rating();
+		StringBuilder sb = new StringBuilder();
+		sb.append(new SimpleDateFormat("yyyy/MM/dd HH:mm:ss").format(new Date(wallClock)))
+				.append(outgoing ? " out" : " in")
+				.append(" codec=").append(codec)
+				.append(" codec_changes=").append(codecChanges)
+				.append(" ring_ms=").append(since(created, ringing))
+				.append(" setup_ms=").append(since(created, outgoing ? answered : 0))
+				.append(" duration_ms=").append(since(answered, ended))
+				.append(" rx=").append(received)
+				.append(" lost=").append(getLost())
+				.append(" reordered=").append(reordered)
+				.append(" rx_bps=").append(bitrate(receivedBytes, firstReceivedSample, lastReceivedSample))
+				.append(" tx=").append(sent)
+				.append(" tx_bps=").append(bitrate(sentBytes, firstSentSample, lastSentSample))
+				.append(" tx_suppressed_ms=").append(suppressedMs)
+				.append(" tx_overruns=").append(overruns)
+				.append(" tx_overrun_ms=").append(overrunMs)
+				.append(" tx_packet_ms=").append(packetMs)
+				.append(" tx_packet_changes=").append(packetChanges)
+				.append(" delay_p50=").append(delayPercentile(50))
+				.append(" delay_p95=").append(delayPercentile(95))
+				.append(" delay_p99=").append(delayPercentile(99))
+				.append(" r_factor=").append(Math.round(rating))
+				.append(" mos=").append(Math.round(mos(rating) * 10) / 10.0);
+		if (playout != null)
+			sb.append(" played=").append(playout.played)
+					.append(" late=").append(playout.late)
+					.append(" dropped=").append(playout.dropped)
+					.append(" duplicates=").append(playout.duplicates)
+					.append(" concealed=").append(playout.concealed)
+					.append(" concealed_ms=").append(playout.concealedMs)
+					.append(" underruns=").append(playout.underruns)
+					.append(" underrun_ms=").append(playout.underrunMs)
+					.append(" rx_suppressed_ms=").append(playout.suppressedMs)
+					.append(" stretched_ms=").append(playout.stretchedMs);
+		return sb.toString();
+	}
+
+	// append this call to the call quality log
+	void save(File folder) {
+		String line = toString();
+		EventLog.i(TAG, line);
+		FileWriter out = null;
+		try {
+			folder.mkdirs();
+			out = new FileWriter(new File(folder, LOG_NAME), true);
+			out.write(line);
+			out.write('\n');
+		} catch (IOException e) {
+			EventLog.e(TAG, e.getMessage(), e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					EventLog.e(TAG, e.getMessage(), e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package org.servalproject.batphone;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.servalproject.ServalBatPhoneApplication;
+import org.servalproject.audio.AudioBuffer;
+import org.servalproject.audio.AudioStream;
+import org.servalproject.audio.BufferList;
+import org.servalproject.audio.TranscodeStream;
+
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Chooses which codec, and for opus which starting bitrate, to send a call with.
+ *
+ * Each codec's encode + decode cost is measured once on this device, and remembered until the
+ * software is upgraded. A codec is only considered if it costs less than CPU_BUDGET of real time,
+ * and uses less bandwidth than we think the path can carry. The path estimate assumes each extra
+ * hop roughly halves the capacity of a shared wifi channel, and that a lossy path is congested.
+ * Among the codecs that fit, the one with the highest preference wins. If none fit, we send with
+ * the lowest bitrate codec this device can afford, or failing that the lowest bitrate of all.
+ *
+ * During a call, CallHandler asks again as the path changes, and can switch codecs; the decoder on
+ * the other phone follows whatever codec each packet arrives in.
+ */
+public class CodecSelector {
+	private static final String TAG = "CodecSelector";
+
+	// percentage of real time we are willing to spend encoding and decoding
+	static final int CPU_BUDGET = 20;
+	// bits per second we think a single hop can spare for a call
+	static final int PATH_CAPACITY = 256000;
+	// loss percentage above which we treat the path as congested
+	static final int LOSS_CONGESTED = 5;
+	// how much audio to run through each codec when measuring it
+	private static final int BENCHMARK_MS = 1000;
+
+	private static final String VERSION_KEY = "codecCostVersion";
+	private static final String COST_KEY = "codecCost.";
+
+	// microseconds spent to encode and decode one second of audio
+	private static Map<VoMP.Codec, Integer> costs;
+
+	// what the codec will actually send, in bits per second
+	static int bitrate(VoMP.Codec codec) {
+		switch (codec) {
+		case Signed16:
+			return 16 * codec.sampleRate;
+		case Ulaw8:
+		case Alaw8:
+			return 8 * codec.sampleRate;
+		case Gsm:
+			return 13200;
+		case Codec2_3200:
+			return 3200;
+		case Codec2_1200:
+			return 1200;
+		case Opus:
+			// opus adapts its bitrate during the call, this is the least it will use
+			return 6000;
+		}
+		return Integer.MAX_VALUE;
+	}
+
+	// bits per second we think this path can carry for us
+	static int capacity(int hops, int lossPercent) {
+		int bps = PATH_CAPACITY / (hops < 1 ? 1 : hops);
+		if (lossPercent >= LOSS_CONGESTED)
+			bps /= 2;
+		return bps;
+	}
+
+	// which bitrate an opus encoder should start from on this path
+	static int opusBitrate(int hops, int lossPercent) {
+		return capacity(hops, lossPercent) / 8;
+	}
+
+	// percentage of real time this codec needs on this device
+	static synchronized int cpuPercent(VoMP.Codec codec) {
+		if (costs == null)
+			loadCosts();
+		Integer cost = costs.get(codec);
+		return cost == null ? 0 : cost / 10000;
+	}
+
+	public static VoMP.Codec choose(Collection<VoMP.Codec> offered, int hops, int lossPercent) {
+		int capacity = capacity(hops, lossPercent);
+		VoMP.Codec best = null;
+		// lowest bitrate codecs, within the cpu budget and overall
+		VoMP.Codec cheapest = null;
+		VoMP.Codec cheapestAffordable = null;
+		for (VoMP.Codec codec : offered) {
+			if (!codec.isSupported())
+				continue;
+			int cpu = cpuPercent(codec);
+			if (cheaper(codec, cheapest))
+				cheapest = codec;
+			if (cpu > CPU_BUDGET)
+				continue;
+			if (cheaper(codec, cheapestAffordable))
+				cheapestAffordable = codec;
+			if (bitrate(codec) > capacity)
+				continue;
+			if (best == null || codec.preference > best.preference)
+				best = codec;
+		}
+		if (best != null)
+			return best;
+		// if nothing fits, do the least damage to the path without falling behind the audio
+		return cheapestAffordable == null ? cheapest : cheapestAffordable;
+	}
+
+	private static boolean cheaper(VoMP.Codec codec, VoMP.Codec than) {
+		return than == null
+				|| bitrate(codec) < bitrate(than)
+				|| (bitrate(codec) == bitrate(than) && cpuPercent(codec) < cpuPercent(than));
+	}
+
+	// measure any codecs we don't know the cost of yet, can be slow the first time
+	public static synchronized void measure() {
+		loadCosts();
+	}
+
+	private static void loadCosts() {
+		ServalBatPhoneApplication app = ServalBatPhoneApplication.context;
+		SharedPreferences settings = app.settings;
+		String version = ServalBatPhoneApplication.version;
+		boolean current = version.equals(settings.getString(VERSION_KEY, null));
+		Map<VoMP.Codec, Integer> measured = new EnumMap<VoMP.Codec, Integer>(VoMP.Codec.class);
+		SharedPreferences.Editor editor = null;
+
+		for (VoMP.Codec codec : VoMP.Codec.values()) {
+			if (!codec.isSupported())
+				continue;
+			int cost = current ? settings.getInt(COST_KEY + codec.name(), -1) : -1;
+			if (cost < 0) {
+				try {
+					cost = benchmark(codec);
+				} catch (Exception e) {
+					Log.e(TAG, "Failed to measure " + codec, e);
+					continue;
+				}
+				Log.v(TAG, codec + " uses " + (cost / 10000.0) + "% of real time");
+				if (editor == null)
+					editor = settings.edit();
+				editor.putInt(COST_KEY + codec.name(), cost);
+			}
+			measured.put(codec, cost);
+		}
+		if (editor != null) {
+			editor.putString(VERSION_KEY, version);
+			editor.commit();
+		}
+		costs = measured;
+	}
+
+	// encode and decode some speech like audio, returns microseconds per second of audio
+	private static int benchmark(VoMP.Codec codec) throws IOException {
+		final AudioStream sink = new AudioStream() {
+			@Override
+			public int write(AudioBuffer buff) throws IOException {
+				buff.release();
+				return 0;
+			}
+		};
+		final TranscodeStream decoder = TranscodeStream.getDecoder(sink);
+		TranscodeStream encoder = TranscodeStream.getEncoder(new AudioStream() {
+			@Override
+			public int write(AudioBuffer buff) throws IOException {
+				return decoder.write(buff);
+			}
+		}, codec);
+
+		BufferList buffers = new BufferList(codec.audioBufferSize());
+		int samples = codec.audioBufferSize() / 2;
+		int frames = BENCHMARK_MS / codec.sampleDuration;
+		long elapsed = 0;
+		try {
+			for (int frame = 0; frame < frames; frame++) {
+				AudioBuffer buff = buffers.getBuffer();
+				buff.codec = VoMP.Codec.Signed16;
+				buff.sampleStart = frame * codec.sampleDuration;
+				buff.sequence = frame;
+				for (int i = 0; i < samples; i++) {
+					// a 200Hz tone with some harmonics, so codecs can't take any shortcuts
+					double t = (double) (frame * samples + i) / codec.sampleRate;
+					int value = (int) (4000 * Math.sin(2 * Math.PI * 200 * t)
+							+ 2000 * Math.sin(2 * Math.PI * 600 * t)
+							+ 1000 * Math.sin(2 * Math.PI * 1400 * t));
+					buff.buff[i * 2] = (byte) value;
+					buff.buff[i * 2 + 1] = (byte) (value >> 8);
+				}
+				buff.dataLen = samples * 2;
+				long start = System.nanoTime();
+				encoder.write(buff);
+				// the first frame also pays for creating the decoder
+				if (frame > 0)
+					elapsed += System.nanoTime() - start;
+			}
+		} finally {
+			encoder.close();
+			decoder.close();
+		}
+		return (int) (elapsed / 1000 * 1000 / ((frames - 1) * codec.sampleDuration));
+	}
+}
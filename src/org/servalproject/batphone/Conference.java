@@ -0,0 +1,70 @@
+package org.servalproject.batphone;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.servalproject.audio.AudioRecordStream;
+import org.servalproject.audio.AudioStream;
+import org.servalproject.audio.Mixer;
+
+import android.util.Log;
+
+/**
+ * A conference call hosted on this phone.
+ *
+ * Each participant is an ordinary VoMP call, so they only send one stream to us and receive one
+ * stream back. Their audio is decoded by their own jitter buffer, then mixed by a single Mixer
+ * driven from our microphone. Each participant's mix is encoded by the encoder of their own call,
+ * which already suits the codec and path they negotiated.
+ *
+ * The conference takes over the recorder and speaker of the call that was in progress when it
+ * started, and releases them when the last participant leaves.
+ */
+class Conference {
+	private static final String TAG = "Conference";
+	// remote participants, the mixing and encoding all happens on this phone
+	static final int MAX_CALLS = 4;
+
+	private final Mixer mixer;
+	private AudioRecordStream recorder;
+	private final List<CallHandler> calls = new ArrayList<CallHandler>();
+
+	Conference(AudioStream speaker) {
+		this.mixer = new Mixer(speaker);
+	}
+
+	// start mixing audio from this recorder, which we now own
+	synchronized void start(AudioRecordStream recorder) {
+		this.recorder = recorder;
+		// mix every block as it arrives, participants choose their own packet sizes
+		recorder.setPacketisation(null);
+		recorder.setStream(mixer);
+		Log.v(TAG, "Conference started");
+	}
+
+	// add a call to the mix; returns where to send their decoded audio
+	synchronized AudioStream join(CallHandler call, AudioStream send) {
+		calls.add(call);
+		return mixer.addInput(send);
+	}
+
+	// returns true if that was the last call, and the conference is over
+	synchronized boolean leave(CallHandler call, AudioStream input) {
+		if (!calls.remove(call))
+			return false;
+		mixer.removeInput((Mixer.Input) input);
+		if (!calls.isEmpty())
+			return false;
+		Log.v(TAG, "Conference ended");
+		if (recorder != null)
+			recorder.close();
+		recorder = null;
+		try {
+			mixer.close();
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return true;
+	}
+}
@@ -88,7 +88,6 @@ public class UnsecuredCall extends Activity implements OnClickListener {
 	}
 
 	private void processIntent(Intent intent) {
-		CallHandler call = app.callHandler;
 		try{
 			SubscriberId sid = null;
 			boolean existing = false;
@@ -109,7 +108,8 @@ public class UnsecuredCall extends Activity implements OnClickListener {
 				throw new IllegalArgumentException("Missing argument sid");
 
 			if (existing){
-				if (call==null || !call.remotePeer.getSubscriberId().equals(sid))
+				CallHandler call = CallHandler.findCall(sid);
+				if (call==null)
 					throw new Exception("That call no longer exists");
 
 				call.setCallUI(this);
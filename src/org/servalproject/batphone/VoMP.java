@@ -44,6 +44,15 @@ public class VoMP {
 			return 2 * MAX_DURATION * (sampleRate / 1000);
 		}
 
+		// the most audio, in ms, we can put in one packet
+		public int maxPacketDuration() {
+			int ms = maxBufferSize() / (2 * (sampleRate / 1000));
+			// uncompressed audio must also fit in the daemon's audio packets
+			if (this == Signed16 && ms > MAX_AUDIO_BYTES / (2 * (sampleRate / 1000)))
+				ms = MAX_AUDIO_BYTES / (2 * (sampleRate / 1000));
+			return ms - ms % sampleDuration;
+		}
+
 		public boolean isSupported() {
 			return preference > 0;
 		}
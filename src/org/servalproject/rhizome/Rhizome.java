@@ -25,6 +25,7 @@ import android.content.SharedPreferences;
 import android.net.Uri;
 import android.util.Log;
 
+import org.servalproject.Metrics;
 import org.servalproject.R;
 import org.servalproject.ServalBatPhoneApplication;
 import org.servalproject.provider.RhizomeProvider;
@@ -47,6 +48,8 @@ public class Rhizome {
 
 	/** TAG for debugging */
 	public static final String TAG = "Rhizome";
+	private static final Metrics.Counter bundles = Metrics.counter(
+			"rhizome_bundles_total", "New or updated bundles announced by the daemon");
 
 	public static final String ACTION_RECEIVE_FILE = "org.servalproject.rhizome.RECEIVE_FILE";
 	public static final String RECEIVE_PERMISSION = "org.servalproject.rhizome.RECEIVE_FILE";
@@ -392,6 +395,7 @@ public class Rhizome {
 			public int message(String cmd, Iterator<String> args, InputStream in, int dataBytes) throws IOException {
 				int ret=0;
 				if (cmd.equalsIgnoreCase("BUNDLE")) {
+					bundles.inc();
 					try {
 						String manifestId = args.next();
 						BundleId bid = new BundleId(manifestId);
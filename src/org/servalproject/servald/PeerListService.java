@@ -23,6 +23,8 @@ import android.content.ContentResolver;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.servalproject.EventLog;
+import org.servalproject.Metrics;
 import org.servalproject.R;
 import org.servalproject.ServalBatPhoneApplication;
 import org.servalproject.account.AccountService;
@@ -58,6 +60,26 @@ public class PeerListService {
 	public static ConcurrentMap<SubscriberId, Peer> peers = new ConcurrentHashMap<SubscriberId, Peer>();
 	private static final String TAG="PeerListService";
 
+	static {
+		Metrics.gauge("servald_peers", "Peers we know about", new Metrics.Source() {
+			@Override
+			public long value() {
+				return peers.size();
+			}
+		});
+		Metrics.gauge("servald_reachable_peers", "Peers that are currently reachable", new Metrics.Source() {
+			@Override
+			public long value() {
+				int count = 0;
+				for (Peer p : peers.values()) {
+					if (p.isReachable())
+						count++;
+				}
+				return count;
+			}
+		});
+	}
+
 	public static Peer getPeer(SubscriberId sid) {
 		boolean changed = false;
 
@@ -129,14 +151,16 @@ public class PeerListService {
 			return;
 		}
 
-		Log.v(TAG, "Attempting to fetch details for " + p.getSubscriberId().abbreviation());
+		if (EventLog.V)
+			EventLog.v(TAG, "Attempting to fetch details for " + p.getSubscriberId().abbreviation());
 		try {
 			if (lookupSocket==null){
 				lookupSocket = ServalBatPhoneApplication.context.server.getMdpDnaLookup(
 						new AsyncResult<ServalDCommand.LookupResult>() {
 							@Override
 							public void result(ServalDCommand.LookupResult nextResult) {
-								Log.v(TAG, "Resolved; "+nextResult.toString());
+								if (EventLog.V)
+									EventLog.v(TAG, "Resolved; "+nextResult.toString());
 								boolean changed = false;
 
 								Peer p = peers.get(nextResult.subscriberId);
@@ -306,7 +330,8 @@ public class PeerListService {
 						SubscriberId transmitter = sid.equals("") ? null : new SubscriberId(sid);
 						SubscriberId receiver = new SubscriberId(iArgs.next());
 
-						Log.v(TAG, "Link; " + receiver.abbreviation() + " " + (transmitter == null ? "" : transmitter.abbreviation()) + " " + hop_count);
+						if (EventLog.V)
+							EventLog.v(TAG, "Link; " + receiver.abbreviation() + " " + (transmitter == null ? "" : transmitter.abbreviation()) + " " + hop_count);
 						boolean changed = false;
 
 						Peer p = peers.get(receiver);
@@ -32,8 +32,10 @@ import android.os.Process;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.servalproject.BackgroundLanes.Lane;
 import org.servalproject.R;
 import org.servalproject.ServalBatPhoneApplication;
+import org.servalproject.TimingWheel;
 import org.servalproject.batphone.CallHandler;
 import org.servalproject.rhizome.Rhizome;
 import org.servalproject.servaldna.AsyncResult;
@@ -96,6 +98,7 @@ public class ServalD extends ServerControl implements IJniServer
 		super(execPath);
 		this.context = context;
 		this.app = ServalBatPhoneApplication.context;
+		readAlarmSlack();
 	}
 
 	public static synchronized ServalD getServer(String execPath, Context context){
@@ -238,8 +241,50 @@ public class ServalD extends ServerControl implements IJniServer
 
 	private PowerManager.WakeLock cpuLock;
 	private volatile long wakeAt; // >0, wait until this SystemClock.elapsedRealtime(), 0 = running, -1 infinite wait.
+	// is wakeAt for one of the application's timers, rather than the daemon?
+	private boolean wakeForTimers;
 	private AlarmManager am;
 
+	/*
+	Every alarm that fires wakes the CPU, so non-urgent alarms are rounded up to the end of a
+	shared window of alarmSlack ms. Deadlines that fall in the same window share one wakeup,
+	and if the alarm we've already set is no later than the end of the new deadline's window,
+	we leave it alone instead of setting it again.
+	 */
+	// deadlines closer than this are set exactly
+	private static final int URGENT_DELAY = 1000;
+	public static final int DEFAULT_ALARM_SLACK = 2000;
+	// the setting that overrides it, in ms
+	public static final String ALARM_SLACK_SETTING = "alarm_slack";
+	private volatile int alarmSlack = DEFAULT_ALARM_SLACK;
+	// when our current alarm will fire, if alarmIntent != null
+	private long armedAt;
+	private boolean armedForTimers;
+	private final WakeupStats wakeStats = new WakeupStats();
+
+	// how late a non-urgent alarm may fire, 0 to always set exact alarms
+	public void setAlarmSlack(int slackMs) {
+		alarmSlack = slackMs < 0 ? 0 : slackMs;
+	}
+
+	// apply the alarm slack setting, after it has changed
+	public void readAlarmSlack() {
+		String value = app.settings.getString(ALARM_SLACK_SETTING, null);
+		int slack = DEFAULT_ALARM_SLACK;
+		if (value != null) {
+			try {
+				slack = Integer.parseInt(value);
+			} catch (NumberFormatException e) {
+				Log.v(TAG, "Ignoring alarm slack " + value);
+			}
+		}
+		setAlarmSlack(slack);
+	}
+
+	public String getWakeStats() {
+		return wakeStats.toString();
+	}
+
 	@Override
 	public long aboutToWait(long now, long nextRun, long nextWake) {
 		// Release android lock and set an alarm
@@ -256,20 +301,41 @@ public class ServalD extends ServerControl implements IJniServer
 					wakeAt = -1;
 				else
 					wakeAt = SystemClock.elapsedRealtime() + delay + 100;
+				wakeForTimers = false;
+
+				// share the same alarm with the application's own timers
+				long timerDeadline = app.timers.nextDeadline();
+				if (timerDeadline != -1 && (wakeAt == -1 || timerDeadline < wakeAt)) {
+					wakeAt = timerDeadline;
+					wakeForTimers = true;
+				}
 
-				app.runOnBackgroundThread(releaseLock, 1);
+				app.runOnBackgroundThread(Lane.Critical, releaseLock, 1);
 			}else{
+				// leave any alarm we've set, releaseLock will decide if it can be reused
 				wakeAt = 0;
-				if(alarmIntent !=null) {
-					am.cancel(alarmIntent);
-					alarmIntent = null;
-				}
 			}
 		}
 
 		return nextWake;
 	}
 
+	// the application has scheduled a timer that is earlier than the alarm we've set
+	private TimingWheel.DeadlineListener timerListener = new TimingWheel.DeadlineListener() {
+		@Override
+		public void onDeadlineChanged(long deadline) {
+			synchronized (receiver) {
+				// while the daemon is running, we are holding a wakelock
+				// and the next call to aboutToWait will include this deadline
+				if (wakeAt == 0 || (wakeAt != -1 && wakeAt <= deadline))
+					return;
+				wakeAt = deadline;
+				wakeForTimers = true;
+			}
+			app.runOnBackgroundThread(Lane.Critical, releaseLock, 1);
+		}
+	};
+
 	@Override
 	public void wokeUp() {
 		// hold wakelock until the next call to aboutToWait
@@ -277,10 +343,7 @@ public class ServalD extends ServerControl implements IJniServer
 			wakeAt = 0;
 			if (!cpuLock.isHeld()) {
 				cpuLock.acquire();
-			}
-			if(alarmIntent !=null) {
-				am.cancel(alarmIntent);
-				alarmIntent = null;
+				wakeStats.acquired(WakeupStats.Cause.Daemon);
 			}
 		}
 	}
@@ -304,10 +367,14 @@ public class ServalD extends ServerControl implements IJniServer
 		public void onReceive(Context context, Intent intent) {
 			// This should only occur if the CPU has suspended and we need to interrupt poll.
 			if (intent.getAction().equals(WAKE_INTENT)) {
-				alarmIntent = null;
+				app.timers.wake();
 				synchronized (receiver) {
+					alarmIntent = null;
+					wakeStats.alarmFired();
 					if (cpuLock!= null && !cpuLock.isHeld()) {
 						cpuLock.acquire();
+						wakeStats.acquired(armedForTimers ?
+								WakeupStats.Cause.TimerAlarm : WakeupStats.Cause.DaemonAlarm);
 					}
 					if (wakeAt!=0) {
 						android.os.Process.sendSignal(serverTid, SIGIO);
@@ -329,19 +396,42 @@ public class ServalD extends ServerControl implements IJniServer
 			synchronized (receiver){
 				// last moment check that it is safe to release the lock
 				if (lock != null && wakeAt>0) {
-					alarmIntent = pe;
-					am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, wakeAt, pe);
+					long now = SystemClock.elapsedRealtime();
+					int slack = alarmSlack;
+					boolean urgent = wakeAt - now < URGENT_DELAY;
+					if (!urgent && alarmIntent != null
+							&& armedAt >= wakeAt && armedAt < wakeAt + slack) {
+						// our current alarm already falls in this deadline's window
+						armedForTimers &= wakeForTimers;
+						wakeStats.alarmSkipped();
+					} else {
+						long alarmAt = urgent ? wakeAt : roundToWindow(wakeAt, slack);
+						alarmIntent = pe;
+						armedAt = alarmAt;
+						armedForTimers = wakeForTimers;
+						am.set(AlarmManager.ELAPSED_REALTIME_WAKEUP, alarmAt, pe);
+						wakeStats.alarmSet(alarmAt - wakeAt);
+					}
 				}else if(alarmIntent !=null){
 					am.cancel(alarmIntent);
 					alarmIntent = null;
 				}
 
-				if (wakeAt!=0 && cpuLock.isHeld())
+				if (wakeAt!=0 && cpuLock.isHeld()) {
 					cpuLock.release();
+					wakeStats.released();
+				}
 			}
 		}
 	};
 
+	// round up to the end of the shared window that contains this deadline
+	private static long roundToWindow(long deadline, int slack) {
+		if (slack <= 0)
+			return deadline;
+		return ((deadline + slack - 1) / slack) * slack;
+	}
+
 	private Thread serverThread=null;
 	private int serverTid=0;
 
@@ -361,6 +451,7 @@ public class ServalD extends ServerControl implements IJniServer
 					.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "Services");
 
 			cpuLock.acquire();
+			app.timers.setDeadlineListener(timerListener);
 			Log.v(TAG, "Calling native method server()");
 			ServalDCommand.server(ServalD.this, "", null);
 
@@ -25,6 +25,8 @@ import android.net.LocalSocketAddress;
 import android.os.Process;
 import android.util.Log;
 
+import org.servalproject.EventLog;
+import org.servalproject.Metrics;
 import org.servalproject.R;
 
 import java.io.BufferedInputStream;
@@ -63,6 +65,8 @@ public class ServalDMonitor implements Runnable {
 	public static final int MONITOR_DNAHELPER = (1 << 3);
 
 	private static final String TAG = "ServalDMonitor";
+	private static final Metrics.Counter messages = Metrics.counter(
+			"servald_monitor_messages_total", "Messages received from the daemon's monitor socket");
 
 	// sigh, Integer.parseInt is a bit slow...
 	public static int parseInt(String value) {
@@ -178,13 +182,14 @@ public class ServalDMonitor implements Runnable {
 			if (stopMe)
 				throw new IOException("Stopping");
 
-			Log.v(TAG, "Creating socket");
 			LocalSocket socket = new LocalSocket();
 			try {
-				Log.v(TAG, "Binding socket " + clientSocketAddress.getName());
+				if (EventLog.V)
+					EventLog.v(TAG, "Binding socket " + clientSocketAddress.getName());
 				socket.bind(clientSocketAddress);
 				socket.setSoTimeout(1000);
-				Log.v(TAG, "Connecting socket " + serverSocketAddress.getName());
+				if (EventLog.V)
+					EventLog.v(TAG, "Connecting socket " + serverSocketAddress.getName());
 				socket.connect(serverSocketAddress);
 				socket.setSoTimeout(60000);
 				is = new BufferedInputStream(
@@ -204,10 +209,11 @@ public class ServalDMonitor implements Runnable {
 		}
 
 		for (Messages m : uniqueHandlers){
-			Log.v(TAG, "onConnect " + m.toString());
+			if (EventLog.V)
+				EventLog.v(TAG, "onConnect " + m.toString());
 			m.onConnect(this);
 		}
-		Log.v(TAG, "Connected");
+		EventLog.d(TAG, "Connected");
 	}
 
 	private void cleanupSocket() {
@@ -377,6 +383,7 @@ public class ServalDMonitor implements Runnable {
 
 			int read = 0;
 
+			messages.inc();
 			try {
 				Messages handler = handlers.get(cmd.toUpperCase());
 				if (handler == null)
@@ -0,0 +1,97 @@
+package org.servalproject.servald;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.servalproject.Metrics;
+
+/**
+ * Counts how often the daemon wakes the CPU and why,
+ * and how long we hold the wakelock each time.
+ */
+class WakeupStats {
+	private static final String TAG = "Wakeups";
+	// log a summary every this many wakeups
+	private static final int LOG_INTERVAL = 100;
+
+	private static final Metrics.Counter wakeupCount = Metrics.counter(
+			"servald_wakeups_total", "Times the daemon acquired the CPU wakelock");
+	private static final Metrics.Counter alarmCount = Metrics.counter(
+			"servald_alarms_fired_total", "Wakeup alarms that fired");
+	private static final Metrics.Histogram held = Metrics.histogram(
+			"servald_wakelock_held_ms", "How long the CPU wakelock was held after each wakeup");
+
+	enum Cause {
+		// the daemon had work to do while the CPU was awake (network traffic, or its own deadline)
+		Daemon,
+		// our alarm woke the CPU for the daemon's next deadline
+		DaemonAlarm,
+		// our alarm woke the CPU for one of the application's timers
+		TimerAlarm,
+	}
+
+	private final int counts[] = new int[Cause.values().length];
+	private final long heldMs[] = new long[Cause.values().length];
+	private final long maxHeldMs[] = new long[Cause.values().length];
+	private Cause holding;
+	private long acquired;
+	private int wakeups;
+
+	private int alarmsSet;
+	private int alarmsSkipped;
+	private int alarmsFired;
+	// total time alarms were pushed back to share a window
+	private long coalescedMs;
+
+	synchronized void acquired(Cause cause) {
+		holding = cause;
+		acquired = SystemClock.elapsedRealtime();
+		counts[cause.ordinal()]++;
+		wakeupCount.inc();
+		if (++wakeups % LOG_INTERVAL == 0)
+			Log.v(TAG, toString());
+	}
+
+	synchronized void released() {
+		if (holding == null)
+			return;
+		long ms = SystemClock.elapsedRealtime() - acquired;
+		int i = holding.ordinal();
+		heldMs[i] += ms;
+		if (ms > maxHeldMs[i])
+			maxHeldMs[i] = ms;
+		held.record(ms);
+		holding = null;
+	}
+
+	synchronized void alarmSet(long delayedBy) {
+		alarmsSet++;
+		coalescedMs += delayedBy;
+	}
+
+	synchronized void alarmSkipped() {
+		alarmsSkipped++;
+	}
+
+	synchronized void alarmFired() {
+		alarmsFired++;
+		alarmCount.inc();
+	}
+
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(wakeups).append(" wakeups");
+		for (Cause c : Cause.values()) {
+			int i = c.ordinal();
+			sb.append(", ").append(c).append(' ').append(counts[i])
+					.append(" (held ").append(heldMs[i]).append("ms, max ")
+					.append(maxHeldMs[i]).append("ms)");
+		}
+		sb.append("; alarms set ").append(alarmsSet)
+				.append(", skipped ").append(alarmsSkipped)
+				.append(", fired ").append(alarmsFired)
+				.append(", coalescing delay ").append(coalescedMs).append("ms");
+		return sb.toString();
+	}
+}
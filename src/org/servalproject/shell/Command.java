@@ -2,14 +2,29 @@ package org.servalproject.shell;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import android.util.Log;
 
-public abstract class Command {
+public abstract class Command implements Future<Integer> {
 	final String command[];
 	boolean finished = false;
+	boolean cancelled = false;
 	int exitCode;
 
+	// the shell this command was added to, and its position in that shell's output
+	Shell shell;
+	int id;
+
+	// System.nanoTime() when this command was added, written to the shell and completed
+	long queued;
+	long written;
+	long completed;
+
 	public Command(String... command) {
 		this.command = command;
 	}
@@ -36,6 +51,7 @@ public abstract class Command {
 		synchronized (this) {
 			exitCode = code;
 			finished = true;
+			completed = System.nanoTime();
 			this.notifyAll();
 		}
 	}
@@ -55,7 +71,77 @@ public abstract class Command {
 		return exitCode;
 	}
 
+	// waits up to timeoutMs for this command to finish and returns the exit code
+	public int waitForExit(long timeoutMs) throws InterruptedException, TimeoutException {
+		long deadline = System.nanoTime() + timeoutMs * 1000000L;
+		synchronized (this) {
+			while (!finished) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0)
+					throw new TimeoutException(getCommand().trim()
+							+ " did not finish within " + timeoutMs + "ms");
+				TimeUnit.NANOSECONDS.timedWait(this, remaining);
+			}
+		}
+		return exitCode;
+	}
+
 	public boolean hasFinished() {
 		return finished;
 	}
+
+	// how long this command waited behind others before being written to the shell, in ms
+	public long getQueueLatency() {
+		if (written == 0)
+			return -1;
+		return (written - queued) / 1000000;
+	}
+
+	// how long the shell took to run this command, in ms
+	public long getExecutionLatency() {
+		if (written == 0 || completed == 0)
+			return -1;
+		return (completed - written) / 1000000;
+	}
+
+	// Commands that have already been written to the shell can't be cancelled
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		Shell s = shell;
+		if (s == null || !s.cancel(this))
+			return false;
+		synchronized (this) {
+			cancelled = true;
+		}
+		exitCode(-1);
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return finished;
+	}
+
+	// a cancelled command never ran, so it has no exit code to return
+	private Integer checkCancelled(int exitCode) {
+		if (cancelled)
+			throw new CancellationException(getCommand().trim() + " was cancelled");
+		return exitCode;
+	}
+
+	@Override
+	public Integer get() throws InterruptedException, ExecutionException {
+		return checkCancelled(exitCode());
+	}
+
+	@Override
+	public Integer get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		return checkCancelled(waitForExit(unit.toMillis(timeout)));
+	}
 }
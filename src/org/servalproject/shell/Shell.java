@@ -4,8 +4,8 @@ import java.io.DataInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.LinkedList;
+import java.util.concurrent.TimeoutException;
 
 import android.util.Log;
 
@@ -13,11 +13,33 @@ public class Shell {
 	private final Process proc;
 	private final DataInputStream in;
 	private final OutputStream out;
-	private final List<Command> commands = new ArrayList<Command>();
+	// commands waiting to be written, and commands written but not yet finished.
+	// finished commands are dropped so a long lived shell doesn't hold on to them
+	private final LinkedList<Command> pending = new LinkedList<Command>();
+	private final LinkedList<Command> running = new LinkedList<Command>();
+	private Command lastCommand;
+	private int nextId = 0;
 	private boolean close = false;
+	private boolean dead = false;
 	private static final String token = "F*D^W@#FGF";
 
+	// commands slower than this are logged
+	private static final int SLOW_COMMAND_MS = 1000;
+	// how long a shared shell can be idle before we check that it still responds
+	private static final int HEALTH_CHECK_IDLE_MS = 10000;
+	private static final int HEALTH_CHECK_TIMEOUT_MS = 2000;
+
+	// latency statistics for completed commands
+	private int completedCount;
+	private long totalQueueMs;
+	private long totalExecutionMs;
+	private long maxExecutionMs;
+	private long lastActivity = System.nanoTime();
+
 	private static Shell shell;
+	private int users;
+	// stopped responding while borrowed, kill it once the last user is done
+	private boolean replaced;
 
 	public static Shell startRootShell() throws IOException {
 		String cmd = "/system/bin/su";
@@ -29,6 +51,56 @@ public class Shell {
 		return new Shell(cmd, true);
 	}
 
+	// Borrow the root shell shared by all subsystems, starting a new one if
+	// the previous shell has stopped responding. Call release() when done.
+	public static Shell getRootShell() throws IOException {
+		Shell s;
+		synchronized (Shell.class) {
+			s = shell;
+			// hold on to it while we check it, so nobody closes it under us
+			if (s != null)
+				s.users++;
+		}
+		// a health check can wait seconds for the shell to answer, don't make
+		// everyone else borrowing or releasing the shell wait with us
+		if (s != null && !s.isHealthy()) {
+			synchronized (Shell.class) {
+				// other borrowers may still be waiting on it, so stop handing it
+				// out and leave it to the last of them to kill
+				Log.v("Shell", "Replacing unresponsive root shell");
+				if (shell == s)
+					shell = null;
+				if (--s.users > 0)
+					s.replaced = true;
+				else
+					s.destroy();
+			}
+			s = null;
+		}
+		if (s != null)
+			return s;
+		synchronized (Shell.class) {
+			// someone else may have replaced it while we were checking
+			if (shell == null)
+				shell = startRootShell();
+			shell.users++;
+			return shell;
+		}
+	}
+
+	// Stop using a shell returned by getRootShell, closing it once nobody else is
+	public void release() throws IOException {
+		synchronized (Shell.class) {
+			if (--users > 0)
+				return;
+			if (replaced) {
+				destroy();
+				return;
+			}
+		}
+		close();
+	}
+
 	public final String cmd;
 	public final boolean isRoot;
 
@@ -86,22 +158,24 @@ public class Shell {
 
 	private void writeCommands() throws IOException {
 		try {
-			int write = 0;
 			while (true) {
-				OutputStream out;
-				synchronized (commands) {
-					while (!close && write >= commands.size()) {
-						commands.wait();
+				Command next;
+				synchronized (pending) {
+					while (!close && pending.isEmpty()) {
+						pending.wait();
+					}
+					next = pending.poll();
+					if (next != null) {
+						next.id = nextId++;
+						next.written = System.nanoTime();
+						running.add(next);
 					}
-					out = this.out;
 				}
-				if (write < commands.size()) {
-					Command next = commands.get(write);
+				if (next != null) {
 					next.writeCommand(out);
-					String line = "\necho " + token + " " + write + " $?\n";
+					String line = "\necho " + token + " " + next.id + " $?\n";
 					out.write(line.getBytes());
 					out.flush();
-					write++;
 				} else if (close) {
 					out.write("\nexit 0\n".getBytes());
 					out.flush();
@@ -124,13 +198,13 @@ public class Shell {
 				Log.e("Shell", e.getMessage(), e);
 			} catch (InterruptedException e) {
 				Log.e("Shell", e.getMessage(), e);
+			} finally {
+				terminateAll();
 			}
 		}
 	};
 
 	private void readOutput() throws IOException, InterruptedException {
-		Command command = null;
-		int read = 0;
 		while (true) {
 			String line = in.readLine();
 
@@ -139,13 +213,15 @@ public class Shell {
 				break;
 
 			// Log.v("Shell", "Out; \"" + line + "\"");
-			if (command == null) {
-				if (read >= commands.size()) {
-					if (close)
+			Command command;
+			synchronized (pending) {
+				lastActivity = System.nanoTime();
+				command = running.peek();
+				if (command == null) {
+					if (close && pending.isEmpty())
 						break;
 					continue;
 				}
-				command = commands.get(read);
 			}
 
 			int pos = line.indexOf(token);
@@ -155,10 +231,12 @@ public class Shell {
 				line = line.substring(pos);
 				String fields[] = line.split(" ");
 				int id = Integer.parseInt(fields[1]);
-				if (id == read) {
+				if (id == command.id) {
+					synchronized (pending) {
+						running.poll();
+					}
 					command.exitCode(Integer.parseInt(fields[2]));
-					read++;
-					command = null;
+					recordLatency(command);
 					continue;
 				}
 			}
@@ -166,24 +244,107 @@ public class Shell {
 		}
 		Log.v("Shell", "Read all output");
 		proc.waitFor();
-		Log.v("Shell", "Shell destroyed");
+		Log.v("Shell", "Shell destroyed, " + getStats());
+	}
+
+	// anything still queued when the shell dies will never complete
+	private void terminateAll() {
+		LinkedList<Command> remaining = new LinkedList<Command>();
+		synchronized (pending) {
+			dead = true;
+			close = true;
+			remaining.addAll(running);
+			remaining.addAll(pending);
+			running.clear();
+			pending.clear();
+			pending.notifyAll();
+		}
+		for (Command c : remaining)
+			c.terminated();
+		synchronized (Shell.class) {
+			if (this == shell)
+				shell = null;
+		}
+	}
+
+	private void recordLatency(Command command) {
+		long queue = command.getQueueLatency();
+		long exec = command.getExecutionLatency();
+		synchronized (pending) {
+			completedCount++;
+			totalQueueMs += queue;
+			totalExecutionMs += exec;
+			if (exec > maxExecutionMs)
+				maxExecutionMs = exec;
+		}
+		if (queue + exec >= SLOW_COMMAND_MS)
+			Log.v("Shell", "Slow command, queued " + queue + "ms, ran " + exec + "ms; "
+					+ command.getCommand().trim());
+	}
 
-		while (read < commands.size()) {
-			if (command == null)
-				command = commands.get(read);
-			command.terminated();
-			command = null;
-			read++;
+	public String getStats() {
+		synchronized (pending) {
+			if (completedCount == 0)
+				return "no commands completed";
+			return completedCount + " commands, average queue "
+					+ (totalQueueMs / completedCount) + "ms, average execution "
+					+ (totalExecutionMs / completedCount) + "ms, max execution "
+					+ maxExecutionMs + "ms";
 		}
 	}
 
+	// quick check that a shell we haven't heard from for a while still responds
+	private boolean isHealthy() {
+		synchronized (pending) {
+			if (dead || close)
+				return false;
+			// if commands are still running, we can't tell if the shell is stuck
+			// or just busy, give it the benefit of the doubt
+			if (!running.isEmpty() || !pending.isEmpty())
+				return true;
+			if (System.nanoTime() - lastActivity < HEALTH_CHECK_IDLE_MS * 1000000L)
+				return true;
+		}
+		Command ping = new CommandCapture("echo");
+		try {
+			add(ping);
+			return ping.waitForExit(HEALTH_CHECK_TIMEOUT_MS) == 0;
+		} catch (Exception e) {
+			Log.v("Shell", "Health check failed; " + e.getMessage());
+			return false;
+		}
+	}
+
+	// kill the shell process, any outstanding commands will be terminated
+	private void destroy() {
+		synchronized (Shell.class) {
+			if (this == shell)
+				shell = null;
+		}
+		synchronized (pending) {
+			close = true;
+			pending.notifyAll();
+		}
+		proc.destroy();
+	}
+
 	public void add(Command command) {
-		if (close)
-			throw new IllegalStateException(
-					"Unable to add commands to a closed shell");
-		synchronized (commands) {
-			commands.add(command);
-			commands.notifyAll();
+		synchronized (pending) {
+			if (close)
+				throw new IllegalStateException(
+						"Unable to add commands to a closed shell");
+			command.shell = this;
+			command.queued = System.nanoTime();
+			pending.add(command);
+			lastCommand = command;
+			pending.notifyAll();
+		}
+	}
+
+	// remove a command that hasn't been written to the shell yet
+	boolean cancel(Command command) {
+		synchronized (pending) {
+			return pending.remove(command);
 		}
 	}
 
@@ -192,16 +353,32 @@ public class Shell {
 		return command.exitCode();
 	}
 
+	// as above, but give up waiting after timeoutMs. The command may still run later.
+	public int run(Command command, int timeoutMs) throws InterruptedException,
+			TimeoutException {
+		add(command);
+		try {
+			return command.waitForExit(timeoutMs);
+		} catch (TimeoutException e) {
+			command.cancel(false);
+			throw e;
+		}
+	}
+
 	public int countCommands() {
-		return commands.size();
+		synchronized (pending) {
+			return running.size() + pending.size();
+		}
 	}
 
 	public void close() throws IOException {
-		if (this == shell)
-			shell = null;
-		synchronized (commands) {
+		synchronized (Shell.class) {
+			if (this == shell)
+				shell = null;
+		}
+		synchronized (pending) {
 			this.close = true;
-			commands.notifyAll();
+			pending.notifyAll();
 		}
 	}
 
@@ -211,7 +388,16 @@ public class Shell {
 
 	public void waitFor() throws IOException, InterruptedException {
 		close();
-		if (commands.size() > 0)
-			commands.get(commands.size() - 1).exitCode();
+		waitForCommands();
+	}
+
+	// wait for every command added so far to finish, leaving the shell open
+	public void waitForCommands() throws InterruptedException {
+		Command last;
+		synchronized (pending) {
+			last = lastCommand;
+		}
+		if (last != null)
+			last.exitCode();
 	}
 }
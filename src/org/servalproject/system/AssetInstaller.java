@@ -0,0 +1,267 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.system;
+
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.servalproject.shell.CommandLog;
+import org.servalproject.shell.Shell;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts our bundled files from serval.zip.
+ * Entries are inflated in parallel into temporary files which are then renamed into place,
+ * so a running binary is never left half written.
+ * Files already on disk with a matching size and CRC are left alone,
+ * and permissions are set in one pass once everything has been written.
+ */
+public class AssetInstaller {
+	private static final String TAG = "AssetInstaller";
+	private static final String TEMP_SUFFIX = ".installing";
+
+	private final File folder;
+	private final boolean pie;
+	private final Set<String> extract;
+
+	private int extracted;
+	private int skipped;
+	private int failed;
+
+	// @param extract the zip entry names to install, or null to install everything
+	public AssetInstaller(File folder, Set<String> extract, boolean pie) {
+		this.folder = folder;
+		this.extract = extract;
+		this.pie = pie;
+	}
+
+	private static boolean needsExecute(String filename) {
+		return filename.contains("bin/")
+				|| filename.contains("lib/")
+				|| filename.contains("libs/")
+				|| filename.contains("conf/");
+	}
+
+	private static long crc(File file, byte buff[]) throws IOException {
+		CRC32 crc = new CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			int len;
+			while ((len = in.read(buff)) > 0)
+				crc.update(buff, 0, len);
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	private static void copy(InputStream in, OutputStream out, byte buff[]) throws IOException {
+		int len;
+		while ((len = in.read(buff)) > 0)
+			out.write(buff, 0, len);
+	}
+
+	// returns the file that was written, or null if nothing needed to change
+	private File install(ZipFile zip, ZipEntry ent, File file) throws IOException {
+		byte buff[] = new byte[64 * 1024];
+
+		if (file.exists() && ent.getSize() == file.length()
+				&& ent.getCrc() != -1 && ent.getCrc() == crc(file, buff)) {
+			return null;
+		}
+
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getParentFile(), file.getName() + TEMP_SUFFIX);
+		InputStream in = zip.getInputStream(ent);
+		try {
+			OutputStream out = new FileOutputStream(temp);
+			try {
+				copy(in, out, buff);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+		if (ent.getTime() != -1)
+			temp.setLastModified(ent.getTime());
+
+		// renaming over the old file replaces it atomically,
+		// any process still running the old binary keeps its copy
+		if (!temp.renameTo(file)) {
+			temp.delete();
+			throw new IOException("Failed to rename " + temp + " to " + file);
+		}
+		return file;
+	}
+
+	private void setPermissions(List<File> executables) throws IOException, InterruptedException {
+		if (executables.isEmpty())
+			return;
+
+		if (Build.VERSION.SDK_INT >= 9) {
+			List<File> remaining = new ArrayList<File>();
+			for (File f : executables) {
+				// rwxr-xr-x
+				if (!(f.setReadable(true, false) && f.setExecutable(true, false)))
+					remaining.add(f);
+			}
+			executables = remaining;
+			if (executables.isEmpty())
+				return;
+		}
+
+		// otherwise, a single chmod for everything that is left
+		String args[] = new String[executables.size() + 1];
+		args[0] = "chmod 755";
+		for (int i = 0; i < executables.size(); i++)
+			args[i + 1] = executables.get(i).getCanonicalPath();
+		Shell shell = new Shell();
+		try {
+			shell.run(new CommandLog(args));
+		} finally {
+			shell.waitFor();
+		}
+	}
+
+	public void install(File zipFile) throws IOException {
+		long start = SystemClock.elapsedRealtime();
+		ZipFile zip = new ZipFile(zipFile);
+		ExecutorService executor = null;
+		try {
+			final List<ZipEntry> entries = new ArrayList<ZipEntry>();
+			final List<File> files = new ArrayList<File>();
+
+			Enumeration<? extends ZipEntry> e = zip.entries();
+			while (e.hasMoreElements()) {
+				ZipEntry ent = e.nextElement();
+				String filename = ent.getName();
+				String destFilename = filename;
+				boolean isPie = filename.endsWith("-PIE");
+				boolean isNonPie = filename.endsWith("-NOPIE");
+
+				if (isPie || isNonPie) {
+					if (isPie != pie)
+						continue;
+					destFilename = filename.substring(0, filename.lastIndexOf("-"));
+				}
+
+				File file = new File(folder, destFilename);
+				if (ent.isDirectory()) {
+					if (!file.exists() && !file.mkdirs())
+						Log.v(TAG, "Failed to create path " + filename);
+				} else if (extract == null || extract.contains(filename)) {
+					entries.add(ent);
+					files.add(file);
+				}
+			}
+			long scanned = SystemClock.elapsedRealtime();
+
+			int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+			executor = Executors.newFixedThreadPool(threads);
+			List<Future<File>> results = new ArrayList<Future<File>>(entries.size());
+			final ZipFile z = zip;
+			for (int i = 0; i < entries.size(); i++) {
+				final ZipEntry ent = entries.get(i);
+				final File file = files.get(i);
+				results.add(executor.submit(new Callable<File>() {
+					@Override
+					public File call() throws Exception {
+						return install(z, ent, file);
+					}
+				}));
+			}
+
+			List<File> executables = new ArrayList<File>();
+			for (int i = 0; i < results.size(); i++) {
+				String filename = entries.get(i).getName();
+				try {
+					File written = results.get(i).get();
+					if (written == null) {
+						skipped++;
+						continue;
+					}
+					extracted++;
+					Log.v(TAG, "Extracted " + filename);
+					if (needsExecute(filename))
+						executables.add(written);
+				} catch (Exception ex) {
+					failed++;
+					Log.v(TAG, "Failed to extract " + filename, ex);
+				}
+			}
+			long written = SystemClock.elapsedRealtime();
+
+			try {
+				setPermissions(executables);
+			} catch (InterruptedException ex) {
+				Log.e(TAG, ex.getMessage(), ex);
+			}
+			long done = SystemClock.elapsedRealtime();
+
+			Log.v(TAG, "Installed " + extracted + " files, skipped " + skipped
+					+ " unchanged, " + failed + " failed, using " + threads + " threads; scan "
+					+ (scanned - start) + "ms, extract " + (written - scanned)
+					+ "ms, permissions " + (done - written) + "ms");
+		} finally {
+			if (executor != null)
+				executor.shutdown();
+			zip.close();
+		}
+	}
+
+	// copy a zip from a stream (eg an asset) to a temporary file first, so we can read entries in parallel
+	public void install(InputStream asset, File tempFile) throws IOException {
+		long start = SystemClock.elapsedRealtime();
+		try {
+			OutputStream out = new FileOutputStream(tempFile);
+			try {
+				copy(asset, out, new byte[64 * 1024]);
+			} finally {
+				out.close();
+				asset.close();
+			}
+			Log.v(TAG, "Copied " + tempFile.getName() + " (" + tempFile.length() + " bytes) in "
+					+ (SystemClock.elapsedRealtime() - start) + "ms");
+			install(tempFile);
+		} finally {
+			tempFile.delete();
+		}
+	}
+}
@@ -38,7 +38,6 @@ import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -52,6 +51,7 @@ public class ChipsetDetection {
 	private static final String TAG = "Chipset";
 
 	private String logFile;
+	private File cacheFile;
 	private String detectPath;
 	private String edifyPath;
 	private String edifysrcPath;
@@ -67,6 +67,7 @@ public class ChipsetDetection {
 	private ChipsetDetection() {
 		this.app = ServalBatPhoneApplication.context;
 		this.logFile = app.coretask.DATA_FILE_PATH + "/var/wifidetect.log";
+		this.cacheFile = new File(app.coretask.DATA_FILE_PATH + "/var/modulescan.cache");
 		this.detectPath = app.coretask.DATA_FILE_PATH + "/conf/wifichipsets/";
 		this.edifyPath = app.coretask.DATA_FILE_PATH + "/conf/adhoc.edify";
 		this.edifysrcPath = app.coretask.DATA_FILE_PATH
@@ -86,7 +87,24 @@ public class ChipsetDetection {
 		return detection;
 	}
 
-	private HashMap<String, Boolean> existsTests = new HashMap<String, Boolean>();
+	private ModuleScan scanCache;
+
+	private ModuleScan getScanCache() {
+		if (scanCache == null) {
+			scanCache = ModuleScan.load(cacheFile, Build.FINGERPRINT);
+			if (scanCache == null)
+				scanCache = new ModuleScan();
+		}
+		return scanCache;
+	}
+
+	// forget what we found last time, so the next detection walks the
+	// filesystem again even though the firmware hasn't changed
+	public void rescan() {
+		scanCache = new ModuleScan();
+		if (cacheFile.exists() && !cacheFile.delete())
+			Log.v(TAG, "Failed to delete " + cacheFile);
+	}
 
 	// Check if the corresponding file exists
 	private boolean fileExists(String filename) {
@@ -95,97 +113,24 @@ public class ChipsetDetection {
 		// we fail to detect a phone, we can create a bundle of information
 		// that can be sent back to the Serval Project developers to help them
 		// add support for the phone.
-		Boolean result = existsTests.get(filename);
+		ModuleScan cache = getScanCache();
+		Boolean result = cache.exists.get(filename);
 		if (result == null) {
 			result = (new File(filename)).exists();
-			existsTests.put(filename, result);
+			cache.exists.put(filename, result);
 		}
 		return result;
 	}
 
-	private boolean isSymLink(File file) throws IOException {
-		File p = file.getParentFile();
-		File t = p == null ? file : new File(p.getCanonicalFile(), file.getName());
-		return !t.getCanonicalFile().equals(t.getAbsoluteFile());
-	}
-
-	private void scan(File folder, List<File> results,
-			Set<String> insmodCommands) {
-		File files[] = folder.listFiles();
-		if (files == null)
-			return;
-		for (File file : files) {
-			try {
-				if (file.isDirectory()) {
-					if (!isSymLink(file))
-						scan(file, results, insmodCommands);
-				} else {
-					String path = file.getCanonicalPath();
-					if (path.contains("wifi") || path.endsWith(".ko")) {
-						results.add(file);
-					}
-					// Only look in small files, and stop looking if a file is
-					// binary
-					if (insmodCommands != null && file.length() < 16384
-							&& ((file.getName().endsWith(".so") == false))
-							&& ((file.getName().endsWith(".ttf") == false))
-							&& ((file.getName().endsWith(".ogg") == false))
-							&& ((file.getName().endsWith(".odex") == false))
-							&& ((file.getName().endsWith(".apk") == false))) {
-						BufferedReader b = new BufferedReader(new FileReader(
-								file));
-						try {
-							String line = null;
-							String dmp = null;
-							while ((line = b.readLine()) != null) {
-								// Stop looking if the line seems to be binary
-								if (line.length() > 0
-										&& (line.charAt(0) > 0x7d || line
-												.charAt(0) < 0x09)) {
-									// LogActivity.logMessage("guess", file
-									// + " seems to be binary", false);
-									break;
-								}
-								if (line.startsWith("DRIVER_MODULE_PATH="))
-									dmp = line.substring(19);
-								if (dmp != null
-										&& line
-												.startsWith("DRIVER_MODULE_ARG=")) {
-									insmodCommands.add("insmod " + dmp + " \""
-											+ line.substring(18) + "\"");
-									dmp = null;
-								}
-								if (line.contains("insmod ")) {
-									// Ooh, an insmod command.
-									// Let's see if it is interesting.
-									insmodCommands.add(line);
-								}
-							}
-							b.close();
-						} catch (IOException e) {
-							b.close();
-						} finally {
-							b.close();
-						}
-					}
-				}
-			} catch (IOException e) {
-				// ignore
-			}
-		}
-	}
-
-	private List<File> interestingFiles = null;
-
 	private List<File> findModules(Set<String> insmodCommands) {
-		if (interestingFiles == null || insmodCommands != null) {
-			interestingFiles = new ArrayList<File>();
-			scan(new File("/system"), interestingFiles, insmodCommands);
-			scan(new File("/lib"), interestingFiles, insmodCommands);
-			scan(new File("/wifi"), interestingFiles, insmodCommands);
-			scan(new File("/etc"), interestingFiles, insmodCommands);
+		ModuleScan cache = getScanCache();
+		if (cache.modules == null) {
+			cache.scanFilesystem();
+			cache.save(cacheFile, Build.FINGERPRINT);
 		}
-		return interestingFiles;
+		if (insmodCommands != null)
+			insmodCommands.addAll(cache.insmodCommands);
+		return cache.modules;
 	}
 
 	public Chipset getWifiChipset() {
@@ -272,8 +217,7 @@ public class ChipsetDetection {
 		try {
 			CommandLog c = new CommandLog(app.coretask.DATA_FILE_PATH
 					+ "/bin/iw list");
-			shell.add(c);
-			return c.exitCode() == 0;
+			return shell.run(c, 10000) == 0;
 		}catch (Exception e){
 			Log.e(TAG, e.getMessage(), e);
 			return false;
@@ -610,6 +554,8 @@ public class ChipsetDetection {
 			log.log("Hardware may be unknown, scanning for wifi modules");
 			inventSupport(detected_chipsets, hasNetlink);
 		}
+		// remember the results of any new file tests
+		getScanCache().save(cacheFile, Build.FINGERPRINT);
 		return detected_chipsets;
 	}
 
@@ -45,9 +45,6 @@ import java.util.ArrayList;
 import java.util.Hashtable;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
 
 public class CoreTask {
 
@@ -223,70 +220,4 @@ public class CoreTask {
 		return sb.toString();
 	}
 
-	public void extractZip(InputStream asset, File folder, boolean pie) throws IOException {
-		Shell shell = new Shell();
-		try {
-			extractZip(shell, asset, folder, null, pie);
-		} finally {
-			try {
-				shell.waitFor();
-			} catch (InterruptedException e) {
-				Log.e("CoreTask", e.getMessage(), e);
-			}
-		}
-	}
-
-	public void extractZip(Shell shell, InputStream asset, File folder,
-			Set<String> extract, boolean pie)
-			throws IOException {
-
-		ZipInputStream str = new ZipInputStream(asset);
-
-		try {
-			ZipEntry ent;
-			while ((ent = str.getNextEntry()) != null) {
-				try {
-					String filename = ent.getName();
-					String destFilename = filename;
-					boolean isPie = filename.endsWith("-PIE");
-					boolean isNonPie = filename.endsWith("-NOPIE");
-
-					if (isPie || isNonPie) {
-						if (isPie != pie)
-							continue;
-						destFilename = filename.substring(0,filename.lastIndexOf("-"));
-					}
-
-					File file = new File(folder, destFilename);
-					if (ent.isDirectory()) {
-						if (!file.exists())
-							if (!file.mkdirs())
-								Log.v("BatPhone", "Failed to create path "
-										+ filename);
-					} else {
-						if (extract == null || extract.contains(filename)) {
-							// try to write the file directly
-							writeFile(file, str, ent.getTime());
-
-							Log.v(MSG_TAG, "Extracted " + filename);
-
-							if (filename.contains("bin/")
-									|| filename.contains("lib/")
-									|| filename.contains("libs/")
-									|| filename.contains("conf/"))
-								shell.add(new CommandLog("chmod 755", file
-										.getCanonicalPath()));
-						}
-					}
-				} catch (Exception e) {
-					Log.v(MSG_TAG, e.getMessage(), e);
-				}finally{
-					str.closeEntry();
-				}
-			}
-		} finally {
-			str.close();
-		}
-	}
-
 }
@@ -0,0 +1,292 @@
+/**
+ * Copyright (C) 2011 The Serval Project
+ *
+ * This file is part of Serval Software (http://www.servalproject.org)
+ *
+ * Serval Software is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This source code is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this source code; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.servalproject.system;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Results of searching the filesystem for wifi kernel modules and insmod commands,
+ * along with the file existence tests used by chipset detection.
+ *
+ * Walking the filesystem takes seconds, and the results can't change without a firmware update,
+ * so they are persisted in a cache keyed by the build fingerprint.
+ */
+class ModuleScan {
+	private static final String TAG = "ModuleScan";
+	private static final String[] ROOTS = {"/system", "/lib", "/wifi", "/etc"};
+	private static final String[] SKIP_EXTENSIONS = {".so", ".ttf", ".ogg", ".odex", ".apk"};
+
+	// null until the filesystem has been scanned
+	List<File> modules;
+	Set<String> insmodCommands;
+	final Map<String, Boolean> exists = new HashMap<String, Boolean>();
+
+	private final AtomicInteger filesVisited = new AtomicInteger();
+	private final AtomicInteger filesRead = new AtomicInteger();
+
+	private static boolean isSymLink(File file) throws IOException {
+		File p = file.getParentFile();
+		File t = p == null ? file : new File(p.getCanonicalFile(), file.getName());
+		return !t.getCanonicalFile().equals(t.getAbsoluteFile());
+	}
+
+	private static boolean isFirmware(String path) {
+		for (String root : ROOTS) {
+			if (path.startsWith(root + "/"))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean shouldRead(File file) {
+		// Only look in small files
+		if (file.length() >= 16384)
+			return false;
+		String name = file.getName();
+		for (String ext : SKIP_EXTENSIONS) {
+			if (name.endsWith(ext))
+				return false;
+		}
+		return true;
+	}
+
+	private void readInsmodCommands(File file, Set<String> insmodCommands) throws IOException {
+		filesRead.incrementAndGet();
+		BufferedReader b = new BufferedReader(new FileReader(file));
+		try {
+			String line = null;
+			String dmp = null;
+			while ((line = b.readLine()) != null) {
+				// Stop looking if the line seems to be binary
+				if (line.length() > 0
+						&& (line.charAt(0) > 0x7d || line.charAt(0) < 0x09))
+					break;
+				if (line.startsWith("DRIVER_MODULE_PATH="))
+					dmp = line.substring(19);
+				if (dmp != null && line.startsWith("DRIVER_MODULE_ARG=")) {
+					insmodCommands.add("insmod " + dmp + " \""
+							+ line.substring(18) + "\"");
+					dmp = null;
+				}
+				if (line.contains("insmod ")) {
+					// Ooh, an insmod command.
+					// Let's see if it is interesting.
+					insmodCommands.add(line);
+				}
+			}
+		} finally {
+			b.close();
+		}
+	}
+
+	private void check(File file, List<File> results, Set<String> insmodCommands) throws IOException {
+		filesVisited.incrementAndGet();
+		String path = file.getCanonicalPath();
+		if (path.contains("wifi") || path.endsWith(".ko"))
+			results.add(file);
+		if (shouldRead(file))
+			readInsmodCommands(file, insmodCommands);
+	}
+
+	private void scan(File folder, List<File> results, Set<String> insmodCommands) {
+		File files[] = folder.listFiles();
+		if (files == null)
+			return;
+		for (File file : files) {
+			try {
+				if (file.isDirectory()) {
+					if (!isSymLink(file))
+						scan(file, results, insmodCommands);
+				} else {
+					check(file, results, insmodCommands);
+				}
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	// walk the filesystem, with each folder below the roots on its own thread
+	void scanFilesystem() {
+		long start = SystemClock.elapsedRealtime();
+		final List<File> results = Collections.synchronizedList(new ArrayList<File>());
+		final Set<String> commands = Collections.synchronizedSet(new TreeSet<String>());
+
+		List<File> folders = new ArrayList<File>();
+		for (String root : ROOTS) {
+			File files[] = new File(root).listFiles();
+			if (files == null)
+				continue;
+			for (File file : files) {
+				try {
+					if (file.isDirectory()) {
+						if (!isSymLink(file))
+							folders.add(file);
+					} else {
+						check(file, results, commands);
+					}
+				} catch (IOException e) {
+					// ignore
+				}
+			}
+		}
+
+		int threads = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 4));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		for (final File folder : folders) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					scan(folder, results, commands);
+				}
+			});
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(5, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+
+		// threads finish in any order, keep the results stable
+		List<File> sorted = new ArrayList<File>(results);
+		Collections.sort(sorted);
+		modules = sorted;
+		insmodCommands = new TreeSet<String>(commands);
+		Log.v(TAG, "Scanned " + filesVisited.get() + " files (read " + filesRead.get()
+				+ ") using " + threads + " threads in " + (SystemClock.elapsedRealtime() - start)
+				+ "ms, found " + modules.size() + " candidate modules and "
+				+ insmodCommands.size() + " insmod commands");
+	}
+
+	// returns null if the cache is missing or was written by different firmware
+	static ModuleScan load(File cache, String fingerprint) {
+		if (!cache.exists())
+			return null;
+		long start = SystemClock.elapsedRealtime();
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(cache));
+			try {
+				String line = in.readLine();
+				if (line == null || !line.equals(fingerprint)) {
+					Log.v(TAG, "Ignoring cached scan from " + line);
+					return null;
+				}
+				ModuleScan ret = new ModuleScan();
+				List<File> modules = new ArrayList<File>();
+				Set<String> commands = new TreeSet<String>();
+				boolean scanned = false;
+				while ((line = in.readLine()) != null) {
+					if (line.length() < 2)
+						continue;
+					String value = line.substring(2);
+					switch (line.charAt(0)) {
+						case 'm':
+							modules.add(new File(value));
+							break;
+						case 'i':
+							commands.add(value);
+							break;
+						case 'y':
+							ret.exists.put(value, true);
+							break;
+						case 'n':
+							ret.exists.put(value, false);
+							break;
+						case 's':
+							scanned = true;
+							break;
+					}
+				}
+				if (scanned) {
+					ret.modules = modules;
+					ret.insmodCommands = commands;
+				}
+				Log.v(TAG, "Loaded cached scan in " + (SystemClock.elapsedRealtime() - start) + "ms");
+				return ret;
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+			return null;
+		}
+	}
+
+	synchronized void save(File cache, String fingerprint) {
+		try {
+			cache.getParentFile().mkdirs();
+			File temp = new File(cache.getParentFile(), cache.getName() + ".tmp");
+			BufferedWriter out = new BufferedWriter(new FileWriter(temp), 8192);
+			try {
+				out.write(fingerprint);
+				out.write('\n');
+				for (Map.Entry<String, Boolean> e : exists.entrySet()) {
+					// files outside the firmware (eg under /proc) can come and go
+					if (!isFirmware(e.getKey()))
+						continue;
+					out.write(e.getValue() ? "y " : "n ");
+					out.write(e.getKey());
+					out.write('\n');
+				}
+				if (modules != null) {
+					for (File f : modules) {
+						out.write("m ");
+						out.write(f.getPath());
+						out.write('\n');
+					}
+					for (String s : insmodCommands) {
+						// commands can't span lines, we read them line by line
+						out.write("i ");
+						out.write(s);
+						out.write('\n');
+					}
+					out.write("s \n");
+				}
+			} finally {
+				out.close();
+			}
+			if (!temp.renameTo(cache))
+				throw new IOException("Failed to replace " + cache);
+		} catch (IOException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+}
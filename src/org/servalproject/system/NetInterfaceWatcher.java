@@ -0,0 +1,180 @@
+package org.servalproject.system;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Enumeration;
+
+/**
+ * Watches a network interface through /sys/class/net, so we can wait for the driver
+ * to bring it up or down without running iwconfig or iw over and over.
+ *
+ * Reading sysfs is cheap and doesn't need root or a new process. Sysfs attributes don't
+ * raise inotify events though, so the waiting thread re-reads them every POLL_INTERVAL ms.
+ */
+class NetInterfaceWatcher {
+	private static final String TAG = "NetInterface";
+	private static final int POLL_INTERVAL = 50;
+
+	// from linux/if.h
+	static final int IFF_UP = 0x1;
+	static final int IFF_RUNNING = 0x40;
+
+	final String interfaceName;
+	private final File folder;
+	private State last;
+
+	static class State {
+		final boolean exists;
+		final int flags;
+		final String operstate;
+		final long timestamp;
+
+		State(boolean exists, int flags, String operstate) {
+			this.exists = exists;
+			this.flags = flags;
+			this.operstate = operstate;
+			this.timestamp = SystemClock.elapsedRealtime();
+		}
+
+		boolean isUp() {
+			return exists && (flags & IFF_UP) != 0;
+		}
+
+		boolean isRunning() {
+			return exists && (flags & IFF_RUNNING) != 0;
+		}
+
+		boolean sameAs(State other) {
+			return other != null && exists == other.exists && flags == other.flags
+					&& (operstate == null ? other.operstate == null : operstate.equals(other.operstate));
+		}
+
+		@Override
+		public String toString() {
+			if (!exists)
+				return "missing";
+			return (isUp() ? "up" : "down") + (isRunning() ? ", running" : "")
+					+ ", operstate " + operstate + ", flags 0x" + Integer.toHexString(flags);
+		}
+	}
+
+	interface Condition {
+		boolean matches(State state);
+	}
+
+	static final Condition DOWN = new Condition() {
+		@Override
+		public boolean matches(State state) {
+			return !state.isUp();
+		}
+	};
+
+	NetInterfaceWatcher(String interfaceName) {
+		this.interfaceName = interfaceName;
+		this.folder = new File("/sys/class/net", interfaceName == null ? "" : interfaceName);
+	}
+
+	private String readAttribute(String name) {
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(new File(folder, name)), 64);
+			try {
+				String line = in.readLine();
+				return line == null ? null : line.trim();
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	State read() {
+		if (interfaceName == null || !folder.exists())
+			return new State(false, 0, null);
+		int flags = 0;
+		String value = readAttribute("flags");
+		if (value != null) {
+			try {
+				flags = Integer.decode(value);
+			} catch (NumberFormatException e) {
+				Log.v(TAG, "Unable to parse flags " + value);
+			}
+		}
+		return new State(true, flags, readAttribute("operstate"));
+	}
+
+	// read the current state, reporting it if it has changed since we last looked
+	State check() {
+		State state = read();
+		State old = last;
+		if (!state.sameAs(old)) {
+			last = state;
+			if (old != null)
+				Log.v(TAG, interfaceName + " changed from " + old + " to " + state + " after "
+						+ (state.timestamp - old.timestamp) + "ms");
+		}
+		return last;
+	}
+
+	// block until the interface matches the condition, or the timeout expires.
+	// returns the last state that was read
+	State waitFor(Condition condition, long timeoutMs) {
+		long deadline = SystemClock.elapsedRealtime() + timeoutMs;
+		State state = check();
+		while (!condition.matches(state)) {
+			long remaining = deadline - SystemClock.elapsedRealtime();
+			if (remaining <= 0) {
+				Log.v(TAG, interfaceName + " gave up waiting after " + timeoutMs + "ms, " + state);
+				break;
+			}
+			try {
+				Thread.sleep(Math.min(remaining, POLL_INTERVAL));
+			} catch (InterruptedException e) {
+				Log.e(TAG, e.getMessage(), e);
+				break;
+			}
+			state = check();
+		}
+		return state;
+	}
+
+	// block until the interface state changes, or the timeout expires
+	State waitForChange(long timeoutMs) {
+		final State start = check();
+		return waitFor(new Condition() {
+			@Override
+			public boolean matches(State state) {
+				return state != start;
+			}
+		}, timeoutMs);
+	}
+
+	// does this interface have the given address? (with or without a /prefix)
+	static boolean hasAddress(String interfaceName, String ipAddr) {
+		if (ipAddr == null)
+			return true;
+		if (ipAddr.contains("/"))
+			ipAddr = ipAddr.substring(0, ipAddr.indexOf('/'));
+		try {
+			NetworkInterface networkInterface = NetworkInterface.getByName(interfaceName);
+			if (networkInterface == null)
+				return false;
+			for (Enumeration<InetAddress> e = networkInterface.getInetAddresses(); e
+					.hasMoreElements();) {
+				if (ipAddr.equals(e.nextElement().getHostAddress()))
+					return true;
+			}
+		} catch (SocketException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		return false;
+	}
+}
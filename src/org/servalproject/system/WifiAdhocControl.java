@@ -3,6 +3,7 @@ package org.servalproject.system;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
@@ -25,6 +26,10 @@ public class WifiAdhocControl {
 	private final ServalBatPhoneApplication app;
 	private final ChipsetDetection detection;
 	private static final String TAG = "AdhocControl";
+	// how long to wait for the interface to change mode
+	private static final int MODE_TIMEOUT = 5000;
+	// if the mode is wrong, how long to wait for the interface to change before asking again
+	private static final int MODE_RECHECK = 1000;
 	private NetworkState state = NetworkState.Disabled;
 	private WifiAdhocNetwork config;
 
@@ -177,23 +182,43 @@ public class WifiAdhocControl {
 		ed.commit();
 	}
 
-	private void waitForMode(Shell shell, WifiMode mode, String ipAddr)
+	private void waitForMode(Shell shell, WifiMode mode, final String ipAddr)
 			throws IOException {
-		String interfaceName = app.coretask.getProp("wifi.interface");
+		final String interfaceName = app.coretask.getProp("wifi.interface");
+		NetInterfaceWatcher watcher = new NetInterfaceWatcher(interfaceName);
+		long deadline = SystemClock.elapsedRealtime() + MODE_TIMEOUT;
 		WifiMode actualMode = null;
 
-		for (int i = 0; i < 50; i++) {
-			actualMode = WifiMode.getWiFiMode(shell, interfaceName, ipAddr);
+		if (mode == WifiMode.Off) {
+			// a missing or down interface is off, no need to ask the driver
+			if (!watcher.waitFor(NetInterfaceWatcher.DOWN, MODE_TIMEOUT).isUp())
+				actualMode = WifiMode.Off;
+			else
+				actualMode = WifiMode.getWiFiMode(shell, interfaceName, ipAddr);
+		} else {
+			// wait for the interface to come up with our address before
+			// asking the driver which mode it is in
+			watcher.waitFor(new NetInterfaceWatcher.Condition() {
+				@Override
+				public boolean matches(NetInterfaceWatcher.State state) {
+					return state.isUp()
+							&& NetInterfaceWatcher.hasAddress(interfaceName, ipAddr);
+				}
+			}, MODE_TIMEOUT);
 
-			// We need to allow unknown for wifi drivers that lack linux
-			// wireless extensions
-			if (actualMode == WifiMode.Adhoc
-					|| actualMode == WifiMode.Unknown)
-				break;
-			try {
-				Thread.sleep(100);
-			} catch (InterruptedException e) {
-				Log.e("BatPhone", e.toString(), e);
+			while (true) {
+				actualMode = WifiMode.getWiFiMode(shell, interfaceName, ipAddr);
+
+				// We need to allow unknown for wifi drivers that lack linux
+				// wireless extensions
+				if (actualMode == WifiMode.Adhoc
+						|| actualMode == WifiMode.Unknown)
+					break;
+				long remaining = deadline - SystemClock.elapsedRealtime();
+				if (remaining <= 0)
+					break;
+				// the driver may take a moment to report the new mode
+				watcher.waitForChange(Math.min(remaining, MODE_RECHECK));
 			}
 		}
 
@@ -12,13 +12,14 @@ import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
 import android.os.PowerManager;
-import android.os.SystemClock;
 import android.util.Log;
 
 import org.servalproject.ServalBatPhoneApplication;
+import org.servalproject.SpanTracer;
 import org.servalproject.shell.Command;
 import org.servalproject.shell.Shell;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
@@ -42,10 +43,25 @@ public class WifiControl {
 	private static final int TRANSITION = 0;
 	private static final int SCAN = 1;
 	private boolean adhocRepaired = false;
-	private long lastAction;
+	private long destinationStarted;
 	private static final int SCAN_TIME = 30000;
 	private static final int DISCOVERY_TIME = 5000;
 	private static final int MODE_CHANGE_TIME = 5000;
+	// how long a level may take to start or stop, unless it says otherwise
+	private static final int DEFAULT_DEADLINE = 20000;
+	// state changes should arrive as broadcasts, but check anyway in case we missed one
+	private static final int STATE_POLL_FALLBACK = 2000;
+
+	// how long each level took to start and stop, and each destination took to reach
+	public final SpanTracer transitions = new SpanTracer("wifi", 256);
+
+	// rewrite the trace after each destination, so it can be pulled off the device
+	private final Runnable writeTransitions = new Runnable() {
+		@Override
+		public void run() {
+			transitions.writeJson(new File(app.getFilesDir(), "wifi-trace.json"));
+		}
+	};
 
 	public enum CompletionReason {
 		Success,
@@ -290,6 +306,10 @@ public class WifiControl {
 		boolean entered = false;
 		final String name;
 
+		// when we asked this level to change state, and the state we are waiting for
+		long changeStarted;
+		LevelState changeTarget;
+
 		Level(String name) {
 			this.name = name;
 		}
@@ -297,6 +317,12 @@ public class WifiControl {
 		boolean recover() {
 			return false;
 		}
+
+		// how long we wait for this level to start or stop before treating it as failed
+		int deadline() {
+			return DEFAULT_DEADLINE;
+		}
+
 		void enter() throws IOException {
 			entered = true;
 		}
@@ -364,6 +390,11 @@ public class WifiControl {
 			super("Wifi Client");
 		}
 
+		@Override
+		int deadline() {
+			return 15000;
+		}
+
 		@Override
 		boolean recover() {
 			return repairAdhoc();
@@ -438,6 +469,12 @@ public class WifiControl {
 			this.networkId = config.networkId;
 		}
 
+		@Override
+		int deadline() {
+			// association, authentication and dhcp
+			return 30000;
+		}
+
 		@Override
 		void enter() throws IOException {
 			super.enter();
@@ -760,7 +797,7 @@ public class WifiControl {
 		Shell shell = rootShell;
 		if (shell == null) {
 			logStatus("Getting root shell");
-			shell = rootShell = Shell.startRootShell();
+			shell = rootShell = Shell.getRootShell();
 		}
 		return shell;
 	}
@@ -796,6 +833,11 @@ public class WifiControl {
 			this.offCommand = offCommand;
 		}
 
+		@Override
+		int deadline() {
+			return 10000;
+		}
+
 		@Override
 		void enter() throws IOException {
 			super.enter();
@@ -842,6 +884,18 @@ public class WifiControl {
 		Log.v(TAG, message);
 	}
 
+	private static String describe(Stack<Level> state) {
+		if (state.isEmpty())
+			return "Off";
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < state.size(); i++) {
+			if (i > 0)
+				sb.append(" / ");
+			sb.append(state.get(i).name);
+		}
+		return sb.toString();
+	}
+
 	private void logState(Stack<Level> state) {
 		if (state.isEmpty()) {
 			logStatus("Off");
@@ -859,6 +913,37 @@ public class WifiControl {
 		logStatus(sb.toString());
 	}
 
+	private void beginChange(Level l, LevelState target) {
+		if (l.changeTarget == target)
+			return;
+		l.changeStarted = System.nanoTime();
+		l.changeTarget = target;
+	}
+
+	// record how long a level took to reach (or fail to reach) the state we wanted
+	private void endChange(Level l, LevelState state) {
+		if (l.changeTarget == null)
+			return;
+		long now = System.nanoTime();
+		String label = l.name + " " + l.changeTarget;
+		if (state != l.changeTarget)
+			label += " (" + state + ")";
+		transitions.add(label, l.changeStarted, now);
+		l.changeTarget = null;
+	}
+
+	// Wait for a broadcast to tell us the level has changed state.
+	// Throws if the level has already taken longer than its deadline.
+	private void awaitChange(Level l, LevelState target) throws IOException {
+		beginChange(l, target);
+		long elapsed = (System.nanoTime() - l.changeStarted) / 1000000;
+		long remaining = l.deadline() - elapsed;
+		if (remaining <= 0)
+			throw new IOException(l.name + " did not reach " + target + " within "
+					+ elapsed + "ms");
+		triggerTransition((int) Math.min(remaining, STATE_POLL_FALLBACK));
+	}
+
 	private void transition() {
 		Stack<Level> dest = destState;
 
@@ -883,7 +968,6 @@ public class WifiControl {
 
 			logStatus(l.name + " is now reporting " + state);
 			keep = i + 1;
-			lastAction = SystemClock.elapsedRealtime();
 
 			if (state == LevelState.Off || state == LevelState.Failed)
 				keep--;
@@ -897,7 +981,6 @@ public class WifiControl {
 					Level l = dest.get(currentState.size());
 					currentState.push(l);
 					keep = currentState.size();
-					lastAction = SystemClock.elapsedRealtime();
 					continue;
 				} else {
 					// Yay, we have reached our destination!
@@ -907,35 +990,32 @@ public class WifiControl {
 				}
 			}
 
-			if (dest != null) {
-				long now = SystemClock.elapsedRealtime();
-				if (now - this.lastAction > 20000) {
-					logStatus("Giving up after " + (now - this.lastAction)
-							+ "ms");
-					replaceDestination(null, null, CompletionReason.Failure);
-					return;
-				}
-			}
 			Level active = currentState.peek();
 			LevelState state = null;
 			try {
 				state = active.getState();
 				switch (state) {
 				case Off:
+					if (active.changeTarget == LevelState.Off)
+						endChange(active, state);
 					// stop and pop any levels we need to remove
 					if (currentState.size() > keep || dest == null) {
+						endChange(active, state);
 						currentState.pop();
-						lastAction = SystemClock.elapsedRealtime();
+					} else if (active.changeTarget == LevelState.Started) {
+						// we've already asked this level to start, wait for it
+						awaitChange(active, LevelState.Started);
+						return;
 					} else {
 						try {
+							beginChange(active, LevelState.Started);
 							active.enter();
 
 							if (active.getState() == LevelState.Off) {
 								// if the state hasn't changed, assume that
 								// state changes are async
-								// and give the level a second to change it's
-								// mind before trying again
-								triggerTransition(1000);
+								// and wait for a broadcast to tell us it has changed
+								awaitChange(active, LevelState.Started);
 								return;
 							}
 
@@ -963,19 +1043,22 @@ public class WifiControl {
 				case Started:
 					// stop and pop any levels we need to remove
 					if (currentState.size() > keep) {
+						if (active.changeTarget != LevelState.Off)
+							endChange(active, state);
+						beginChange(active, LevelState.Off);
 						active.exit();
 
 						if (active.getState() == LevelState.Started) {
 							// if the state hasn't changed, assume that
-							// state changes are async
-							// and give the level a second to change it's
-							// mind before trying again
-							triggerTransition(1000);
+							// state changes are async.
+							// exit() may be called again when the next broadcast arrives
+							awaitChange(active, LevelState.Off);
 							return;
 						}
 
 						break;
 					}
+					endChange(active, state);
 					if (dest != null && currentState.size() < dest.size()) {
 						Level l = dest.get(currentState.size());
 						currentState.push(l);
@@ -996,8 +1079,11 @@ public class WifiControl {
 						replaceDestination(null, null,
 								CompletionReason.Failure);
 					}
+					awaitChange(active, LevelState.Off);
+					return;
+
 				case Starting:
-					triggerTransition(500);
+					awaitChange(active, LevelState.Started);
 					return;
 				}
 			} catch (IOException e) {
@@ -1007,10 +1093,10 @@ public class WifiControl {
 			}
 
 			if (state == LevelState.Failed) {
+				endChange(active, state);
 				if (!active.recover()) {
 					logStatus("Removing " + active.name + " due to failure");
 					currentState.pop();
-					lastAction = SystemClock.elapsedRealtime();
 					// If we have an unrecoverable problem exiting a level, and
 					// it's required for our current destination, stop trying to
 					// reach it
@@ -1046,6 +1132,8 @@ public class WifiControl {
 			CompletionReason reason) {
 		Completion oldCompletion = null;
 		Stack<Level> oldDestination = null;
+		long started;
+		long now = System.nanoTime();
 
 		// atomic replace..
 		synchronized (this) {
@@ -1053,7 +1141,8 @@ public class WifiControl {
 			oldCompletion = this.completion;
 			this.destState = dest;
 			this.completion = completion;
-			this.lastAction = SystemClock.elapsedRealtime();
+			started = this.destinationStarted;
+			this.destinationStarted = now;
 
 			if (dest == null)
 				wakelock.release();
@@ -1062,7 +1151,10 @@ public class WifiControl {
 		}
 
 		if (oldDestination != null) {
-			logStatus(reason + " reaching destination;");
+			logStatus(reason + " reaching destination after "
+					+ (now - started) / 1000000 + "ms;");
+			transitions.add(describe(oldDestination) + " " + reason, started, now);
+			app.runOnBackgroundThread(writeTransitions);
 			logState(oldDestination);
 			if (reason == CompletionReason.Failure) {
 				logStatus("Current state is;");
@@ -1080,8 +1172,8 @@ public class WifiControl {
 			rootShell = null;
 			if (shell != null) {
 				try {
-					logStatus("closing root shell");
-					shell.close();
+					logStatus("releasing root shell, " + shell.getStats());
+					shell.release();
 				} catch (IOException e) {
 					Log.e("WifiControl", e.getMessage(), e);
 				}
@@ -64,6 +64,9 @@ public enum WifiMode {
 		return values[m.ordinal() + 1];
 	}
 
+	// don't let a wedged driver hang mode detection
+	private static final int COMMAND_TIMEOUT = 5000;
+
 	public static String lastIwconfigOutput;
 	private static Pattern iwTypePattern = Pattern.compile("type\\s(\\w+)");
 
@@ -125,7 +128,7 @@ public enum WifiMode {
 				CommandCapture c = new CommandCapture(
 						coretask.DATA_FILE_PATH + "/bin/iw dev "
 								+ interfaceName + " info");
-				rootShell.run(c);
+				rootShell.run(c, COMMAND_TIMEOUT);
 
 				if (c.exitCode() == 0) {
 					String iw = c.toString();
@@ -170,7 +173,7 @@ public enum WifiMode {
 				CommandCapture c = new CommandCapture(
 						coretask.DATA_FILE_PATH + "/bin/iwconfig "
 								+ interfaceName);
-				rootShell.run(c);
+				rootShell.run(c, COMMAND_TIMEOUT);
 
 				String iw = c.toString();
 				lastIwconfigOutput = iw;
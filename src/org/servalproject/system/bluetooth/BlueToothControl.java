@@ -11,6 +11,8 @@ import android.os.Build;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.servalproject.BackgroundLanes.Lane;
+import org.servalproject.Metrics;
 import org.servalproject.R;
 import org.servalproject.ServalBatPhoneApplication;
 import org.servalproject.servaldna.AbstractExternalInterface;
@@ -22,7 +24,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.UUID;
 
 /**
@@ -38,13 +39,34 @@ public class BlueToothControl extends AbstractExternalInterface{
 	private long lastScan;
 	private boolean scanAgain = false;
 	private boolean scanCancelled = false;
-	private HashMap<String, PeerState> peers = new HashMap<String, PeerState>();
+	private final PeerTable<PeerState> peers = new PeerTable<PeerState>();
+	// the peers of the current instance, for the queued packets gauge
+	private static volatile PeerTable<PeerState> livePeers;
+	static {
+		Metrics.gauge("bluetooth_queued_packets", "Packets waiting to be written to bluetooth peers",
+				new Metrics.Source() {
+			@Override
+			public long value() {
+				PeerTable<PeerState> p = livePeers;
+				long total = 0;
+				if (p != null) {
+					for (PeerState peer : p.values())
+						total += peer.queuedPackets();
+				}
+				return total;
+			}
+		});
+	}
 	private Listener secureListener, insecureListener;
 	static final int MTU = 1200;
+	// forget devices we haven't heard from in a while, well beyond the broadcast reachable timeout
+	private static final long PEER_EXPIRY_MS = 600000;
+	private static final int PEER_SWEEP_INTERVAL = 60000;
 	private static final String TAG = "BlueToothControl";
 	private static final String SERVAL_PREFIX = "Serval:";
 	private static final String BLUETOOTH_NAME = "bluetoothName";
 	private final ServalBatPhoneApplication app;
+	final DiscoveryScheduler discovery;
 
 	// chosen by fair dice roll (otherwise known as UUID.randomUUID())
 	static final UUID SECURE_UUID = UUID.fromString("85d832c2-b7e9-4166-a65f-695b925485aa");
@@ -79,16 +101,18 @@ public class BlueToothControl extends AbstractExternalInterface{
 			myName = app.settings.getString(BLUETOOTH_NAME, "");
 		}
 		originalName = myName;
+		discovery = new DiscoveryScheduler(this);
+		livePeers = peers;
 	}
 
 	private void up(){
 		if (app.isMainThread()){
-			app.runOnBackgroundThread(new Runnable() {
+			app.runOnBackgroundThread(Lane.Network, new Runnable() {
 				@Override
 				public void run() {
 					up();
 				}
-			});
+			}, 0);
 			return;
 		}
 		try {
@@ -107,7 +131,8 @@ public class BlueToothControl extends AbstractExternalInterface{
 			// the name change of other peers. If this is the only link between two devices,
 			// servald will probably try to send packets as fast as we allow.
 
-			// And we set the tickms interval to 2 minutes, to force a periodic scan for peer detection.
+			// And we set the tickms interval to 2 minutes, so our name is refreshed periodically.
+			// When we actually scan is left to the DiscoveryScheduler, which avoids scanning while data is flowing.
 
 			// MTU = trunc((248 - 7)/8)*7 = 210
 			// on some devices it seems to be (127 - 7)/8*7 = 105
@@ -135,12 +160,12 @@ public class BlueToothControl extends AbstractExternalInterface{
 		if (secureListener!=null)
 			return;
 		if (app.isMainThread()){
-			app.runOnBackgroundThread(new Runnable() {
+			app.runOnBackgroundThread(Lane.Network, new Runnable() {
 				@Override
 				public void run() {
 					listen();
 				}
-			});
+			}, 0);
 			return;
 		}
 		String app_name = app.getString(R.string.app_name);
@@ -165,22 +190,38 @@ public class BlueToothControl extends AbstractExternalInterface{
 			}
 		}
 		up();
-		startDiscovery();
+		discovery.start();
+		app.runOnBackgroundThread(Lane.Network, expirePeers, PEER_SWEEP_INTERVAL);
 	}
 
+	private Runnable expirePeers = new Runnable() {
+		@Override
+		public void run() {
+			if (secureListener==null)
+				return;
+			int removed = peers.expire(SystemClock.elapsedRealtime() - PEER_EXPIRY_MS);
+			if (removed>0) {
+				Log.v(TAG, "Expired " + removed + " idle peers, " + peers.size() + " remaining");
+				discovery.onPeersExpired(removed);
+			}
+			app.runOnBackgroundThread(Lane.Network, expirePeers, PEER_SWEEP_INTERVAL);
+		}
+	};
+
 	private void stopListening(){
 		if (secureListener==null)
 			return;
 
 		if (app.isMainThread()){
-			app.runOnBackgroundThread(new Runnable() {
+			app.runOnBackgroundThread(Lane.Network, new Runnable() {
 				@Override
 				public void run() {
 					stopListening();
 				}
-			});
+			}, 0);
 			return;
 		}
+		discovery.stop();
 		setName(originalName);
 		try {
 			down();
@@ -240,25 +281,25 @@ public class BlueToothControl extends AbstractExternalInterface{
 	}
 
 	public PeerState getPeer(BluetoothDevice device){
-		PeerState s = this.peers.get(device.getAddress());
+		long address = MacAddress.parse(device.getAddress());
+		PeerState s = this.peers.get(address);
 		if (s==null){
-			s = new PeerState(this, device, getAddress(device));
-			this.peers.put(device.getAddress(), s);
+			s = new PeerState(this, device, address);
+			PeerState existing = this.peers.putIfAbsent(address, s);
+			if (existing!=null)
+				s = existing;
+			else
+				discovery.onPeerAdded();
 		}
+		s.lastSeen = SystemClock.elapsedRealtime();
 		return s;
 	}
 
-	private byte[] getAddress(BluetoothDevice device){
-		// TODO convert mac address string to hex bytes?
-		return device.getAddress().getBytes();
-	}
-
 	private PeerState getDevice(byte[] address){
-		// TODO convert mac address string to hex bytes?
-		String addr = new String(address);
-		PeerState ret = peers.get(addr);
+		long addr = MacAddress.fromBytes(address);
+		PeerState ret = addr == -1 ? null : peers.get(addr);
 		if (ret==null)
-			Log.v(TAG, "Unable to find bluetooth device for "+addr);
+			Log.v(TAG, "Unable to find bluetooth device for "+debug(address));
 		return ret;
 	}
 
@@ -404,7 +445,7 @@ public class BlueToothControl extends AbstractExternalInterface{
 		try {
 			byte packet[]=decodeName(peer.device.getName());
 			if (packet != null)
-				this.receivedPacket(getAddress(peer.device), packet);
+				this.receivedPacket(peer.addrBytes, packet);
 		} catch (IOException e) {
 			Log.e(TAG, e.getMessage(), e);
 		}
@@ -412,12 +453,12 @@ public class BlueToothControl extends AbstractExternalInterface{
 
 	private void processName(final PeerState peer){
 		if (app.isMainThread())
-			app.runOnBackgroundThread(new Runnable() {
+			app.runOnBackgroundThread(Lane.Network, new Runnable() {
 				@Override
 				public void run() {
 					receivedName(peer);
 				}
-			});
+			}, 0);
 		else
 			receivedName(peer);
 	}
@@ -438,11 +479,11 @@ public class BlueToothControl extends AbstractExternalInterface{
 		if (addr==null || addr.length==0) {
 			String name = encodeName(payloadBytes);
 			setName(name);
-			startDiscovery();
 		}else{
 			PeerState peer = getDevice(addr);
 			if (peer==null)
 				return;
+			discovery.onTraffic(payloadBytes.length);
 			peer.queuePacket(payloadBytes);
 		}
 	}
@@ -474,10 +515,11 @@ public class BlueToothControl extends AbstractExternalInterface{
 	public void onDiscoveryStarted(){
 		this.lastScan = SystemClock.elapsedRealtime();
 		Log.v(TAG, "Discovery Started");
+		discovery.onScanStarted();
 		// TODO set alarm to cancel / restart bluetooth
 	}
 
-	private void startDiscovery(){
+	void startDiscovery(){
 		if (!app.isEnabled() || state!=BluetoothAdapter.STATE_ON || !adapter.isEnabled())
 			return;
 
@@ -498,6 +540,7 @@ public class BlueToothControl extends AbstractExternalInterface{
 
 	public void onDiscoveryFinished(){
 		Log.v(TAG, "Discovery Finished");
+		discovery.onScanFinished();
 		if (scanAgain)
 			startDiscovery();
 	}
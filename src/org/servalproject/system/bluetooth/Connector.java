@@ -4,6 +4,7 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
+import org.servalproject.BackgroundLanes.Lane;
 import org.servalproject.ServalBatPhoneApplication;
 
 import java.io.IOException;
@@ -28,7 +29,7 @@ class Connector implements Runnable{
 
 		// use a single thread to ensure connections are serialised
 		// TODO start another worker thread to reduce contention with the rest of the app?
-		ServalBatPhoneApplication.context.runOnBackgroundThread(this);
+		ServalBatPhoneApplication.context.runOnBackgroundThread(Lane.Network, this, 0);
 	}
 
 	@Override
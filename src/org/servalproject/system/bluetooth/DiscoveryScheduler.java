@@ -0,0 +1,158 @@
+package org.servalproject.system.bluetooth;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import org.servalproject.BackgroundLanes.Lane;
+import org.servalproject.ServalBatPhoneApplication;
+
+/**
+ * Decides when to run a bluetooth discovery scan.
+ * A scan is the only way to read the names of other devices, but it massively reduces the bandwidth
+ * available to any open connections. So we hold off while unicast data is flowing,
+ * scan more often while devices are coming and going, and back off while the neighbourhood is stable.
+ */
+class DiscoveryScheduler implements Runnable {
+	private static final String TAG = "DiscoveryScheduler";
+
+	static final int MIN_INTERVAL = 30000;
+	static final int DEFAULT_INTERVAL = 120000;
+	static final int MAX_INTERVAL = 600000;
+	// unicast traffic more recent than this means a transfer is in progress
+	private static final int BUSY_TIMEOUT = 5000;
+	// but don't let a busy link starve peer detection forever
+	private static final int MAX_DEFERRAL = 60000;
+
+	private final BlueToothControl control;
+	private final ServalBatPhoneApplication app;
+	private boolean running = false;
+
+	private int interval = DEFAULT_INTERVAL;
+	private long lastScanStart;
+	private long lastScanEnd;
+	private long deferredSince;
+
+	// unicast bytes sent or received, and when
+	private volatile long lastTraffic;
+	private long trafficBytes;
+	private long bytesAtScanStart;
+	private long bytesAtScanEnd;
+
+	// turnover observed since the last scan started
+	private int newPeers;
+	private int expiredPeers;
+
+	private int scans;
+	private long totalLostBytes;
+
+	DiscoveryScheduler(BlueToothControl control){
+		this.control = control;
+		this.app = ServalBatPhoneApplication.context;
+	}
+
+	synchronized void start(){
+		if (running)
+			return;
+		running = true;
+		interval = DEFAULT_INTERVAL;
+		deferredSince = 0;
+		// scan now to find our neighbours
+		app.runOnBackgroundThread(Lane.Network, this, 0);
+	}
+
+	synchronized void stop(){
+		running = false;
+	}
+
+	void onTraffic(int bytes){
+		synchronized (this){
+			trafficBytes += bytes;
+		}
+		lastTraffic = SystemClock.elapsedRealtime();
+	}
+
+	synchronized void onPeerAdded(){
+		newPeers++;
+	}
+
+	synchronized void onPeersExpired(int count){
+		expiredPeers+=count;
+	}
+
+	synchronized void onScanStarted(){
+		lastScanStart = SystemClock.elapsedRealtime();
+		bytesAtScanStart = trafficBytes;
+	}
+
+	synchronized void onScanFinished(){
+		long now = SystemClock.elapsedRealtime();
+		if (lastScanStart==0 || lastScanEnd > lastScanStart)
+			return;
+
+		// compare the unicast rate during the scan with the rate since the previous scan
+		long scanDuration = now - lastScanStart;
+		long idleDuration = lastScanEnd == 0 ? 0 : lastScanStart - lastScanEnd;
+		long bytesDuring = trafficBytes - bytesAtScanStart;
+		long lostBytes = 0;
+		if (idleDuration > 0 && scanDuration > 0){
+			long expected = (bytesAtScanStart - bytesAtScanEnd) * scanDuration / idleDuration;
+			if (expected > bytesDuring)
+				lostBytes = expected - bytesDuring;
+		}
+		scans++;
+		totalLostBytes += lostBytes;
+		lastScanEnd = now;
+		bytesAtScanEnd = trafficBytes;
+
+		int turnover = newPeers + expiredPeers;
+		int previous = interval;
+		if (turnover > 0){
+			// devices are coming and going, look again sooner
+			interval = Math.max(MIN_INTERVAL, interval / 2);
+		}else{
+			interval = Math.min(MAX_INTERVAL, interval * 3 / 2);
+		}
+		newPeers = 0;
+		expiredPeers = 0;
+
+		Log.v(TAG, "Scan #" + scans + " took " + scanDuration + "ms, " + bytesDuring + " bytes transferred, ~"
+				+ lostBytes + " bytes lost (" + totalLostBytes + " total), turnover " + turnover
+				+ ", interval " + previous + "ms -> " + interval + "ms");
+
+		if (running)
+			app.runOnBackgroundThread(Lane.Network, this, interval);
+	}
+
+	@Override
+	public void run() {
+		long now = SystemClock.elapsedRealtime();
+		long delay;
+		synchronized (this){
+			if (!running)
+				return;
+
+			long due = lastScanEnd == 0 ? 0 : lastScanEnd + interval;
+			if (due > now){
+				delay = due - now;
+			}else if (now - lastTraffic < BUSY_TIMEOUT
+					&& (deferredSince==0 || now - deferredSince < MAX_DEFERRAL)){
+				if (deferredSince==0)
+					deferredSince = now;
+				delay = BUSY_TIMEOUT - (now - lastTraffic);
+			}else{
+				if (deferredSince!=0)
+					Log.v(TAG, "Scan deferred for " + (now - deferredSince) + "ms by unicast traffic");
+				deferredSince = 0;
+				delay = -1;
+			}
+		}
+		if (delay>=0) {
+			app.runOnBackgroundThread(Lane.Network, this, (int) delay);
+			return;
+		}
+		// if the scan can't start now, it will be restarted when the current scan or connection finishes.
+		// In case discovery never starts at all, try again later.
+		control.startDiscovery();
+		app.runOnBackgroundThread(Lane.Network, this, MAX_INTERVAL);
+	}
+}
@@ -0,0 +1,54 @@
+package org.servalproject.system.bluetooth;
+
+/**
+ * Conversions between the "XX:XX:XX:XX:XX:XX" strings used by android,
+ * the 6 byte link addresses we hand to servald, and a packed long used as a lookup key.
+ */
+final class MacAddress {
+	static final int LENGTH = 6;
+
+	private MacAddress(){
+	}
+
+	private static int hexValue(char c){
+		if (c>='0' && c<='9')
+			return c - '0';
+		if (c>='a' && c<='f')
+			return c - 'a' + 10;
+		if (c>='A' && c<='F')
+			return c - 'A' + 10;
+		throw new IllegalArgumentException("Invalid hex character '"+c+"'");
+	}
+
+	static long parse(String address){
+		if (address==null || address.length()!=LENGTH*3-1)
+			throw new IllegalArgumentException("Invalid mac address "+address);
+		long ret=0;
+		for (int i=0;i<LENGTH;i++){
+			int offset = i*3;
+			if (i>0 && address.charAt(offset-1)!=':')
+				throw new IllegalArgumentException("Invalid mac address "+address);
+			ret = (ret << 8) | (hexValue(address.charAt(offset)) << 4) | hexValue(address.charAt(offset+1));
+		}
+		return ret;
+	}
+
+	// returns -1 if the address is not a 6 byte mac address
+	static long fromBytes(byte[] address){
+		if (address==null || address.length!=LENGTH)
+			return -1;
+		long ret=0;
+		for (int i=0;i<LENGTH;i++)
+			ret = (ret << 8) | (address[i] & 0xFF);
+		return ret;
+	}
+
+	static byte[] toBytes(long address){
+		byte ret[] = new byte[LENGTH];
+		for (int i=LENGTH-1;i>=0;i--){
+			ret[i] = (byte) address;
+			address>>>=8;
+		}
+		return ret;
+	}
+}
@@ -56,6 +56,7 @@ class PeerReader implements Runnable, Comparable<PeerReader>{
 						throw new IllegalStateException(msgLen+" is greater than the link MTU");
 					if (offset >= msgLen+2) {
 						control.receivedPacket(peer.addrBytes, buff, 2, msgLen);
+						control.discovery.onTraffic(msgLen);
 						if (offset > msgLen+2)
 							System.arraycopy(buff, msgLen+2, buff, 0, offset - (msgLen + 2));
 						offset -= msgLen+2;
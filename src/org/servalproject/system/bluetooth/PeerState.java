@@ -6,7 +6,10 @@ import android.os.Build;
 import android.os.SystemClock;
 import android.util.Log;
 
+import org.servalproject.BackgroundLanes.Lane;
+import org.servalproject.Metrics;
 import org.servalproject.ServalBatPhoneApplication;
+import org.servalproject.TimingWheel;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -22,7 +25,7 @@ import java.util.concurrent.LinkedBlockingQueue;
 /**
 * Created by jeremy on 7/04/15.
 */
-public class PeerState implements Runnable{
+public class PeerState implements Runnable, PeerTable.Entry{
 	private final BlueToothControl control;
 	public final BluetoothDevice device;
 	private Connector connector;
@@ -33,8 +36,14 @@ public class PeerState implements Runnable{
 	Thread writerThread;
 
 	private LinkedList<byte[]> queue = new LinkedList<byte[]>();
+	public final long address;
 	public final byte[] addrBytes;
+	volatile long lastSeen;
 	private static final String TAG="PeerState";
+	private static final Metrics.Counter sent = Metrics.counter(
+			"bluetooth_packets_sent_total", "Packets written to bluetooth peers");
+	private static final Metrics.Counter sentBytes = Metrics.counter(
+			"bluetooth_sent_bytes_total", "Bytes written to bluetooth peers, including framing");
 	private ServalBatPhoneApplication app;
 
 	private Runnable expireConnections = new Runnable() {
@@ -54,15 +63,36 @@ public class PeerState implements Runnable{
 				if (readers.isEmpty())
 					return;
 			}
-			app.runOnBackgroundThread(expireConnections, 5000);
+			app.timers.schedule(expireTimeout, 5000);
 		}
 	};
 
-	PeerState(BlueToothControl control, BluetoothDevice device, byte[] addrBytes){
+	// closing sockets can block, so the timer only hands the work to the network lane
+	private final TimingWheel.Timeout expireTimeout = new TimingWheel.Timeout("ExpireConnections",
+			new Runnable() {
+				@Override
+				public void run() {
+					app.runOnBackgroundThread(Lane.Network, expireConnections, 0);
+				}
+			});
+
+	PeerState(BlueToothControl control, BluetoothDevice device, long address){
 		this.control = control;
 		this.device = device;
-		this.addrBytes = addrBytes;
+		this.address = address;
+		this.addrBytes = MacAddress.toBytes(address);
 		this.app = ServalBatPhoneApplication.context;
+		this.lastSeen = SystemClock.elapsedRealtime();
+	}
+
+	// true if we have no connection to this device, and haven't seen it since the given time
+	@Override
+	public boolean isIdle(long idleSince){
+		if (lastSeen >= idleSince || connector!=null || writerThread!=null)
+			return false;
+		synchronized (readers){
+			return readers.isEmpty();
+		}
 	}
 
 	public void connect() throws IOException {
@@ -110,13 +140,20 @@ public class PeerState implements Runnable{
 		if (writerThread==null) {
 			writerThread = new Thread(this, "Writer" + device.getAddress());
 			writerThread.start();
-			app.runOnBackgroundThread(expireConnections,5000);
+			app.timers.schedule(expireTimeout, 5000);
+		}
+	}
+
+	int queuedPackets(){
+		synchronized (queue) {
+			return queue.size();
 		}
 	}
 
 	public void queuePacket(byte payload[]){
 		if (!control.adapter.isEnabled())
 			return;
+		lastSeen = SystemClock.elapsedRealtime();
 
 		synchronized (queue) {
 			boolean notify = queue.isEmpty() && writerThread!=null;
@@ -201,6 +238,8 @@ public class PeerState implements Runnable{
 					// try to write in one go or the blutooth layer will waste bandwidth sending fragments
 					reader.socket.getOutputStream().write(buff, 0, payload.length + 2);
 					reader.lastWritten = SystemClock.elapsedRealtime();
+					sent.inc();
+					sentBytes.add(payload.length + 2);
 				}catch (IOException e){
 					Log.e(reader.name, e.getMessage(), e);
 					onClosed(reader);
@@ -0,0 +1,123 @@
+package org.servalproject.system.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Open addressed hash table of peers keyed by packed mac address.
+ * Writers are serialised and publish a new copy of the table,
+ * so the per packet lookup from servald never takes a lock or allocates.
+ * The set of bluetooth devices in range changes slowly, so copying on write is cheap.
+ */
+class PeerTable<T extends PeerTable.Entry> {
+	private static final int MIN_CAPACITY = 16;
+
+	interface Entry{
+		// true if this peer hasn't been used since the given time
+		boolean isIdle(long idleSince);
+	}
+
+	private static class Table{
+		final long keys[];
+		final Entry values[];
+		final int size;
+
+		Table(int capacity, int size){
+			keys = new long[capacity];
+			values = new Entry[capacity];
+			this.size = size;
+		}
+	}
+
+	private volatile Table table = new Table(MIN_CAPACITY, 0);
+
+	private static int slot(long key, int mask){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32)) & mask;
+	}
+
+	private static void insert(Table t, long key, Entry value){
+		int mask = t.keys.length -1;
+		int i = slot(key, mask);
+		while(t.values[i]!=null)
+			i = (i+1) & mask;
+		t.keys[i]=key;
+		t.values[i]=value;
+	}
+
+	private static int capacityFor(int size){
+		int capacity = MIN_CAPACITY;
+		// keep the load factor below 50%
+		while(capacity < size*2)
+			capacity<<=1;
+		return capacity;
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(long key){
+		Table t = table;
+		int mask = t.keys.length -1;
+		int i = slot(key, mask);
+		Entry value;
+		while((value = t.values[i])!=null){
+			if (t.keys[i]==key)
+				return (T) value;
+			i = (i+1) & mask;
+		}
+		return null;
+	}
+
+	public int size(){
+		return table.size;
+	}
+
+	// returns the existing peer if there was one
+	public synchronized T putIfAbsent(long key, T value){
+		T existing = get(key);
+		if (existing!=null)
+			return existing;
+		Table old = table;
+		Table t = new Table(capacityFor(old.size+1), old.size+1);
+		for (int i=0;i<old.values.length;i++){
+			if (old.values[i]!=null)
+				insert(t, old.keys[i], old.values[i]);
+		}
+		insert(t, key, value);
+		table = t;
+		return null;
+	}
+
+	public synchronized void clear(){
+		table = new Table(MIN_CAPACITY, 0);
+	}
+
+	@SuppressWarnings("unchecked")
+	public List<T> values(){
+		Table t = table;
+		List<T> ret = new ArrayList<T>(t.size);
+		for (int i=0;i<t.values.length;i++){
+			if (t.values[i]!=null)
+				ret.add((T) t.values[i]);
+		}
+		return ret;
+	}
+
+	// drop any peers that have been idle since before the given time,
+	// returns the number of peers removed
+	public synchronized int expire(long idleSince){
+		Table old = table;
+		int live[] = new int[old.size];
+		int remaining=0;
+		for (int i=0;i<old.values.length;i++){
+			if (old.values[i]!=null && !old.values[i].isIdle(idleSince))
+				live[remaining++]=i;
+		}
+		if (remaining == old.size)
+			return 0;
+		Table t = new Table(capacityFor(remaining), remaining);
+		for (int i=0;i<remaining;i++)
+			insert(t, old.keys[live[i]], old.values[live[i]]);
+		table = t;
+		return old.size - remaining;
+	}
+}
@@ -70,6 +70,7 @@ public class SettingsScreenActivity extends Activity implements OnClickListener
 			Intent prepintent = new Intent(SettingsScreenActivity.this,
 					PreparationWizard.class);
 			prepintent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+			prepintent.putExtra(PreparationWizard.EXTRA_RESCAN, true);
 			startActivity(prepintent);
 			break;
 		case R.id.btnMMSSettings:// Notification Sound Settings Screen
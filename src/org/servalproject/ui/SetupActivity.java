@@ -42,6 +42,8 @@ import android.provider.Settings;
 import android.util.Log;
 
 import org.servalproject.R;
+import org.servalproject.ServalBatPhoneApplication;
+import org.servalproject.servald.ServalD;
 
 public class SetupActivity extends PreferenceActivity implements
 		OnSharedPreferenceChangeListener {
@@ -62,6 +64,10 @@ public class SetupActivity extends PreferenceActivity implements
 		setFlightModeCheckBoxes("bluetooth", toggleableRadios);
 		setFlightModeCheckBoxes("wifi", toggleableRadios);
 
+		// only debug builds act on these
+		if (!ServalBatPhoneApplication.isDebuggable)
+			getPreferenceScreen().removePreference(findPreference("debug"));
+
 	}
 
 	private void setFlightModeCheckBoxes(String name, String airplaneToggleable) {
@@ -94,6 +100,10 @@ public class SetupActivity extends PreferenceActivity implements
 			String radio = key.substring(0, key.indexOf('_'));
 			boolean value = sharedPreferences.getBoolean(key, false);
 			flightModeFix(AIRPLANE_MODE_TOGGLEABLE_RADIOS, radio, value);
+		} else if (ServalD.ALARM_SLACK_SETTING.equals(key)) {
+			ServalD server = ServalBatPhoneApplication.context.server;
+			if (server != null)
+				server.readAlarmSlack();
 		}
 	}
 
@@ -22,8 +22,15 @@ public class ShareUsActivity extends Activity {
 	private static final String TAG = "ShareUsActivity";
 	TextView shareWifi;
 
+	private final Runnable refresh = new Runnable() {
+		@Override
+		public void run() {
+			updateHelpText();
+		}
+	};
+
 	private void updateHelpText() {
-		ServalBatPhoneApplication app = (ServalBatPhoneApplication) this
+		final ServalBatPhoneApplication app = (ServalBatPhoneApplication) this
 				.getApplication();
 
 		String ssid = null;
@@ -57,6 +64,16 @@ public class ShareUsActivity extends Activity {
 			Log.e(TAG, e.getMessage(), e);
 		}
 		String helpText = null;
+		if (app.webServer == null && app.getState() == ServalBatPhoneApplication.State.Running) {
+			// the web server normally starts a little after startup, but the user wants it now
+			app.runOnBackgroundThread(new Runnable() {
+				@Override
+				public void run() {
+					if (app.startWebServer() != null)
+						runOnUiThread(refresh);
+				}
+			});
+		}
 		if (addr != null && ssid != null && app.webServer != null)
 			helpText = getString(R.string.share_wifi, ssid,"http://" + addr.getHostAddress()
 							+ ":" + app.webServer.port + "/");
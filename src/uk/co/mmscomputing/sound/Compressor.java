@@ -1,15 +1,22 @@
 package uk.co.mmscomputing.sound;
 
 public abstract class Compressor {
+	// every possible 16 bit sample, indexed by its little-endian bit pattern
+	private final byte[] table = new byte[0x10000];
+
+	protected Compressor() {
+		// subclasses only depend on static state, so this is safe to call here
+		for (int i = 0; i < table.length; i++)
+			table[i] = (byte) compress((short) i);
+	}
+
 	protected abstract int compress(short sample);
 
 	public final void compress(byte in[], int offset, int len, byte out[],
 			int outOffset) {
-		int i = 0;
-		while (i < len) {
-			int sample = (in[offset + i++] & 0x00FF);
-			sample |= (in[offset + i++] << 8);
-			out[outOffset++] = (byte) compress((short) sample);
-		}
+		final byte[] table = this.table;
+		int end = offset + (len & ~1);
+		for (int i = offset; i < end; i += 2)
+			out[outOffset++] = table[(in[i] & 0xFF) | ((in[i + 1] & 0xFF) << 8)];
 	}
-}
\ No newline at end of file
+}
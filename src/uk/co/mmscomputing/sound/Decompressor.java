@@ -9,10 +9,12 @@ public abstract class Decompressor {
 
 	public final void decompress(byte in[], int offset, int count,
 			byte out[], int outOffset) {
-		for (int i = 0; i < count; i++) {
-			int value = table[in[i + offset] & 0x00FF];
-			out[outOffset++] = (byte) ((value >> 8) & 0x00FF); // little-endian
-			out[outOffset++] = (byte) (value & 0x00FF);
+		final int[] table = this.table;
+		int end = offset + count;
+		for (int i = offset; i < end; i++) {
+			int value = table[in[i] & 0xFF];
+			out[outOffset++] = (byte) (value >> 8); // little-endian
+			out[outOffset++] = (byte) value;
 		}
 	}
 }
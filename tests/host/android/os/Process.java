@@ -0,0 +1,18 @@
+package android.os;
+
+/**
+ * Host version of android's Process, thread priorities are ignored.
+ */
+public final class Process {
+	public static final int THREAD_PRIORITY_DEFAULT = 0;
+	public static final int THREAD_PRIORITY_BACKGROUND = 10;
+	public static final int THREAD_PRIORITY_FOREGROUND = -2;
+	public static final int THREAD_PRIORITY_AUDIO = -16;
+	public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+	private Process() {
+	}
+
+	public static void setThreadPriority(int priority) {
+	}
+}
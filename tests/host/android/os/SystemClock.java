@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * Host version of android's SystemClock, both clocks count from when this class was loaded.
+ */
+public final class SystemClock {
+	private static final long start = System.nanoTime();
+
+	private SystemClock() {
+	}
+
+	public static long elapsedRealtime() {
+		return (System.nanoTime() - start) / 1000000;
+	}
+
+	public static long uptimeMillis() {
+		return elapsedRealtime();
+	}
+}
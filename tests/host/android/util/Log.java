@@ -0,0 +1,77 @@
+package android.util;
+
+/**
+ * Host version of android's Log, for running plain java parts of batphone on a normal JVM.
+ * Warnings and errors go to stderr, verbose, debug and info messages only if -Dlog.verbose is set.
+ */
+public final class Log {
+	public static final int VERBOSE = 2;
+	public static final int DEBUG = 3;
+	public static final int INFO = 4;
+	public static final int WARN = 5;
+	public static final int ERROR = 6;
+	private static final String LEVELS = "??VDIWE";
+
+	private static final boolean SHOW = System.getProperty("log.verbose") != null;
+
+	private Log() {
+	}
+
+	private static int print(String level, boolean show, String tag, String msg, Throwable tr) {
+		if (!show)
+			return 0;
+		System.err.println(level + "/" + tag + ": " + msg);
+		if (tr != null)
+			tr.printStackTrace();
+		return 0;
+	}
+
+	public static boolean isLoggable(String tag, int level) {
+		return SHOW;
+	}
+
+	public static int v(String tag, String msg) {
+		return print("V", SHOW, tag, msg, null);
+	}
+
+	public static int v(String tag, String msg, Throwable tr) {
+		return print("V", SHOW, tag, msg, tr);
+	}
+
+	public static int d(String tag, String msg) {
+		return print("D", SHOW, tag, msg, null);
+	}
+
+	public static int d(String tag, String msg, Throwable tr) {
+		return print("D", SHOW, tag, msg, tr);
+	}
+
+	public static int i(String tag, String msg) {
+		return print("I", SHOW, tag, msg, null);
+	}
+
+	public static int i(String tag, String msg, Throwable tr) {
+		return print("I", SHOW, tag, msg, tr);
+	}
+
+	public static int w(String tag, String msg) {
+		return print("W", true, tag, msg, null);
+	}
+
+	public static int w(String tag, String msg, Throwable tr) {
+		return print("W", true, tag, msg, tr);
+	}
+
+	public static int e(String tag, String msg) {
+		return print("E", true, tag, msg, null);
+	}
+
+	public static int e(String tag, String msg, Throwable tr) {
+		return print("E", true, tag, msg, tr);
+	}
+
+	public static int println(int priority, String tag, String msg) {
+		String level = priority >= 0 && priority < LEVELS.length() ? LEVELS.substring(priority, priority + 1) : "?";
+		return print(level, SHOW || priority >= WARN, tag, msg, null);
+	}
+}
@@ -0,0 +1,150 @@
+package org.servalproject.audio;
+
+import java.util.Random;
+
+/**
+ * Runs AudioRecordStream against a simulated recorder on a virtual clock, and checks that it only
+ * reports an overrun when the recorder really threw audio away;
+ *   tests/host/run org.servalproject.audio.CaptureOverrunCheck
+ *
+ * - an hour with the audio clock 100ppm slower or faster than the system clock, and some
+ *   scheduling jitter, which should never overrun
+ * - a 400ms stall with a 100ms recorder buffer, which should lose about 300ms once
+ */
+public class CaptureOverrunCheck {
+	private static final int BLOCK_MS = 20;
+	private static final int BUFFER_MS = 100;
+
+	private static class SimulatedClock implements Clock {
+		long now;
+
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+
+		@Override
+		public long elapsedRealtime() {
+			return now / 1000000;
+		}
+	}
+
+	// an AudioRecord whose sample clock runs at 8kHz plus ppm, and that drops the oldest audio
+	// when nobody reads it in time
+	private static class SimulatedRecorder implements AudioCapture {
+		private final SimulatedClock clock;
+		private final long durationMs;
+		private final int ppm;
+		private final int jitterMs;
+		private final long stallAtMs;
+		private final int stallMs;
+		private final Random random = new Random(1);
+		AudioRecordStream recorder;
+		private long start;
+		private long consumed;
+		// samples the recorder threw away
+		long dropped;
+
+		SimulatedRecorder(SimulatedClock clock, long durationMs, int ppm, int jitterMs,
+				long stallAtMs, int stallMs) {
+			this.clock = clock;
+			this.durationMs = durationMs;
+			this.ppm = ppm;
+			this.jitterMs = jitterMs;
+			this.stallAtMs = stallAtMs;
+			this.stallMs = stallMs;
+		}
+
+		// samples the recorder has captured so far
+		private long produced() {
+			return (clock.now - start) * (1000000 + ppm) / 125000 / 1000000;
+		}
+
+		// when the recorder will have captured this many samples
+		private long producedAt(long samples) {
+			// 125000ns per sample at exactly 8kHz, rounded up
+			return start + (samples * 125000 * 1000000 + 1000000 + ppm - 1) / (1000000 + ppm);
+		}
+
+		@Override
+		public int getSampleRate() {
+			return 8000;
+		}
+
+		@Override
+		public int getFrameSize() {
+			return 2;
+		}
+
+		@Override
+		public int getBufferSize() {
+			return BUFFER_MS * 8 * 2;
+		}
+
+		@Override
+		public void start() {
+			start = clock.now;
+		}
+
+		@Override
+		public int read(byte buff[], int offset, int len) {
+			if ((clock.now - start) / 1000000 >= durationMs) {
+				recorder.close();
+				return 0;
+			}
+			// the rest of the loop might stall us
+			long ms = (clock.now - start) / 1000000;
+			if (stallMs > 0 && ms >= stallAtMs && ms < stallAtMs + BLOCK_MS)
+				clock.now += stallMs * 1000000L;
+
+			// if we have to wait for audio, we might be slow to wake up when it arrives
+			int samples = len / 2;
+			long ready = producedAt(consumed + samples);
+			if (ready > clock.now)
+				clock.now = ready + (jitterMs > 0 ? random.nextInt(jitterMs + 1) * 1000000L : 0);
+
+			long overflow = produced() - consumed - BUFFER_MS * 8;
+			if (overflow > 0) {
+				consumed += overflow;
+				dropped += overflow;
+			}
+			consumed += samples;
+			return samples * 2;
+		}
+
+		@Override
+		public void stop() {
+		}
+	}
+
+	private static boolean check(String name, long durationMs, int ppm, int jitterMs, long stallAtMs,
+			int stallMs, int minLostMs, int maxLostMs) {
+		SimulatedClock clock = new SimulatedClock();
+		SimulatedRecorder capture = new SimulatedRecorder(clock, durationMs, ppm, jitterMs,
+				stallAtMs, stallMs);
+		AudioRecordStream recorder = new AudioRecordStream(null, capture, BLOCK_MS * 8 * 2,
+				BLOCK_MS * 8 * 2, clock);
+		capture.recorder = recorder;
+		recorder.run();
+		int expected = stallMs > 0 ? 1 : 0;
+		boolean ok = recorder.getOverruns() == expected
+				&& recorder.getOverrunMs() >= minLostMs && recorder.getOverrunMs() <= maxLostMs;
+		System.out.println(String.format("%-30s %d overruns, reported %4dms lost, recorder dropped %4dms %s",
+				name, recorder.getOverruns(), recorder.getOverrunMs(), capture.dropped / 8,
+				ok ? "" : "FAIL"));
+		return ok;
+	}
+
+	public static void main(String args[]) {
+		long hour = 60 * 60 * 1000;
+		boolean ok = check("audio clock 100ppm slow", hour, -100, 0, 0, 0, 0, 0);
+		ok &= check("audio clock 100ppm fast", hour, 100, 0, 0, 0, 0, 0);
+		ok &= check("100ppm slow, 40ms jitter", hour, -100, 40, 0, 0, 0, 0);
+		ok &= check("400ms stall", 10000, 0, 0, 5000, 400, 280, 320);
+		ok &= check("100ppm slow, 400ms stall", hour, -100, 10, hour / 2, 400, 280, 320);
+		if (!ok) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package org.servalproject.audio;
+
+import org.servalproject.batphone.VoMP;
+
+/**
+ * Measures how fast each codec encodes and decodes on this machine, through the same java
+ * classes a call uses. G.711 is pure java, codec2 and opus go through the JNI bridges in
+ * jni/codec2_jni.c and jni/opus_jni.c, so this compares native and java throughput and shows the
+ * cost of each JNI call for both a single frame and the largest packet we send.
+ *
+ * The native codecs need host builds of their libraries;
+ *   tests/host/build-jni
+ *   JAVA_OPTS=-Djava.library.path=obj/host tests/host/run org.servalproject.audio.CodecBenchmark
+ */
+public class CodecBenchmark {
+	// seconds of audio to time for each codec and frame size
+	private static final int SECONDS = 20;
+	private static final int ROUNDS = 3;
+
+	private static final VoMP.Codec CODECS[] = {
+			VoMP.Codec.Ulaw8, VoMP.Codec.Alaw8,
+			VoMP.Codec.Codec2_3200, VoMP.Codec.Codec2_1200,
+			VoMP.Codec.Opus,
+	};
+
+	private static Codec create(VoMP.Codec codec, boolean encoder) {
+		switch (codec) {
+		case Ulaw8:
+		case Alaw8:
+			return new ULawCodec(codec == VoMP.Codec.Alaw8);
+		case Codec2_1200:
+		case Codec2_3200:
+			return new Codec2(codec);
+		case Opus:
+			return new Opus(encoder);
+		default:
+			throw new IllegalArgumentException("Unsupported codec " + codec);
+		}
+	}
+
+	// a 200Hz tone with some harmonics, so codecs can't take any shortcuts
+	private static void fill(AudioBuffer buff, int firstSample, int samples) {
+		for (int i = 0; i < samples; i++) {
+			double t = (double) (firstSample + i) / 8000;
+			int value = (int) (4000 * Math.sin(2 * Math.PI * 200 * t)
+					+ 2000 * Math.sin(2 * Math.PI * 600 * t)
+					+ 1000 * Math.sin(2 * Math.PI * 1400 * t));
+			buff.buff[i * 2] = (byte) value;
+			buff.buff[i * 2 + 1] = (byte) (value >> 8);
+		}
+		buff.dataLen = samples * 2;
+		buff.codec = VoMP.Codec.Signed16;
+	}
+
+	public static void main(String args[]) {
+		System.out.println("codec        frame   encode us   decode us   % real time");
+		for (VoMP.Codec codec : CODECS) {
+			try {
+				run(codec, codec.sampleDuration);
+				int largest = codec.maxPacketDuration();
+				if (largest != codec.sampleDuration)
+					run(codec, largest);
+			} catch (LinkageError e) {
+				// the native library is missing, or failed to load the first time
+				System.out.println(String.format("%-12s not available, %s", codec, e.getMessage()));
+			}
+		}
+	}
+
+	private static void run(VoMP.Codec codec, int frameMs) {
+		Codec encoder = create(codec, true);
+		Codec decoder = create(codec, false);
+		int samples = frameMs * 8;
+		int frames = SECONDS * 1000 / frameMs;
+		BufferList input = new BufferList(samples * 2);
+		AudioBuffer buff = input.getBuffer();
+
+		long encodeNs = Long.MAX_VALUE;
+		long decodeNs = Long.MAX_VALUE;
+		try {
+			for (int round = 0; round < ROUNDS; round++) {
+				long encodeTime = 0;
+				long decodeTime = 0;
+				for (int frame = 0; frame < frames; frame++) {
+					fill(buff, frame * samples, samples);
+					long start = System.nanoTime();
+					AudioBuffer encoded = encoder.encode(buff);
+					long encodedAt = System.nanoTime();
+					encodeTime += encodedAt - start;
+					// opus may skip a frame entirely, if it has nothing worth sending
+					if (encoded == null)
+						continue;
+					AudioBuffer decoded = decoder.decode(encoded);
+					decodeTime += System.nanoTime() - encodedAt;
+					if (decoded.dataLen != samples * 2)
+						throw new IllegalStateException(codec + " decoded " + decoded.dataLen
+								+ " bytes from a " + frameMs + "ms frame");
+					encoded.release();
+					decoded.release();
+				}
+				encodeNs = Math.min(encodeNs, encodeTime);
+				decodeNs = Math.min(decodeNs, decodeTime);
+			}
+		} finally {
+			encoder.close();
+			decoder.close();
+		}
+		System.out.println(String.format("%-12s %3dms  %10.1f  %10.1f  %10.2f%%",
+				codec, frameMs,
+				encodeNs / 1000.0 / frames,
+				decodeNs / 1000.0 / frames,
+				(encodeNs + decodeNs) / 1e7 / SECONDS));
+	}
+}
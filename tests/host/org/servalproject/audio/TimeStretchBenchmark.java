@@ -0,0 +1,130 @@
+package org.servalproject.audio;
+
+import java.io.IOException;
+
+import org.servalproject.batphone.VoMP;
+
+/**
+ * Checks and times TimeStretch on a minute of synthetic voiced audio;
+ *   tests/host/run org.servalproject.audio.TimeStretchBenchmark
+ *
+ * - at 100% the output must be bit-identical to the input
+ * - at 90-110% the output length must match the requested rate
+ * - stretching must not add clicks, no step between samples much larger than the input already has
+ * - the CPU time per minute of audio at each rate
+ */
+public class TimeStretchBenchmark {
+	private static final int SECONDS = 60;
+	private static final int BUFFER_MS = 20;
+	private static final int ROUNDS = 5;
+	private static final int RATES[] = {90, 95, 100, 105, 110};
+	// output length may differ from the ideal by this fraction
+	private static final double RATIO_TOLERANCE = 0.001;
+	// cross fading two segments can make a slightly larger step than the input has, a click is far larger
+	private static final double STEP_TOLERANCE = 1.1;
+
+	private static final int SAMPLES = SECONDS * 8000;
+	private static final short input[] = new short[SAMPLES];
+
+	// vowel like audio; a wandering pitch with harmonics, and syllables separated by quiet gaps
+	static {
+		double phase = 0;
+		for (int i = 0; i < SAMPLES; i++) {
+			double t = (double) i / 8000;
+			double pitch = 150 + 40 * Math.sin(2 * Math.PI * 0.7 * t);
+			phase += 2 * Math.PI * pitch / 8000;
+			double envelope = Math.max(0, Math.sin(2 * Math.PI * 2.5 * t));
+			input[i] = (short) (envelope * (6000 * Math.sin(phase)
+					+ 3000 * Math.sin(2 * phase) + 1500 * Math.sin(3 * phase)));
+		}
+	}
+
+	// collects everything written to it
+	private static class Sink extends AudioStream {
+		final short output[] = new short[SAMPLES * 2];
+		int len;
+
+		@Override
+		public int write(AudioBuffer buff) throws IOException {
+			int samples = buff.dataLen / 2;
+			for (int i = 0; i < samples; i++)
+				output[len + i] = (short) ((buff.buff[i * 2] & 0xFF) | (buff.buff[i * 2 + 1] << 8));
+			len += samples;
+			buff.release();
+			return samples / 8;
+		}
+	}
+
+	private static int maxStep(short samples[], int len) {
+		int max = 0;
+		for (int i = 1; i < len; i++)
+			max = Math.max(max, Math.abs(samples[i] - samples[i - 1]));
+		return max;
+	}
+
+	// returns the time taken to stretch the whole input, in ns
+	private static long stretch(int rate, Sink sink) throws IOException {
+		TimeStretch stretch = new TimeStretch(sink);
+		stretch.setPlaybackRate(rate);
+		BufferList buffers = new BufferList();
+		int samples = BUFFER_MS * 8;
+		long start = System.nanoTime();
+		for (int offset = 0; offset + samples <= SAMPLES; offset += samples) {
+			AudioBuffer buff = buffers.getBuffer();
+			buff.codec = VoMP.Codec.Signed16;
+			for (int i = 0; i < samples; i++) {
+				short value = input[offset + i];
+				buff.buff[i * 2] = (byte) value;
+				buff.buff[i * 2 + 1] = (byte) (value >> 8);
+			}
+			buff.dataLen = samples * 2;
+			stretch.write(buff);
+		}
+		// flushes whatever TimeStretch is still holding
+		stretch.missed(0, false);
+		return System.nanoTime() - start;
+	}
+
+	public static void main(String args[]) throws IOException {
+		boolean failed = false;
+		int inputStep = maxStep(input, SAMPLES);
+		// warm up every code path before timing any of them
+		for (int rate : RATES)
+			stretch(rate, new Sink());
+		System.out.println("rate   output/input   expected   max step   cpu ms per " + SECONDS + "s");
+		for (int rate : RATES) {
+			Sink sink = null;
+			long best = Long.MAX_VALUE;
+			for (int round = 0; round < ROUNDS; round++) {
+				sink = new Sink();
+				best = Math.min(best, stretch(rate, sink));
+			}
+
+			StringBuilder problems = new StringBuilder();
+			double ratio = (double) sink.len / SAMPLES;
+			double expected = 100.0 / rate;
+			if (Math.abs(ratio - expected) > expected * RATIO_TOLERANCE)
+				problems.append(" wrong length");
+			int step = maxStep(sink.output, sink.len);
+			if (step > inputStep * STEP_TOLERANCE)
+				problems.append(" clicks");
+			if (rate == 100) {
+				boolean exact = sink.len == SAMPLES;
+				for (int i = 0; exact && i < SAMPLES; i++)
+					exact = sink.output[i] == input[i];
+				if (!exact)
+					problems.append(" not bit exact");
+			}
+			if (problems.length() > 0)
+				failed = true;
+
+			System.out.println(String.format("%3d%%   %12.5f   %8.5f   %5d/%-5d   %8.1f %s",
+					rate, ratio, expected, step, inputStep, best / 1000000.0,
+					problems.length() > 0 ? "FAIL" + problems : (rate == 100 ? "bit exact" : "")));
+		}
+		if (failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}
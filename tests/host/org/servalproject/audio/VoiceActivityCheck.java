@@ -0,0 +1,81 @@
+package org.servalproject.audio;
+
+import java.util.Random;
+
+/**
+ * Feeds synthetic audio through VoiceActivityDetector.isSpeech and reports how each stretch was
+ * classified, so changes to the noise floor tracking can be checked without a phone;
+ *   tests/host/run org.servalproject.audio.VoiceActivityCheck
+ *
+ * - background noise, which should not be speech
+ * - a minute of talking, 4s phrases about 12dB above the background with short pauses,
+ *   which should be speech for the whole of every phrase
+ * - noise again, which should drop back to silence
+ * - a permanently louder background, which is speech until the detector decides nobody
+ *   talks that long without a pause, then drops back to silence
+ */
+public class VoiceActivityCheck {
+	private static final int FRAME_MS = 20;
+	private static final int SAMPLES = FRAME_MS * 8;
+
+	private final VoiceActivityDetector vad = new VoiceActivityDetector(null);
+	private final BufferList bufferList = new BufferList();
+	private final Random random = new Random(1);
+	private double phase;
+	private boolean failed;
+
+	private AudioBuffer frame(double noise, double tone) {
+		AudioBuffer buff = bufferList.getBuffer();
+		for (int i = 0; i < SAMPLES; i++) {
+			phase += 2 * Math.PI * 220 / 8000;
+			double v = random.nextGaussian() * noise + Math.sin(phase) * tone;
+			int sample = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+			buff.buff[i * 2] = (byte) sample;
+			buff.buff[i * 2 + 1] = (byte) (sample >> 8);
+		}
+		buff.dataLen = SAMPLES * 2;
+		return buff;
+	}
+
+	private void run(String name, int durationMs, double noise, double tone, int minPercent, int maxPercent) {
+		run(name, durationMs, noise, tone, 0, 0, minPercent, maxPercent);
+	}
+
+	// as above, with the tone off for pauseMs out of every periodMs
+	private void run(String name, int durationMs, double noise, double tone, int periodMs, int pauseMs,
+			int minPercent, int maxPercent) {
+		int speech = 0;
+		int frames = durationMs / FRAME_MS;
+		// time of the last frame classified as speech
+		int lastSpeech = -1;
+		for (int i = 0; i < frames; i++) {
+			boolean paused = periodMs > 0 && (i * FRAME_MS) % periodMs >= periodMs - pauseMs;
+			AudioBuffer buff = frame(noise, paused ? 0 : tone);
+			if (vad.isSpeech(buff)) {
+				speech++;
+				lastSpeech = i * FRAME_MS;
+			}
+			buff.release();
+		}
+		int percent = speech * 100 / frames;
+		boolean ok = percent >= minPercent && percent <= maxPercent;
+		if (!ok)
+			failed = true;
+		System.out.println(String.format("%-28s %3d%% speech, expected %d-%d%%, last speech at %dms %s",
+				name, percent, minPercent, maxPercent, lastSpeech, ok ? "" : "FAIL"));
+	}
+
+	public static void main(String args[]) {
+		VoiceActivityCheck check = new VoiceActivityCheck();
+		check.run("background", 2000, 100, 0, 0, 5);
+		// 4000ms of every 4200ms is voiced
+		check.run("talking (60s)", 60000, 100, 600, 4200, 200, 95, 95);
+		check.run("background again", 2000, 100, 0, 0, 5);
+		check.run("louder background (20s)", 20000, 800, 0, 40, 80);
+		check.run("louder background again", 2000, 800, 0, 0, 0);
+		if (check.failed) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,420 @@
+package org.servalproject.batphone;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.servalproject.audio.AudioBuffer;
+import org.servalproject.audio.AudioCapture;
+import org.servalproject.audio.AudioRecordStream;
+import org.servalproject.audio.AudioStream;
+import org.servalproject.audio.Clock;
+import org.servalproject.audio.JitterStream;
+import org.servalproject.audio.LinkSimulator;
+import org.servalproject.audio.TimeStretch;
+import org.servalproject.audio.TranscodeStream;
+
+/**
+ * Plays one side of a call through the real audio path on a virtual clock, and reports how each
+ * codec copes with the same impaired link;
+ *   tests/host/run org.servalproject.batphone.CallSimulator [link config] [input.wav] [output dir]
+ *
+ * capture -> AudioRecordStream -> TranscodeStream -> LinkSimulator -> JitterStream -> TimeStretch
+ * -> TranscodeStream -> speaker
+ *
+ * The link config is a LinkSimulator string, by default "loss=5,burst=30,jitter=80,dup=1,seed=1".
+ * The input must be 8kHz 16 bit mono PCM, without one we send 30s of synthetic talk spurts.
+ * With an output directory, what the listener heard is written there as <codec>.wav.
+ * Codec2 and Opus need the native libraries from tests/host/build-jni, eg;
+ *   JAVA_OPTS=-Djava.library.path=/tmp/jni tests/host/run ...
+ *
+ * Everything runs on one thread. The capture blocks until the virtual clock reaches the end of
+ * each block it returns, and while it waits the link delivers packets and the player runs, in 1ms
+ * steps. The speaker holds 60ms of audio like AudioPlaybackStream, and writing more than that blocks
+ * the player until there is room.
+ */
+public class CallSimulator {
+	private static final String DEFAULT_LINK = "loss=5,burst=30,jitter=80,dup=1,seed=1";
+	private static final VoMP.Codec CODECS[] = {
+			VoMP.Codec.Signed16, VoMP.Codec.Ulaw8, VoMP.Codec.Alaw8,
+			VoMP.Codec.Codec2_3200, VoMP.Codec.Codec2_1200, VoMP.Codec.Opus,
+	};
+	private static final int SYNTHETIC_SECONDS = 30;
+	// keep the call going after the input ends, so the last packets can arrive and play
+	private static final int TAIL_MS = 1000;
+	private static final int SPEAKER_MS = 60;
+	// the jitter delay we ask for is this percentile of recent network delays
+	private static final int JITTER_WINDOW = 50;
+	private static final int JITTER_PERCENTILE = 95;
+
+	private static class SimulatedClock implements Clock {
+		long now;
+
+		@Override
+		public long nanoTime() {
+			return now;
+		}
+
+		@Override
+		public long elapsedRealtime() {
+			return now / 1000000;
+		}
+
+		long ms() {
+			return now / 1000000;
+		}
+	}
+
+	// the phone's speaker
+	private static class SimulatedSpeaker extends AudioStream {
+		private final SimulatedClock clock;
+		private final OutputStream wav;
+		// when the audio we have written will have finished playing
+		private long playedUntil;
+		// the player is blocked in write() until then
+		long busyUntil;
+		// when the speaker started, and when the other party started capturing
+		long captureStart;
+		private int lastSample = -1;
+		final List<Integer> latency = new ArrayList<Integer>();
+		// ms the speaker had nothing to play
+		int starvedMs;
+
+		SimulatedSpeaker(SimulatedClock clock, OutputStream wav) throws IOException {
+			this.clock = clock;
+			this.wav = wav;
+			captureStart = clock.ms();
+			playedUntil = clock.ms();
+			// like AudioPlaybackStream, start with a full buffer of silence
+			append(SPEAKER_MS, null);
+		}
+
+		private void append(int ms, byte data[]) throws IOException {
+			long now = clock.ms();
+			if (playedUntil < now) {
+				starvedMs += now - playedUntil;
+				if (wav != null)
+					wav.write(new byte[(int) (now - playedUntil) * 16]);
+				playedUntil = now;
+			}
+			playedUntil += ms;
+			if (playedUntil - now > SPEAKER_MS)
+				busyUntil = playedUntil - SPEAKER_MS;
+			if (wav != null)
+				wav.write(data == null ? new byte[ms * 16] : data, 0, ms * 16);
+		}
+
+		boolean isBusy() {
+			return busyUntil > clock.ms();
+		}
+
+		@Override
+		public int getBufferDuration() {
+			long buffered = playedUntil - clock.ms();
+			return buffered > 0 ? (int) buffered : 0;
+		}
+
+		@Override
+		public void missed(int duration, boolean missing) throws IOException {
+			append(duration, null);
+		}
+
+		@Override
+		public int write(AudioBuffer buff) throws IOException {
+			try {
+				int ms = buff.dataLen / 16;
+				// concealed audio doesn't carry a useful sample time
+				if (buff.sampleStart > lastSample) {
+					lastSample = buff.sampleStart;
+					latency.add((int) (Math.max(playedUntil, clock.ms()) - captureStart - buff.sampleStart));
+				}
+				append(ms, buff.buff);
+				return ms;
+			} finally {
+				buff.release();
+			}
+		}
+	}
+
+	// 8kHz 16 bit mono audio, read as fast as the virtual clock allows
+	private class SimulatedCapture implements AudioCapture {
+		private final short audio[];
+		private int position;
+		private long captured;
+		AudioRecordStream recorder;
+
+		SimulatedCapture(short audio[]) {
+			this.audio = audio;
+		}
+
+		@Override
+		public int getSampleRate() {
+			return 8000;
+		}
+
+		@Override
+		public int getFrameSize() {
+			return 2;
+		}
+
+		@Override
+		public int getBufferSize() {
+			return 8 * 100 * 2;
+		}
+
+		@Override
+		public void start() {
+			captured = 0;
+			speaker.captureStart = clock.ms();
+		}
+
+		@Override
+		public int read(byte buff[], int offset, int len) {
+			if (position >= audio.length + TAIL_MS * 8) {
+				recorder.close();
+				return 0;
+			}
+			int samples = len / 2;
+			captured += samples;
+			try {
+				runUntil(speaker.captureStart + captured / 8);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			for (int i = 0; i < samples; i++, position++) {
+				short value = position < audio.length ? audio[position] : 0;
+				buff[offset + i * 2] = (byte) value;
+				buff[offset + i * 2 + 1] = (byte) (value >> 8);
+			}
+			return samples * 2;
+		}
+
+		@Override
+		public void stop() {
+		}
+	}
+
+	private final SimulatedClock clock = new SimulatedClock();
+	private final VoMP.Codec codec;
+	private final CallStats stats = new CallStats();
+	private final SimulatedSpeaker speaker;
+	private final JitterStream player;
+	private final LinkSimulator link;
+	private final TranscodeStream encoder;
+	private final int delays[] = new int[JITTER_WINDOW];
+	private int delayCount;
+	// when the player next needs to make a decision
+	private long nextDecision;
+	private boolean arrived;
+
+	// the network side of our encoder, what CallHandler sends to the daemon
+	private final AudioStream transport = new AudioStream() {
+		@Override
+		public int write(AudioBuffer buff) throws IOException {
+			stats.onSent(buff.sampleStart, buff.dataLen);
+			buff.received = clock.elapsedRealtime();
+			buff.thisDelay = 0;
+			return link.write(buff);
+		}
+	};
+
+	// the other side of the link, what CallHandler gives the player
+	private final AudioStream received = new AudioStream() {
+		@Override
+		public int write(AudioBuffer buff) throws IOException {
+			stats.onReceived(buff.sequence, buff.sampleStart, buff.dataLen, buff.thisDelay);
+			encoder.onReceived(buff.sequence, buff.thisDelay);
+			// the daemon would tell us this, recommend a delay that covers most recent packets
+			delays[delayCount++ % JITTER_WINDOW] = buff.thisDelay;
+			int recent[] = Arrays.copyOf(delays, Math.min(delayCount, JITTER_WINDOW));
+			Arrays.sort(recent);
+			player.setJitterDelay(recent[(recent.length - 1) * JITTER_PERCENTILE / 100]);
+			arrived = true;
+			return player.write(buff);
+		}
+	};
+
+	private CallSimulator(VoMP.Codec codec, String linkConfig, OutputStream wav) throws IOException {
+		this.codec = codec;
+		stats.codec = codec;
+		encoder = TranscodeStream.getEncoder(transport, codec);
+		speaker = new SimulatedSpeaker(clock, wav);
+		player = new JitterStream(TranscodeStream.getDecoder(new TimeStretch(speaker)), clock);
+		stats.setPlayout(player.stats);
+		link = new LinkSimulator(received, linkConfig, clock);
+	}
+
+	// let everything that happens before this time happen
+	private void runUntil(long ms) throws IOException {
+		while (clock.ms() < ms) {
+			clock.now += 1000000;
+			link.deliver();
+			if (arrived) {
+				// the player would have been woken by the new audio
+				arrived = false;
+				nextDecision = 0;
+			}
+			if (speaker.isBusy() || clock.now < nextDecision)
+				continue;
+			for (int i = 0; i < 100 && !speaker.isBusy(); i++) {
+				long wait = player.playNext();
+				if (wait > 0) {
+					nextDecision = clock.now + wait;
+					break;
+				}
+			}
+		}
+	}
+
+	private void run(short audio[]) throws IOException {
+		SimulatedCapture capture = new SimulatedCapture(audio);
+		AudioRecordStream recorder = new AudioRecordStream(encoder, capture,
+				codec.audioBufferSize(), codec.maxBufferSize(), clock);
+		capture.recorder = recorder;
+		player.startPlayingWithoutThread();
+		recorder.run();
+		link.close();
+		player.close();
+	}
+
+	private static int percentile(List<Integer> values, int percent) {
+		if (values.isEmpty())
+			return -1;
+		Integer sorted[] = values.toArray(new Integer[values.size()]);
+		Arrays.sort(sorted);
+		return sorted[(sorted.length - 1) * percent / 100];
+	}
+
+	private String report() {
+		JitterStream.Stats playout = player.stats;
+		double rating = stats.rating();
+		return String.format("%-12s %5d %5d %5d %5d %5d %6d %6d %6d %6d %6.0f %5.2f",
+				codec, link.getReceived(), link.getLost(), link.getDuplicated(),
+				playout.late, playout.concealedMs, playout.underrunMs, speaker.starvedMs,
+				percentile(speaker.latency, 50), percentile(speaker.latency, 95),
+				rating, CallStats.mos(rating));
+	}
+
+	// vowel like talk spurts, a wandering pitch with harmonics, 1.5s on and 0.5s off
+	private static short[] synthetic(int seconds) {
+		short audio[] = new short[seconds * 8000];
+		double phase = 0;
+		for (int i = 0; i < audio.length; i++) {
+			double t = (double) i / 8000;
+			double pitch = 150 + 40 * Math.sin(2 * Math.PI * 0.7 * t);
+			phase += 2 * Math.PI * pitch / 8000;
+			double envelope = t % 2 < 1.5 ? Math.abs(Math.sin(2 * Math.PI * 2.5 * t)) : 0;
+			audio[i] = (short) (envelope * (6000 * Math.sin(phase)
+					+ 3000 * Math.sin(2 * phase) + 1500 * Math.sin(3 * phase)));
+		}
+		return audio;
+	}
+
+	private static int readInt(DataInputStream in, int bytes) throws IOException {
+		int value = 0;
+		for (int i = 0; i < bytes; i++)
+			value |= in.readUnsignedByte() << (i * 8);
+		return value;
+	}
+
+	private static short[] readWav(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		try {
+			byte tag[] = new byte[4];
+			in.readFully(tag);
+			if (!"RIFF".equals(new String(tag, "US-ASCII")))
+				throw new IOException(file + " is not a WAV file");
+			readInt(in, 4);
+			in.readFully(tag);
+			boolean format = false;
+			while (true) {
+				in.readFully(tag);
+				String chunk = new String(tag, "US-ASCII");
+				int len = readInt(in, 4);
+				if ("fmt ".equals(chunk)) {
+					int type = readInt(in, 2);
+					int channels = readInt(in, 2);
+					int rate = readInt(in, 4);
+					readInt(in, 6);
+					int bits = readInt(in, 2);
+					if (type != 1 || channels != 1 || rate != 8000 || bits != 16)
+						throw new IOException(file + " must be 8kHz 16 bit mono PCM");
+					in.skipBytes(len - 16);
+					format = true;
+				} else if ("data".equals(chunk)) {
+					if (!format)
+						throw new IOException(file + " has no format");
+					short audio[] = new short[len / 2];
+					for (int i = 0; i < audio.length; i++)
+						audio[i] = (short) readInt(in, 2);
+					return audio;
+				} else {
+					in.skipBytes(len + (len & 1));
+				}
+			}
+		} catch (EOFException e) {
+			throw new IOException(file + " has no audio");
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void writeInt(OutputStream out, int value, int bytes) throws IOException {
+		for (int i = 0; i < bytes; i++)
+			out.write(value >> (i * 8));
+	}
+
+	// a header for an 8kHz 16 bit mono WAV of unknown length, that most players will accept
+	private static void writeWavHeader(OutputStream out) throws IOException {
+		out.write("RIFF".getBytes("US-ASCII"));
+		writeInt(out, -1, 4);
+		out.write("WAVEfmt ".getBytes("US-ASCII"));
+		writeInt(out, 16, 4);
+		writeInt(out, 1, 2);
+		writeInt(out, 1, 2);
+		writeInt(out, 8000, 4);
+		writeInt(out, 16000, 4);
+		writeInt(out, 2, 2);
+		writeInt(out, 16, 2);
+		out.write("data".getBytes("US-ASCII"));
+		writeInt(out, -1, 4);
+	}
+
+	public static void main(String args[]) throws IOException {
+		String linkConfig = args.length > 0 ? args[0] : DEFAULT_LINK;
+		short audio[] = args.length > 1 ? readWav(new File(args[1])) : synthetic(SYNTHETIC_SECONDS);
+		File outputFolder = args.length > 2 ? new File(args[2]) : null;
+		if (outputFolder != null)
+			outputFolder.mkdirs();
+
+		System.out.println("link " + linkConfig + ", " + audio.length / 8000 + "s of audio");
+		System.out.println("codec         sent  lost   dup  late concealed underrun starved"
+				+ " lat50  lat95      R   MOS");
+		System.out.println("                                       ms       ms      ms"
+				+ "    ms     ms");
+		for (VoMP.Codec codec : CODECS) {
+			OutputStream wav = null;
+			try {
+				if (outputFolder != null) {
+					wav = new FileOutputStream(new File(outputFolder, codec + ".wav"));
+					writeWavHeader(wav);
+				}
+				CallSimulator call = new CallSimulator(codec, linkConfig, wav);
+				call.run(audio);
+				System.out.println(call.report());
+			} catch (LinkageError e) {
+				System.out.println(String.format("%-12s skipped, %s", codec, e.getMessage()));
+			} finally {
+				if (wav != null)
+					wav.close();
+			}
+		}
+	}
+}
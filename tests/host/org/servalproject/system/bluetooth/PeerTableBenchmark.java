@@ -0,0 +1,93 @@
+package org.servalproject.system.bluetooth;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Times the lookup done for every packet servald sends over bluetooth, from the link address it
+ * gives us to the peer we send it to.
+ *
+ * Compares PeerTable, keyed by the packed mac address, with the String keyed HashMap it replaced,
+ * which turned the ascii bytes of the address back into a String on every packet.
+ * Run with tests/host/run.
+ */
+public class PeerTableBenchmark {
+	private static final int LOOKUPS = 1000000;
+	private static final int ROUNDS = 5;
+
+	private static class Peer implements PeerTable.Entry {
+		final long address;
+
+		Peer(long address) {
+			this.address = address;
+		}
+
+		@Override
+		public boolean isIdle(long idleSince) {
+			return false;
+		}
+	}
+
+	private static String format(long address) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = MacAddress.LENGTH - 1; i >= 0; i--) {
+			sb.append(String.format("%02X", (address >>> (i * 8)) & 0xFF));
+			if (i > 0)
+				sb.append(':');
+		}
+		return sb.toString();
+	}
+
+	public static void main(String args[]) {
+		for (int peers : new int[] { 4, 16, 64 })
+			run(peers);
+	}
+
+	private static void run(int count) {
+		Random random = new Random(count);
+		PeerTable<Peer> table = new PeerTable<Peer>();
+		Map<String, Peer> map = new HashMap<String, Peer>();
+		// what servald hands back to us for each peer, before and after the change
+		byte linkAddresses[][] = new byte[count][];
+		byte asciiAddresses[][] = new byte[count][];
+		Peer peers[] = new Peer[count];
+
+		for (int i = 0; i < count; i++) {
+			long address = random.nextLong() & 0xFFFFFFFFFFFFL;
+			String name = format(address);
+			if (MacAddress.parse(name) != address)
+				throw new IllegalStateException("Failed to parse " + name);
+			peers[i] = new Peer(address);
+			table.putIfAbsent(address, peers[i]);
+			map.put(name, peers[i]);
+			linkAddresses[i] = MacAddress.toBytes(address);
+			asciiAddresses[i] = name.getBytes();
+		}
+
+		long tableNs = Long.MAX_VALUE;
+		long mapNs = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; i++) {
+				int n = i % count;
+				long addr = MacAddress.fromBytes(linkAddresses[n]);
+				if (table.get(addr) != peers[n])
+					throw new IllegalStateException("PeerTable returned the wrong peer");
+			}
+			tableNs = Math.min(tableNs, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; i++) {
+				int n = i % count;
+				if (map.get(new String(asciiAddresses[n])) != peers[n])
+					throw new IllegalStateException("HashMap returned the wrong peer");
+			}
+			mapNs = Math.min(mapNs, System.nanoTime() - start);
+		}
+
+		System.out.println(String.format(
+				"%3d peers: PeerTable %6.1f ns/lookup, String HashMap %6.1f ns/lookup",
+				count, (double) tableNs / LOOKUPS, (double) mapNs / LOOKUPS));
+	}
+}
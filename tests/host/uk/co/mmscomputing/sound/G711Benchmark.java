@@ -0,0 +1,124 @@
+package uk.co.mmscomputing.sound;
+
+import java.lang.reflect.Field;
+import java.util.Random;
+
+/**
+ * Compares the table driven G.711 loops with the per sample code they replaced.
+ *
+ * First checks that every possible 16 bit sample encodes, and every code decodes, exactly as
+ * before for both u-law and A-law. Then times both versions on 20ms and 120ms blocks of 8KHz
+ * audio, the smallest and largest amount of audio we send in one packet.
+ * Run with tests/host/run.
+ */
+public class G711Benchmark {
+	private static final int SECONDS = 60;
+	private static final int ROUNDS = 5;
+	// read the output, so the JIT can't skip producing it
+	static volatile int sink;
+
+	// the bulk loops as they were, calling compress(short) for every sample
+	private static void oldCompress(Compressor c, byte in[], int offset, int len, byte out[],
+			int outOffset) {
+		int i = 0;
+		while (i < len) {
+			int sample = (in[offset + i++] & 0x00FF);
+			sample |= (in[offset + i++] << 8);
+			out[outOffset++] = (byte) c.compress((short) sample);
+		}
+	}
+
+	private static void oldDecompress(int table[], byte in[], int offset, int count,
+			byte out[], int outOffset) {
+		for (int i = 0; i < count; i++) {
+			int value = table[in[i + offset] & 0x00FF];
+			out[outOffset++] = (byte) ((value >> 8) & 0x00FF); // little-endian
+			out[outOffset++] = (byte) (value & 0x00FF);
+		}
+	}
+
+	private static int[] tableOf(Decompressor d) throws Exception {
+		Field f = Decompressor.class.getDeclaredField("table");
+		f.setAccessible(true);
+		return (int[]) f.get(d);
+	}
+
+	public static void main(String args[]) throws Exception {
+		run("u-law", new uLawCompressor(), new ULawDecompressor());
+		run("A-law", new ALawCompressor(), new ALawDecompressor());
+	}
+
+	private static void run(String name, Compressor c, Decompressor d) throws Exception {
+		int table[] = tableOf(d);
+
+		// every possible sample, little-endian
+		byte samples[] = new byte[0x10000 * 2];
+		for (int i = 0; i < 0x10000; i++) {
+			samples[i * 2] = (byte) i;
+			samples[i * 2 + 1] = (byte) (i >> 8);
+		}
+		byte expected[] = new byte[0x10000];
+		byte actual[] = new byte[0x10000];
+		oldCompress(c, samples, 0, samples.length, expected, 0);
+		c.compress(samples, 0, samples.length, actual, 0);
+		for (int i = 0; i < 0x10000; i++) {
+			if (expected[i] != actual[i])
+				throw new IllegalStateException(name + " encoded sample " + (short) i + " as "
+						+ actual[i] + ", was " + expected[i]);
+		}
+
+		byte codes[] = new byte[256];
+		for (int i = 0; i < 256; i++)
+			codes[i] = (byte) i;
+		byte expectedPcm[] = new byte[512];
+		byte actualPcm[] = new byte[512];
+		oldDecompress(table, codes, 0, 256, expectedPcm, 0);
+		d.decompress(codes, 0, 256, actualPcm, 0);
+		for (int i = 0; i < 512; i++) {
+			if (expectedPcm[i] != actualPcm[i])
+				throw new IllegalStateException(name + " decoded code " + (i / 2) + " differently");
+		}
+		System.out.println(name + ": all 65536 samples and 256 codes match the previous code");
+
+		for (int frameMs : new int[] { 20, 120 })
+			time(name, c, d, table, frameMs);
+	}
+
+	private static void time(String name, Compressor c, Decompressor d, int table[], int frameMs) {
+		int samples = frameMs * 8;
+		int frames = SECONDS * 1000 / frameMs;
+		// noisy audio, so no part of the table is favoured
+		byte pcm[] = new byte[samples * 2];
+		new Random(frameMs).nextBytes(pcm);
+		byte coded[] = new byte[samples];
+		byte decoded[] = new byte[samples * 2];
+
+		long best[] = { Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE };
+		for (int round = 0; round < ROUNDS; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < frames; i++)
+				oldCompress(c, pcm, 0, pcm.length, coded, 0);
+			long t1 = System.nanoTime();
+			for (int i = 0; i < frames; i++)
+				c.compress(pcm, 0, pcm.length, coded, 0);
+			long t2 = System.nanoTime();
+			for (int i = 0; i < frames; i++)
+				oldDecompress(table, coded, 0, coded.length, decoded, 0);
+			long t3 = System.nanoTime();
+			for (int i = 0; i < frames; i++)
+				d.decompress(coded, 0, coded.length, decoded, 0);
+			long t4 = System.nanoTime();
+			sink += coded[round] + decoded[round];
+
+			best[0] = Math.min(best[0], t1 - start);
+			best[1] = Math.min(best[1], t2 - t1);
+			best[2] = Math.min(best[2], t3 - t2);
+			best[3] = Math.min(best[3], t4 - t3);
+		}
+		System.out.println(String.format(
+				"%s %3dms frames: encode %6.0f -> %6.0f ns, decode %6.0f -> %6.0f ns",
+				name, frameMs,
+				(double) best[0] / frames, (double) best[1] / frames,
+				(double) best[2] / frames, (double) best[3] / frames));
+	}
+}